@@ -0,0 +1,45 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * AsyncFileServer lets clients wait for a file without blocking a thread.
+ *
+ * openAsync queues the request in the file's ReadWriteLocker and returns
+ * straight away. When a close releases the lock, the queued requests at the
+ * front of the queue that can now have it (a writer, or a run of readers) are
+ * granted it in the order they were made, and their futures are completed on
+ * the executor. That way thousands of outstanding opens on a hot file are just
+ * entries in a queue, and a small executor is enough to serve them.
+ *
+ * Files opened this way are closed as usual, with close here or on the
+ * underlying server. Cancelling a future that hasn't completed yet gives up on
+ * the open.
+ *
+ * @author jamesjarvis
+ */
+public class AsyncFileServer {
+
+  private final MyFileServer fs;
+  private final Executor executor;
+
+  public AsyncFileServer(MyFileServer fs, Executor executor) {
+    this.fs = fs;
+    this.executor = executor;
+  }
+
+  /**
+   * Opens the file in mode (READABLE or READWRITEABLE) once it is available.
+   * Completes exceptionally with NoSuchElementException if no such file exists.
+   */
+  public CompletableFuture<File> openAsync(String filename, Mode mode) {
+    return this.fs.openAsync(filename, mode, this.executor);
+  }
+
+  public void close(File file) {
+    this.fs.close(file);
+  }
+
+  public MyFileServer server() {
+    return this.fs;
+  }
+}
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark measures open/read/write/close cycles against MyFileServer.
+ *
+ * Every combination of the parameters below is run in turn. For each one a
+ * fresh server is created with `files` files of `size` characters, then
+ * `threads` threads each loop on: pick a file, open it (READWRITEABLE with
+ * probability `writes`, otherwise READABLE), read it, write it if writable,
+ * close it (or with write=append, writers skip the read and append one
+ * character instead of replacing the content). The loop runs for `warmup` ms
+ * unmeasured and then `measure` ms measured, and the throughput plus latency
+ * percentiles of a whole cycle are printed as one row.
+ *
+ * Parameters are passed as name=value[,value...], for example:
+ *
+ *   java Benchmark strategy=STATE,SEMAPHORE threads=1,16 dist=zipf
+ *
+ * strategy  LockStrategy of the server      (default STATE,STAMPED,SEMAPHORE)
+ * threads   number of client threads        (default 1,4,16,64)
+ * writes    fraction of opens for writing   (default 0.0,0.1,0.5)
+ * dist      uniform, or zipf for hot files  (default uniform,zipf)
+ * files     number of files on the server   (default 1000)
+ * size      characters of content per file  (default 64)
+ * store     heap, direct or mapped storage,  (default heap)
+ *           or wal / wal-async for a WriteAheadLog in front of heap storage
+ * write     replace, or append what is written (default replace)
+ * warmup    unmeasured ms per run           (default 1000)
+ * measure   measured ms per run             (default 2000)
+ *
+ * @author jamesjarvis
+ */
+public class Benchmark {
+
+  private static final String[] DEFAULTS = { "strategy=STATE,STAMPED,SEMAPHORE", "threads=1,4,16,64",
+      "writes=0.0,0.1,0.5", "dist=uniform,zipf", "files=1000", "size=64", "store=heap", "write=replace",
+      "warmup=1000", "measure=2000" };
+
+  // Run phases, threads only record while MEASURING
+  private static final int WARMING = 0;
+  private static final int MEASURING = 1;
+  private static final int STOPPED = 2;
+
+  private static volatile int phase;
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = parse(DEFAULTS, args);
+
+    System.out.printf("%-9s %7s %6s %-7s %7s %6s %-9s %-7s %12s %9s %9s %9s%n", "strategy", "threads",
+        "writes", "dist", "files", "size", "store", "write", "ops/s", "p50(us)", "p99(us)", "p999(us)");
+
+    for (String strategy : params.get("strategy")) {
+      for (String threads : params.get("threads")) {
+        for (String writes : params.get("writes")) {
+          for (String dist : params.get("dist")) {
+            for (String files : params.get("files")) {
+              for (String size : params.get("size")) {
+                for (String store : params.get("store")) {
+                  for (String write : params.get("write")) {
+                    run(LockStrategy.valueOf(strategy), Integer.parseInt(threads), Double.parseDouble(writes),
+                        dist, Integer.parseInt(files), Integer.parseInt(size), store, write.equals("append"),
+                        Long.parseLong(params.get("warmup")[0]), Long.parseLong(params.get("measure")[0]));
+                  }
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static void run(LockStrategy strategy, int threads, double writes, String dist, int files,
+      int size, String store, boolean append, long warmup, long measure) throws InterruptedException {
+    ContentStore contentStore = store(store);
+    MyFileServer fs = new MyFileServer(strategy, contentStore);
+    String[] names = new String[files];
+    for (int i = 0; i < files; i++) {
+      names[i] = i + ".txt";
+      fs.create(names[i], content(size, 'a'));
+    }
+    String written = append ? "b" : content(size, 'b');
+    FileChooser chooser = chooser(dist, files);
+
+    Histogram latency = new Histogram();
+    long[] ops = new long[threads];
+    List<Thread> workers = new ArrayList<Thread>();
+    CountDownLatch ready = new CountDownLatch(threads);
+    phase = WARMING;
+
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Histogram mine = new Histogram();
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          long done = 0;
+          ready.countDown();
+          int now;
+          while ((now = phase) != STOPPED) {
+            String filename = names[chooser.next(random)];
+            Mode mode = random.nextDouble() < writes ? Mode.READWRITEABLE : Mode.READABLE;
+            long start = System.nanoTime();
+            cycle(fs, filename, mode, written, append);
+            long took = System.nanoTime() - start;
+            if (now == MEASURING) {
+              mine.record(took);
+              done++;
+            }
+          }
+          ops[id] = done;
+          latency.add(mine);
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+
+    ready.await();
+    Thread.sleep(warmup);
+    phase = MEASURING;
+    long start = System.nanoTime();
+    Thread.sleep(measure);
+    phase = STOPPED;
+    long elapsed = System.nanoTime() - start;
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    long total = 0;
+    for (long done : ops) {
+      total += done;
+    }
+    System.out.printf("%-9s %7d %6.2f %-7s %7d %6d %-9s %-7s %12.0f %9.2f %9.2f %9.2f%n", strategy, threads,
+        writes, dist, files, size, store, append ? "append" : "replace", total * 1e9 / elapsed,
+        latency.percentile(0.5) / 1e3, latency.percentile(0.99) / 1e3, latency.percentile(0.999) / 1e3);
+    if (contentStore instanceof WriteAheadLog) {
+      WriteAheadLog log = (WriteAheadLog) contentStore;
+      System.out.printf("  %d commits in %d forces%n", log.commits(), log.forces());
+      try {
+        log.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * One open/read/write/close cycle, the unit of work being measured
+   */
+  static void cycle(FileServer fs, String filename, Mode mode, String written) {
+    cycle(fs, filename, mode, written, false);
+  }
+
+  /**
+   * One cycle, where if append is set writers append what is written without
+   * reading the content first, rather than reading it and replacing it
+   */
+  static void cycle(FileServer fs, String filename, Mode mode, String written, boolean append) {
+    Optional<File> of = fs.open(filename, mode);
+    if (!of.isPresent()) {
+      return;
+    }
+    File f = of.get();
+    if (mode == Mode.READWRITEABLE && append) {
+      // Appenders don't need to see the content
+      f.append(written);
+    } else {
+      f.read();
+      if (mode == Mode.READWRITEABLE) {
+        f.write(written);
+      }
+    }
+    fs.close(f);
+  }
+
+  static String content(int size, char c) {
+    char[] chars = new char[size];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  /**
+   * Parses name=value[,value...] arguments over the top of the defaults, which
+   * also list every parameter there is
+   */
+  static Map<String, String[]> parse(String[] defaults, String[] args) {
+    Map<String, String[]> params = new HashMap<String, String[]>();
+    for (String[] source : new String[][] { defaults, args }) {
+      for (String arg : source) {
+        int eq = arg.indexOf('=');
+        if (eq < 0 || (source == args && !params.containsKey(arg.substring(0, eq)))) {
+          throw new IllegalArgumentException("Unknown parameter " + arg);
+        }
+        params.put(arg.substring(0, eq), arg.substring(eq + 1).split(","));
+      }
+    }
+    return params;
+  }
+
+  /**
+   * A fresh ContentStore of the named kind, mapped ones in a new temporary
+   * directory
+   */
+  static ContentStore store(String store) {
+    switch (store) {
+    case "direct":
+      return new DirectStore();
+    case "mapped":
+      try {
+        return new MappedStore(Files.createTempDirectory("benchmark"));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    case "wal":
+    case "wal-async":
+      try {
+        WriteAheadLog.Durability durability = store.equals("wal") ? WriteAheadLog.Durability.SYNC
+            : WriteAheadLog.Durability.ASYNC;
+        return new WriteAheadLog(Files.createTempDirectory("benchmark"), new HeapStore(), durability, 0,
+            TimeUnit.MILLISECONDS);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    default:
+      return new HeapStore();
+    }
+  }
+
+  static FileChooser chooser(String dist, int files) {
+    return dist.equals("zipf") ? new ZipfChooser(files, 1.0) : new UniformChooser(files);
+  }
+
+  /**
+   * Picks which of the server's files the next operation goes to
+   */
+  interface FileChooser {
+    int next(ThreadLocalRandom random);
+  }
+
+  static class UniformChooser implements FileChooser {
+    private final int files;
+
+    UniformChooser(int files) {
+      this.files = files;
+    }
+
+    @Override
+    public int next(ThreadLocalRandom random) {
+      return random.nextInt(this.files);
+    }
+  }
+
+  /**
+   * Picks file i with probability proportional to 1 / (i + 1)^exponent, so a
+   * few low numbered files take most of the traffic
+   */
+  static class ZipfChooser implements FileChooser {
+    private final double[] cumulative;
+
+    ZipfChooser(int files, double exponent) {
+      this.cumulative = new double[files];
+      double sum = 0;
+      for (int i = 0; i < files; i++) {
+        sum += 1.0 / Math.pow(i + 1, exponent);
+        this.cumulative[i] = sum;
+      }
+      for (int i = 0; i < files; i++) {
+        this.cumulative[i] /= sum;
+      }
+    }
+
+    @Override
+    public int next(ThreadLocalRandom random) {
+      int i = Arrays.binarySearch(this.cumulative, random.nextDouble());
+      return Math.min(i < 0 ? -i - 1 : i, this.cumulative.length - 1);
+    }
+  }
+}
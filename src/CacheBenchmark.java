@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * CacheBenchmark measures MyFileServer's content cache (see ContentCache)
+ * reading files kept on disk by a MappedStore, many more of them than the
+ * cache (or the heap) can hold.
+ *
+ * For each combination of parameters a fresh server is filled with `files`
+ * files of `size` bytes, a cache of `cache` MB is turned on (none with 0), and
+ * `threads` threads open files READABLE, read them as text and close them for
+ * `seconds` seconds, choosing files uniformly or with a Zipf distribution. One
+ * row is printed with the reads per second, the cache's hit ratio, and the
+ * percentiles of how long a read took.
+ *
+ *   java -Xmx1g CacheBenchmark cache=0,64,256 dist=zipf
+ *
+ * files    number of files              (default 32768)
+ * size     bytes per file               (default 65536)
+ * cache    cache capacity in MB         (default 0,64,256)
+ * dist     uniform or zipf              (default zipf)
+ * threads  reading threads              (default 1,4)
+ * seconds  length of each run           (default 5)
+ *
+ * The files are written to a temporary directory, 2GB of them by default,
+ * which is removed afterwards.
+ *
+ * @author jamesjarvis
+ */
+public class CacheBenchmark {
+
+  private static final String[] DEFAULTS = { "files=32768", "size=65536", "cache=0,64,256", "dist=zipf",
+      "threads=1,4", "seconds=5" };
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    int files = Integer.parseInt(params.get("files")[0]);
+    int size = Integer.parseInt(params.get("size")[0]);
+    int seconds = Integer.parseInt(params.get("seconds")[0]);
+
+    Path dir = Files.createTempDirectory("cachebenchmark");
+    try {
+      MyFileServer fs = new MyFileServer(LockStrategy.STATE, new MappedStore(dir));
+      String content = Benchmark.content(size, 'x');
+      for (int i = 0; i < files; i++) {
+        fs.create(i + ".txt", content);
+      }
+
+      System.out.printf("%-8s %8s %7s %10s %9s %10s %10s%n", "dist", "cache MB", "threads", "reads/s",
+          "hit ratio", "p50 us", "p99 us");
+      for (String dist : params.get("dist")) {
+        for (String cache : params.get("cache")) {
+          for (String threads : params.get("threads")) {
+            run(fs, files, size, dist, Integer.parseInt(cache), Integer.parseInt(threads), seconds);
+          }
+        }
+      }
+    } finally {
+      try (Stream<Path> segments = Files.list(dir)) {
+        for (Object segment : segments.toArray()) {
+          Files.delete((Path) segment);
+        }
+      }
+      Files.delete(dir);
+    }
+  }
+
+  private static void run(MyFileServer fs, int files, int size, String dist, int cacheMB, int threads,
+      int seconds) throws InterruptedException, IOException {
+    // A fresh cache each run, or none
+    ContentCache cache = fs.cache(cacheMB * (1L << 20), size);
+    Benchmark.FileChooser chooser = Benchmark.chooser(dist, files);
+    Histogram latencies = new Histogram();
+    LongAdder reads = new LongAdder();
+    long warmed = System.nanoTime() + 1000000000L;
+    long end = warmed + seconds * 1000000000L;
+
+    List<Thread> readers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      Thread reader = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          long now;
+          while ((now = System.nanoTime()) < end) {
+            File file = fs.open(chooser.next(random) + ".txt", Mode.READABLE).get();
+            file.read();
+            fs.close(file);
+            if (now > warmed) {
+              latencies.record(System.nanoTime() - now);
+              reads.increment();
+            }
+          }
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+    Thread.sleep(Math.max(0, (warmed - System.nanoTime()) / 1000000));
+    if (cache != null) {
+      cache.resetStats();
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+
+    System.out.printf("%-8s %8d %7d %10.0f %9.3f %10.1f %10.1f%n", dist, cacheMB, threads,
+        reads.sum() / (double) seconds, cache == null ? 0 : cache.hitRatio(), latencies.percentile(0.5) / 1e3,
+        latencies.percentile(0.99) / 1e3);
+  }
+}
@@ -0,0 +1,252 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ChunkedContent is content made of a sequence of chunks, each a read-only
+ * view of some buffer, so that a new version can be made from an old one by
+ * sharing the chunks that didn't change instead of copying them.
+ *
+ * write() makes the new version from the chunks before the change, the bytes
+ * written, and the chunks after it, slicing the chunks at either edge. That
+ * costs the number of chunks plus the bytes written, not the size of the
+ * content. Once there are more than MAX_CHUNKS, runs of small neighbouring
+ * chunks (as a string of appends leaves behind) are copied into one, and a
+ * copy never covers more than COALESCED bytes, however large the content.
+ * Chunks bigger than that are left as they are, so the number of chunks is
+ * only bounded by the size: any two neighbours add up to more than COALESCED
+ * bytes after coalescing, so there are at most about two for every COALESCED
+ * bytes of content, which for content of a few MB or more is past MAX_CHUNKS.
+ *
+ * Chunks may be on or off the heap, and may be slices of an older version's
+ * buffers, which are kept alive for as long as any version shares them.
+ */
+final class ChunkedContent implements Content {
+  private static final int MAX_CHUNKS = 64;
+  private static final int COALESCED = 64 << 10;
+
+  // None empty, all from position 0 to their limit
+  private final ByteBuffer[] chunks;
+  // ends[i] is the offset just past chunk i
+  private final int[] ends;
+  // All the chunks copied into one, made on first use if there's more than one
+  private volatile ByteBuffer joined;
+  private volatile String text;
+
+  private ChunkedContent(List<ByteBuffer> chunks) {
+    this.chunks = chunks.toArray(new ByteBuffer[0]);
+    this.ends = new int[this.chunks.length];
+    int end = 0;
+    for (int i = 0; i < this.chunks.length; i++) {
+      end += this.chunks[i].limit();
+      this.ends[i] = end;
+    }
+  }
+
+  /**
+   * The content as ChunkedContent, sharing its bytes
+   */
+  static ChunkedContent of(Content content) {
+    if (content instanceof ChunkedContent) {
+      return (ChunkedContent) content;
+    }
+    List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(1);
+    ByteBuffer bytes = content.bytes();
+    if (bytes.hasRemaining()) {
+      chunks.add(bytes.slice());
+    }
+    return new ChunkedContent(chunks);
+  }
+
+  /**
+   * A new version with the remaining bytes of data written at offset, which
+   * must be no further than the end. data becomes one of the chunks, so it
+   * must be read-only and never changed afterwards.
+   */
+  ChunkedContent write(int offset, ByteBuffer data) {
+    int size = size();
+    if (offset < 0 || offset > size) {
+      throw new IndexOutOfBoundsException("Offset " + offset + " is outside 0.." + size);
+    }
+    int end = offset + data.remaining();
+    List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(this.chunks.length + 2);
+    range(0, offset, chunks);
+    if (data.hasRemaining()) {
+      chunks.add(data.slice());
+    }
+    range(end, size, chunks);
+    return new ChunkedContent(chunks.size() > MAX_CHUNKS ? coalesce(chunks) : chunks);
+  }
+
+  /**
+   * Adds views of the bytes from to to (exclusive) to out, whole chunks as
+   * they are and the ones at either edge sliced
+   */
+  private void range(int from, int to, List<ByteBuffer> out) {
+    if (from >= to) {
+      return;
+    }
+    int i = Arrays.binarySearch(this.ends, from);
+    i = i < 0 ? -i - 1 : i + 1;
+    int start = i == 0 ? 0 : this.ends[i - 1];
+    for (; start < to; start = this.ends[i++]) {
+      ByteBuffer chunk = this.chunks[i];
+      int low = Math.max(from, start) - start;
+      int high = Math.min(to, this.ends[i]) - start;
+      out.add(low == 0 && high == chunk.limit() ? chunk : slice(chunk, low, high));
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(to);
+    view.position(from);
+    return view.slice();
+  }
+
+  /**
+   * Copies each run of neighbouring chunks that fits in COALESCED bytes into a
+   * single chunk, off-heap if the whole run was
+   */
+  private static List<ByteBuffer> coalesce(List<ByteBuffer> chunks) {
+    List<ByteBuffer> coalesced = new ArrayList<ByteBuffer>();
+    int runStart = 0;
+    int runLength = 0;
+    for (int i = 0; i <= chunks.size(); i++) {
+      if (i < chunks.size() && runLength + chunks.get(i).limit() <= COALESCED) {
+        runLength += chunks.get(i).limit();
+        continue;
+      }
+      if (i - runStart == 1) {
+        coalesced.add(chunks.get(runStart));
+      } else if (i > runStart) {
+        coalesced.add(join(chunks.subList(runStart, i), runLength));
+      }
+      if (i < chunks.size()) {
+        // A chunk too big for any run goes in on its own
+        boolean big = chunks.get(i).limit() > COALESCED;
+        if (big) {
+          coalesced.add(chunks.get(i));
+        }
+        runStart = big ? i + 1 : i;
+        runLength = big ? 0 : chunks.get(i).limit();
+      }
+    }
+    return coalesced;
+  }
+
+  private static ByteBuffer join(List<ByteBuffer> chunks, int length) {
+    boolean direct = !chunks.isEmpty();
+    for (ByteBuffer chunk : chunks) {
+      direct &= chunk.isDirect();
+    }
+    ByteBuffer joined = direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    for (ByteBuffer chunk : chunks) {
+      joined.put(chunk.duplicate());
+    }
+    joined.flip();
+    return joined.asReadOnlyBuffer();
+  }
+
+  /**
+   * Whether every chunk is on the heap
+   */
+  boolean onHeap() {
+    for (ByteBuffer chunk : this.chunks) {
+      if (chunk.isDirect()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * This content with every chunk off-heap, copying only the chunks that
+   * aren't already
+   */
+  ChunkedContent offHeap() {
+    List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(this.chunks.length);
+    boolean copied = false;
+    for (ByteBuffer chunk : this.chunks) {
+      if (chunk.isDirect()) {
+        chunks.add(chunk);
+      } else {
+        chunks.add(DirectContent.copyOf(chunk).bytes());
+        copied = true;
+      }
+    }
+    return copied ? new ChunkedContent(chunks) : this;
+  }
+
+  /**
+   * Number of chunks the content is made of
+   */
+  int chunks() {
+    return this.chunks.length;
+  }
+
+  @Override
+  public int size() {
+    return this.ends.length == 0 ? 0 : this.ends[this.ends.length - 1];
+  }
+
+  @Override
+  public ByteBuffer bytes() {
+    if (this.chunks.length == 1) {
+      return this.chunks[0].duplicate();
+    }
+    ByteBuffer j = this.joined;
+    if (j == null) {
+      j = join(Arrays.asList(this.chunks), size());
+      this.joined = j;
+    }
+    return j.duplicate();
+  }
+
+  /**
+   * Copies straight out of the chunks, without joining them
+   */
+  @Override
+  public int read(int offset, ByteBuffer dst) {
+    if (offset < 0) {
+      throw new IndexOutOfBoundsException("Offset " + offset + " is negative");
+    }
+    if (offset >= size()) {
+      return -1;
+    }
+    int i = Arrays.binarySearch(this.ends, offset);
+    i = i < 0 ? -i - 1 : i + 1;
+    int copied = 0;
+    for (int start = i == 0 ? 0 : this.ends[i - 1]; i < this.chunks.length && dst.hasRemaining();
+        start = this.ends[i++]) {
+      int from = Math.max(offset, start) - start;
+      int length = Math.min(this.chunks[i].limit() - from, dst.remaining());
+      dst.put(slice(this.chunks[i], from, from + length));
+      copied += length;
+    }
+    return copied;
+  }
+
+  /**
+   * Views of the chunks themselves, so the range is never joined
+   */
+  @Override
+  public void views(int offset, int length, List<ByteBuffer> out) {
+    if (offset < 0 || length < 0 || offset + length > size()) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside 0.." + size());
+    }
+    range(offset, offset + length, out);
+  }
+
+  @Override
+  public String asString() {
+    String t = this.text;
+    if (t == null) {
+      t = StandardCharsets.UTF_8.decode(bytes()).toString();
+      this.text = t;
+    }
+    return t;
+  }
+}
@@ -1,3 +1,5 @@
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.Optional;
 
@@ -28,10 +30,9 @@ public class Client implements Runnable {
       String temp = f.read();
       printinfo("READ ---------", filename, mode, temp, i);
       if (isWrite) {
-        String tempWrite = temp + temp.substring(0, 1);
-        // Write to file
-        f.write(tempWrite);
-        printinfo("WROTE --------", filename, mode, tempWrite, i);
+        // Append to file, which only hands the appended character to the server
+        f.append(temp.substring(0, 1));
+        printinfo("WROTE --------", filename, mode, f.read(), i);
       }
       // Close file
       fs.close(f);
@@ -40,11 +41,21 @@ public class Client implements Runnable {
   }
 
   public void printinfo(String info, String filename, Mode mode, String content, int i) {
+    // Virtual threads are unnamed by default
+    String name = Thread.currentThread().getName();
+    if (name.isEmpty()) {
+      name = "Virtual-" + Thread.currentThread().getId();
+    }
     System.out.println(
-        Thread.currentThread().getName() + "-" + i + " " + mode + " " + info + " from " + filename + " : " + content);
+        name + "-" + i + " " + mode + " " + info + " from " + filename + " : " + content);
   }
 
-  public static void main(String[] args) {
+  // Pass "virtual" to run each client on a virtual thread (JDK 21+)
+  public static void main(String[] args) throws InterruptedException {
+    ThreadMode threadMode = ThreadMode.PLATFORM;
+    if (args.length > 0 && args[0].equals("virtual")) {
+      threadMode = ThreadMode.VIRTUAL;
+    }
 
     // Set up file server with 5 initial files
     MyFileServer fs = new MyFileServer();
@@ -56,9 +67,13 @@ public class Client implements Runnable {
 
     // Set up 10 threads to do their 10 random operations ... 100 operations in
     // total
+    List<Thread> clients = new ArrayList<Thread>();
     for (int i = 0; i < 10; i++) {
-      Thread client = new Thread(new Client(fs));
-      client.start();
+      clients.add(threadMode.start(new Client(fs)));
+    }
+    // Virtual threads are daemon threads, so wait for them before exiting
+    for (Thread client : clients) {
+      client.join();
     }
   }
 }
\ No newline at end of file
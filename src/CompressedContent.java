@@ -0,0 +1,59 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * CompressedContent is content kept compressed with Lz4, which a cold file's
+ * content is swapped for by Tiering (see MyFileServer.tier()). It can be read
+ * like any other Content, decompressing on every use, but the server swaps
+ * it back for inflate() when the file is next opened, so that only the first
+ * open after a file has gone cold pays for decompressing it.
+ */
+final class CompressedContent implements Content {
+  private final byte[] compressed;
+  private final int size;
+  // Whether the content was off-heap, and goes back there when inflated
+  private final boolean direct;
+
+  private CompressedContent(byte[] compressed, int size, boolean direct) {
+    this.compressed = compressed;
+    this.size = size;
+    this.direct = direct;
+  }
+
+  static CompressedContent compress(Content content) {
+    ByteBuffer bytes = content.bytes();
+    byte[] raw = new byte[bytes.remaining()];
+    bytes.get(raw);
+    return new CompressedContent(Lz4.compress(raw), raw.length, bytes.isDirect());
+  }
+
+  /**
+   * The content decompressed, where it was kept before compressing
+   */
+  Content inflate() {
+    byte[] raw = Lz4.decompress(this.compressed, this.size);
+    return this.direct ? DirectContent.copyOf(ByteBuffer.wrap(raw)) : HeapContent.wrap(raw);
+  }
+
+  /**
+   * Bytes the content takes compressed
+   */
+  int compressedSize() {
+    return this.compressed.length;
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  @Override
+  public ByteBuffer bytes() {
+    return ByteBuffer.wrap(Lz4.decompress(this.compressed, this.size)).asReadOnlyBuffer();
+  }
+
+  @Override
+  public String asString() {
+    return new String(Lz4.decompress(this.compressed, this.size), StandardCharsets.UTF_8);
+  }
+}
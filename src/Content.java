@@ -0,0 +1,68 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Content is the bytes of one committed version of a file, as kept by a
+ * ContentStore. It never changes once made, so it can be shared freely between
+ * the server and any number of File handles without copying.
+ *
+ * Text is encoded as UTF-8.
+ */
+public interface Content {
+
+  /**
+   * Length of the content in bytes
+   */
+  int size();
+
+  /**
+   * A read-only view of the bytes, from position 0 to size(). Each call gets
+   * its own view, so callers can move its position freely.
+   */
+  ByteBuffer bytes();
+
+  /**
+   * Copies bytes from offset into dst, as many as dst has room for or as there
+   * are, returning how many were copied, or -1 if offset is at or past the end.
+   * Only the bytes copied are touched, so reading a range of a large file
+   * costs as much as the range.
+   */
+  default int read(int offset, ByteBuffer dst) {
+    if (offset < 0) {
+      throw new IndexOutOfBoundsException("Offset " + offset + " is negative");
+    }
+    ByteBuffer bytes = bytes();
+    if (offset >= bytes.limit()) {
+      return -1;
+    }
+    int length = Math.min(bytes.limit() - offset, dst.remaining());
+    bytes.limit(offset + length);
+    bytes.position(offset);
+    dst.put(bytes);
+    return length;
+  }
+
+  /**
+   * Adds read-only views of the length bytes from offset to out, in order,
+   * without copying them, for writing straight to a channel. They share the
+   * content's memory, so off-heap content (direct or memory-mapped) goes to a
+   * socket in a gathering write without ever being copied onto the heap.
+   */
+  default void views(int offset, int length, List<ByteBuffer> out) {
+    if (offset < 0 || length < 0 || offset + length > size()) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside 0.." + size());
+    }
+    if (length == 0) {
+      return;
+    }
+    ByteBuffer bytes = bytes();
+    bytes.limit(offset + length);
+    bytes.position(offset);
+    out.add(bytes.slice());
+  }
+
+  /**
+   * The content decoded as text
+   */
+  String asString();
+}
@@ -0,0 +1,389 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ContentCache keeps the decoded text of recently read files, so reading a
+ * file whose content is off-heap or on disk (DirectStore, MappedStore) doesn't
+ * decode it all again every time (see MyFileServer.cache()). Entries are
+ * keyed by filename and hold the text of one version, so a reader of any other
+ * version misses, and a writer's commit drops the file's entry.
+ *
+ * The cache is bounded by weight, the approximate bytes of text it holds, and
+ * what to keep is decided by W-TinyLFU. New entries go into a small LRU
+ * window (WINDOW of the capacity), and when they fall out of it they only get
+ * into the main space, a segmented LRU of probation and protected entries, if
+ * they have been used more often than the probation entry that would be
+ * evicted to make room. How often each file has been used is estimated by a
+ * count-min sketch of 4-bit counters, halved every so often so old popularity
+ * fades. Files read once, as a scan over everything does, then pass through
+ * the window without pushing out the files that are read all the time.
+ *
+ * Lookups are lock-free reads of a ConcurrentHashMap. The LRU order is kept
+ * under one lock, which a hit only tries for: if another thread holds it the
+ * hit just isn't recorded, which costs a little accuracy rather than making
+ * readers queue. Inserts and invalidations wait for it.
+ *
+ * @author jamesjarvis
+ */
+public class ContentCache {
+
+  private static final double WINDOW = 0.01;
+  private static final double PROTECTED = 0.8;
+  // Roughly what an entry costs besides its text
+  private static final int OVERHEAD = 96;
+
+  private static final byte IN_WINDOW = 0;
+  private static final byte IN_PROBATION = 1;
+  private static final byte IN_PROTECTED = 2;
+  private static final byte REMOVED = 3;
+
+  /**
+   * An entry, and its place in one of the LRU lists
+   */
+  private static final class Node {
+    final String filename;
+    final long version;
+    final String text;
+    final int weight;
+    byte queue;
+    Node prev;
+    Node next;
+
+    Node(String filename, long version, String text, int weight) {
+      this.filename = filename;
+      this.version = version;
+      this.text = text;
+      this.weight = weight;
+    }
+  }
+
+  /**
+   * A doubly linked LRU list, least recently used first, with its total weight
+   */
+  private static final class Queue {
+    final Node head = new Node(null, 0, null, 0);
+    long weight;
+
+    Queue() {
+      this.head.prev = this.head;
+      this.head.next = this.head;
+    }
+
+    Node first() {
+      return this.head.next == this.head ? null : this.head.next;
+    }
+
+    void add(Node node) {
+      node.prev = this.head.prev;
+      node.next = this.head;
+      this.head.prev.next = node;
+      this.head.prev = node;
+      this.weight += node.weight;
+    }
+
+    void remove(Node node) {
+      node.prev.next = node.next;
+      node.next.prev = node.prev;
+      node.prev = null;
+      node.next = null;
+      this.weight -= node.weight;
+    }
+  }
+
+  /**
+   * Estimates how often each key has been used, in 4-bit counters (16 to a
+   * long) with four hashed counters per key, taking the smallest
+   */
+  private static final class FrequencySketch {
+    private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L };
+    private final long[] table;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int counters) {
+      int size = Integer.highestOneBit(Math.max(64, counters - 1) << 1);
+      this.table = new long[size / 16];
+      this.counterMask = size - 1;
+      this.sampleSize = 10 * size / 16;
+    }
+
+    private int index(int hash, int i) {
+      long h = (hash + SEEDS[i]) * SEEDS[i];
+      h += h >>> 32;
+      return (int) h & this.counterMask;
+    }
+
+    private int counter(int index) {
+      return (int) (this.table[index >>> 4] >>> ((index & 15) << 2)) & 0xf;
+    }
+
+    int frequency(int hash) {
+      int frequency = 15;
+      for (int i = 0; i < 4; i++) {
+        frequency = Math.min(frequency, counter(index(hash, i)));
+      }
+      return frequency;
+    }
+
+    void increment(int hash) {
+      for (int i = 0; i < 4; i++) {
+        int index = index(hash, i);
+        if (counter(index) < 15) {
+          this.table[index >>> 4] += 1L << ((index & 15) << 2);
+        }
+      }
+      if (++this.additions == this.sampleSize) {
+        // Halve every counter, so what was popular long ago counts for less
+        for (int i = 0; i < this.table.length; i++) {
+          this.table[i] = (this.table[i] >>> 1) & 0x7777777777777777L;
+        }
+        this.additions /= 2;
+      }
+    }
+  }
+
+  private final long capacity;
+  private final long windowCapacity;
+  private final long protectedCapacity;
+  private final ConcurrentHashMap<String, Node> entries;
+  private final ReentrantLock policy;
+  private final Queue window;
+  private final Queue probation;
+  private final Queue protectedQueue;
+  private final FrequencySketch sketch;
+  private final LongAdder hits;
+  private final LongAdder misses;
+  private final LongAdder evictions;
+  private final LongAdder rejections;
+
+  /**
+   * A cache holding at most capacity bytes of text, sized for files of
+   * around averageSize bytes (which only decides how many files it keeps
+   * usage counts for)
+   */
+  public ContentCache(long capacity, int averageSize) {
+    this.capacity = capacity;
+    this.windowCapacity = Math.max(1, (long) (capacity * WINDOW));
+    this.protectedCapacity = (long) ((capacity - this.windowCapacity) * PROTECTED);
+    this.entries = new ConcurrentHashMap<String, Node>();
+    this.policy = new ReentrantLock();
+    this.window = new Queue();
+    this.probation = new Queue();
+    this.protectedQueue = new Queue();
+    long files = capacity / Math.max(1, averageSize + OVERHEAD);
+    this.sketch = new FrequencySketch((int) Math.min(1 << 26, Math.max(1024, files * 4)));
+    this.hits = new LongAdder();
+    this.misses = new LongAdder();
+    this.evictions = new LongAdder();
+    this.rejections = new LongAdder();
+  }
+
+  /**
+   * The text of the given version of filename, decoded from content (which
+   * must be that version) and kept if it isn't cached already
+   */
+  String read(String filename, long version, Content content) {
+    Node node = this.entries.get(filename);
+    if (node != null && node.version == version) {
+      this.hits.increment();
+      if (this.policy.tryLock()) {
+        try {
+          touch(node);
+        } finally {
+          this.policy.unlock();
+        }
+      }
+      return node.text;
+    }
+    this.misses.increment();
+    String text = content.asString();
+    add(filename, version, text, content.size() + OVERHEAD);
+    return text;
+  }
+
+  /**
+   * Drops whatever is cached for filename, once a new version is committed
+   */
+  void invalidate(String filename) {
+    if (!this.entries.containsKey(filename)) {
+      return;
+    }
+    this.policy.lock();
+    try {
+      Node node = this.entries.remove(filename);
+      if (node != null) {
+        unlink(node);
+      }
+    } finally {
+      this.policy.unlock();
+    }
+  }
+
+  private void add(String filename, long version, String text, int weight) {
+    if (weight > this.capacity - this.windowCapacity) {
+      return;
+    }
+    Node node = new Node(filename, version, text, weight);
+    this.policy.lock();
+    try {
+      this.sketch.increment(filename.hashCode());
+      Node previous = this.entries.get(filename);
+      if (previous != null) {
+        if (previous.version > version) {
+          // A reader of an old version mustn't push out the latest one
+          return;
+        }
+        unlink(previous);
+      }
+      this.entries.put(filename, node);
+      node.queue = IN_WINDOW;
+      this.window.add(node);
+      evict();
+    } finally {
+      this.policy.unlock();
+    }
+  }
+
+  /**
+   * Records a hit on node, under the lock
+   */
+  private void touch(Node node) {
+    this.sketch.increment(node.filename.hashCode());
+    switch (node.queue) {
+    case IN_WINDOW:
+      this.window.remove(node);
+      this.window.add(node);
+      break;
+    case IN_PROBATION:
+      this.probation.remove(node);
+      node.queue = IN_PROTECTED;
+      this.protectedQueue.add(node);
+      while (this.protectedQueue.weight > this.protectedCapacity) {
+        Node demoted = this.protectedQueue.first();
+        this.protectedQueue.remove(demoted);
+        demoted.queue = IN_PROBATION;
+        this.probation.add(demoted);
+      }
+      break;
+    case IN_PROTECTED:
+      this.protectedQueue.remove(node);
+      this.protectedQueue.add(node);
+      break;
+    default:
+      // Evicted or invalidated since it was looked up
+    }
+  }
+
+  /**
+   * Moves what has fallen out of the window into the main space, each only if
+   * it is used more often than the entries it would push out
+   */
+  private void evict() {
+    long mainCapacity = this.capacity - this.windowCapacity;
+    while (this.window.weight > this.windowCapacity) {
+      Node candidate = this.window.first();
+      this.window.remove(candidate);
+      boolean admitted = true;
+      while (this.probation.weight + this.protectedQueue.weight + candidate.weight > mainCapacity) {
+        Node victim = this.probation.first();
+        if (victim == null) {
+          victim = this.protectedQueue.first();
+        }
+        if (this.sketch.frequency(candidate.filename.hashCode()) > this.sketch.frequency(victim.filename
+            .hashCode())) {
+          remove(victim);
+          this.evictions.increment();
+        } else {
+          admitted = false;
+          break;
+        }
+      }
+      if (admitted) {
+        candidate.queue = IN_PROBATION;
+        this.probation.add(candidate);
+      } else {
+        candidate.queue = REMOVED;
+        this.entries.remove(candidate.filename, candidate);
+        this.rejections.increment();
+      }
+    }
+  }
+
+  private void remove(Node node) {
+    unlink(node);
+    this.entries.remove(node.filename, node);
+  }
+
+  private void unlink(Node node) {
+    switch (node.queue) {
+    case IN_WINDOW:
+      this.window.remove(node);
+      break;
+    case IN_PROBATION:
+      this.probation.remove(node);
+      break;
+    case IN_PROTECTED:
+      this.protectedQueue.remove(node);
+      break;
+    default:
+    }
+    node.queue = REMOVED;
+  }
+
+  public long hits() {
+    return this.hits.sum();
+  }
+
+  public long misses() {
+    return this.misses.sum();
+  }
+
+  /**
+   * Entries pushed out of the main space to make room
+   */
+  public long evictions() {
+    return this.evictions.sum();
+  }
+
+  /**
+   * Entries that fell out of the window without being let into the main space
+   */
+  public long rejections() {
+    return this.rejections.sum();
+  }
+
+  public double hitRatio() {
+    long hits = hits();
+    long total = hits + misses();
+    return total == 0 ? 0 : hits / (double) total;
+  }
+
+  /**
+   * Approximate bytes held right now
+   */
+  public long weight() {
+    this.policy.lock();
+    try {
+      return this.window.weight + this.probation.weight + this.protectedQueue.weight;
+    } finally {
+      this.policy.unlock();
+    }
+  }
+
+  public int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Starts the hit, miss, eviction and rejection counts again from zero
+   */
+  public void resetStats() {
+    this.hits.reset();
+    this.misses.reset();
+    this.evictions.reset();
+    this.rejections.reset();
+  }
+}
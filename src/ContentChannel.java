@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * ContentChannel reads one version of a file's content a buffer at a time,
+ * through Content.read(), so streaming a file never holds more of it than the
+ * caller's buffer. It is read-only and can be positioned anywhere in the
+ * content, like a FileChannel opened for reading.
+ *
+ * Being over an immutable Content, it carries on reading the version it was
+ * made from whatever is committed in the meantime.
+ */
+final class ContentChannel implements SeekableByteChannel {
+  private final Content content;
+  private long position;
+  private volatile boolean open;
+
+  ContentChannel(Content content) {
+    this.content = content;
+    this.open = true;
+  }
+
+  private void ensureOpen() throws ClosedChannelException {
+    if (!this.open) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws ClosedChannelException {
+    ensureOpen();
+    if (this.position >= this.content.size()) {
+      return -1;
+    }
+    int read = this.content.read((int) this.position, dst);
+    this.position += read;
+    return read;
+  }
+
+  @Override
+  public int write(ByteBuffer src) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public synchronized long position() throws ClosedChannelException {
+    ensureOpen();
+    return this.position;
+  }
+
+  @Override
+  public synchronized SeekableByteChannel position(long newPosition) throws ClosedChannelException {
+    ensureOpen();
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("Position " + newPosition + " is negative");
+    }
+    this.position = newPosition;
+    return this;
+  }
+
+  @Override
+  public long size() throws ClosedChannelException {
+    ensureOpen();
+    return this.content.size();
+  }
+
+  @Override
+  public SeekableByteChannel truncate(long size) {
+    throw new NonWritableChannelException();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return this.open;
+  }
+
+  @Override
+  public void close() {
+    this.open = false;
+  }
+}
@@ -0,0 +1,56 @@
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ContentStore decides where MyFileServer keeps the content of its files.
+ *
+ * Every version of a file's content is passed through store() before being
+ * committed, when the file is created (version 0) and whenever a writer closes
+ * it, and the server keeps whatever comes back. A writer that only appended
+ * or wrote ranges goes through apply() instead, with the changes it made. A
+ * store that outlives the server, like MappedStore, hands the files it already
+ * has to a new server through recover().
+ */
+public interface ContentStore {
+
+  /**
+   * Keeps content as the given version of filename, returning the stored copy
+   * (which may be the same object, if it is already in this store)
+   */
+  Content store(String filename, long version, Content content);
+
+  /**
+   * Keeps content as the given version of filename, where content is the
+   * previous version with deltas applied to it in order (as a ChunkedContent
+   * sharing the previous version's bytes). By default it is passed to store()
+   * like any other content. A store that can keep or log just the deltas
+   * overrides this, so a small change costs as much as the change and not the
+   * whole file.
+   */
+  default Content apply(String filename, long version, Content content, List<Delta> deltas) {
+    return store(filename, version, content);
+  }
+
+  /**
+   * The latest version of every file this store already held when it was
+   * opened, which a server starting up on it begins with
+   */
+  default Map<String, Version> recover() {
+    return Collections.emptyMap();
+  }
+
+  /**
+   * Whether content stored here survives a restart, once flush() has returned
+   */
+  default boolean persistent() {
+    return false;
+  }
+
+  /**
+   * Forces everything stored so far out to disk, if this store keeps anything
+   * there
+   */
+  default void flush() {
+  }
+}
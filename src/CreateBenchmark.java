@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CreateBenchmark measures how fast a server can be filled with files, and how
+ * much heap each file costs once it is there, comparing MyFileServer (a lock
+ * per file) with ShardedFileServer (locks only for open files).
+ *
+ * For each combination of parameters a fresh server is created and `threads`
+ * threads create `files` files between them, named by number, all with the
+ * same content string so that what's measured is the server's own cost per
+ * file (name, map entry, Version, Content wrapper and lock, if any). Heap in
+ * use is taken after a full GC before and after, and one row is printed with
+ * the create throughput and bytes per file.
+ *
+ *   java -Xmx4g CreateBenchmark server=my,sharded files=1000000,10000000
+ *
+ * server    my and/or sharded                (default my,sharded)
+ * files     number of files to create        (default 1000000,10000000)
+ * threads   number of creating threads       (default 1)
+ * strategy  LockStrategy of the server       (default STATE)
+ * shards    shards of a ShardedFileServer    (default 64)
+ *
+ * Give the JVM enough heap for the largest run, 10M files need a few GB.
+ *
+ * @author jamesjarvis
+ */
+public class CreateBenchmark {
+
+  private static final String[] DEFAULTS = { "server=my,sharded", "files=1000000,10000000", "threads=1",
+      "strategy=STATE", "shards=64" };
+
+  // Keeps the last server reachable until its heap use has been measured
+  private static volatile FileServer filled;
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+
+    System.out.printf("%-8s %-9s %10s %7s %12s %12s%n", "server", "strategy", "files", "threads", "creates/s",
+        "bytes/file");
+
+    for (String server : params.get("server")) {
+      for (String strategy : params.get("strategy")) {
+        for (String files : params.get("files")) {
+          for (String threads : params.get("threads")) {
+            run(server, LockStrategy.valueOf(strategy), Integer.parseInt(files), Integer.parseInt(threads),
+                Integer.parseInt(params.get("shards")[0]));
+          }
+        }
+      }
+    }
+  }
+
+  private static void run(String server, LockStrategy strategy, int files, int threads, int shards)
+      throws InterruptedException {
+    filled = null;
+    long before = usedHeap();
+    FileServer fs = server.equals("sharded") ? new ShardedFileServer(shards, strategy, new HeapStore())
+        : new MyFileServer(strategy);
+    String content = "coheed and cambria";
+
+    List<Thread> creators = new ArrayList<Thread>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      final int first = t;
+      Thread creator = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = first; i < files; i += threads) {
+            fs.create(i + ".txt", content);
+          }
+        }
+      });
+      creators.add(creator);
+      creator.start();
+    }
+    for (Thread creator : creators) {
+      creator.join();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    filled = fs;
+    long after = usedHeap();
+    System.out.printf("%-8s %-9s %10d %7d %12.0f %12.1f%n", server, strategy, files, threads,
+        files * 1e9 / elapsed, (after - before) / (double) files);
+    filled = null;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,110 @@
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * DedupBenchmark measures what sharing duplicate content (see DedupStore)
+ * saves in memory, and costs in create and commit time, on files made from a
+ * few templates.
+ *
+ * For each combination of parameters a server is filled with `files` files of
+ * `size` bytes, each a copy of one of `templates` templates of random text,
+ * except for `unique` of them (a fraction) which have their file number added
+ * to the end, as if someone had edited them, and the heap in use is measured.
+ * Then every file is opened READWRITEABLE and its content replaced with the
+ * next template's, committing through close, and the heap is measured again.
+ * The heap after each and the time per create and per commit are printed,
+ * first for a server on a HeapStore, then for one on a DedupStore in front of
+ * a HeapStore, along with the blobs it keeps at the end.
+ *
+ *   java -Xmx4g DedupBenchmark files=100000 templates=10,100,1000
+ *
+ * files      number of files                       (default 100000)
+ * size       bytes per file                        (default 4096)
+ * templates  distinct contents files are made of   (default 100)
+ * unique     fraction of files edited after        (default 0.1)
+ *
+ * @author jamesjarvis
+ */
+public class DedupBenchmark {
+
+  private static final String[] DEFAULTS = { "files=100000", "size=4096", "templates=100", "unique=0.1" };
+
+  // Keeps the server reachable until its heap use has been measured
+  private static volatile MyFileServer filled;
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+
+    System.out.printf("%-6s %8s %6s %9s %7s %10s %10s %10s %10s %8s%n", "store", "files", "size",
+        "templates", "unique", "created MB", "create us", "commit MB", "commit us", "blobs");
+
+    for (String files : params.get("files")) {
+      for (String size : params.get("size")) {
+        for (String templates : params.get("templates")) {
+          for (String unique : params.get("unique")) {
+            for (boolean dedup : new boolean[] { false, true }) {
+              run(dedup, Integer.parseInt(files), Integer.parseInt(size), Integer.parseInt(templates),
+                  Double.parseDouble(unique));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private static void run(boolean dedup, int files, int size, int templates, double unique)
+      throws InterruptedException {
+    Random random = new Random(files + size + templates);
+    String[] texts = new String[templates];
+    for (int t = 0; t < templates; t++) {
+      texts[t] = text(random, size);
+    }
+    int edited = (int) Math.round(1 / Math.max(unique, 1e-9));
+
+    filled = null;
+    long empty = usedHeap();
+    DedupStore store = dedup ? new DedupStore(new HeapStore()) : null;
+    MyFileServer fs = dedup ? new MyFileServer(LockStrategy.STATE, store) : new MyFileServer();
+    long start = System.nanoTime();
+    for (int i = 0; i < files; i++) {
+      String text = texts[i % templates];
+      // Made by the caller, as a new String each time
+      fs.create(i + ".txt", i % edited == 0 ? text + i : new String(text.toCharArray()));
+    }
+    long created = System.nanoTime() - start;
+    filled = fs;
+    long createdHeap = usedHeap() - empty;
+
+    start = System.nanoTime();
+    for (int i = 0; i < files; i++) {
+      File file = fs.open(i + ".txt", Mode.READWRITEABLE).get();
+      file.write(new String(texts[(i + 1) % templates].toCharArray()));
+      fs.close(file);
+    }
+    long committed = System.nanoTime() - start;
+
+    filled = fs;
+    long heap = usedHeap() - empty;
+    System.out.printf("%-6s %8d %6d %9d %7.2f %10.1f %10.2f %10.1f %10.2f %8s%n", dedup ? "dedup" : "heap",
+        files, size, templates, unique, createdHeap / 1e6, created / 1e3 / files, heap / 1e6,
+        committed / 1e3 / files, dedup ? Integer.toString(store.blobs()) : "-");
+    filled = null;
+  }
+
+  private static String text(Random random, int size) {
+    StringBuilder text = new StringBuilder(size);
+    while (text.length() < size) {
+      text.append((char) ('a' + random.nextInt(26)));
+    }
+    return text.toString();
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
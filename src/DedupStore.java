@@ -0,0 +1,207 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * DedupStore keeps each distinct content in memory once, however many files
+ * have it, in front of another ContentStore. Every version is still handed to
+ * the inner store, so one that persists files has all of them; what is shared
+ * is the Content the server keeps and hands out.
+ *
+ * Content is addressed by its bytes: stored content goes in a table of blobs
+ * keyed by a hash of the bytes (compared in full on a match, so a collision
+ * can't mix up two files), and storing content that is already there hands
+ * back the blob's copy instead of the one just stored. Each blob counts the files
+ * whose latest version it is, which store() keeps up to date as writers
+ * commit, and it leaves the table once no file's latest version is it. Older
+ * versions still open by someone, or by a snapshot, keep their blob's bytes
+ * alive through the Content they hold, as they would anyway.
+ *
+ * Heap content is kept as its bytes alone, rather than the text it was made
+ * from as well. Every store hashes the whole content, so this pays off when
+ * many files share content, as files made from templates do, and costs a hash
+ * per commit otherwise.
+ *
+ * @author jamesjarvis
+ */
+public class DedupStore implements ContentStore {
+
+  /**
+   * Content's bytes as a table key, equal to any other with the same bytes
+   */
+  private static final class Key {
+    // Only ever swapped for other bytes that are the same
+    ByteBuffer bytes;
+    final int hash;
+
+    Key(ByteBuffer bytes) {
+      this.bytes = bytes;
+      this.hash = bytes.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).hash == this.hash && ((Key) other).bytes.equals(this.bytes);
+    }
+  }
+
+  /**
+   * One stored content and the number of files whose latest version it is,
+   * only changed inside the table's compute functions
+   */
+  private static final class Blob {
+    final Key key;
+    final Content content;
+    int references;
+
+    Blob(Key key, Content content) {
+      this.key = key;
+      this.content = content;
+    }
+  }
+
+  private final ContentStore inner;
+  private final ConcurrentHashMap<Key, Blob> blobs;
+  // The blob of each file's latest version
+  private final ConcurrentHashMap<String, Blob> latest;
+  private final LongAdder uniqueBytes;
+  private final LongAdder referencedBytes;
+
+  private final BiFunction<Key, Blob, Blob> release = new BiFunction<Key, Blob, Blob>() {
+    @Override
+    public Blob apply(Key key, Blob blob) {
+      if (--blob.references > 0) {
+        return blob;
+      }
+      DedupStore.this.uniqueBytes.add(-blob.content.size());
+      return null;
+    }
+  };
+
+  public DedupStore(ContentStore inner) {
+    this.inner = inner;
+    this.blobs = new ConcurrentHashMap<Key, Blob>();
+    this.latest = new ConcurrentHashMap<String, Blob>();
+    this.uniqueBytes = new LongAdder();
+    this.referencedBytes = new LongAdder();
+  }
+
+  @Override
+  public Content store(String filename, long version, Content content) {
+    Key key = new Key(content.bytes());
+    // Heap content as bytes only, and chunks joined once rather than on every
+    // bytes(), unless the bytes are kept already and this copy is thrown away
+    boolean kept = this.blobs.containsKey(key);
+    Content unique = !kept && (content instanceof HeapContent || content instanceof ChunkedContent)
+        ? HeapContent.copyOf(key.bytes) : content;
+    return commit(filename, key, this.inner.store(filename, version, unique));
+  }
+
+  /**
+   * The inner store is handed the changes, so one that logs just the changes
+   * still does, and the result is shared like any other content
+   */
+  @Override
+  public Content apply(String filename, long version, Content content, List<Delta> deltas) {
+    Key key = new Key(content.bytes());
+    Content stored = this.inner.apply(filename, version, content, deltas);
+    if (stored instanceof ChunkedContent && ((ChunkedContent) stored).onHeap() && !this.blobs.containsKey(key)) {
+      // The chunks and their joined copy would both be kept otherwise
+      stored = HeapContent.copyOf(key.bytes);
+    }
+    return commit(filename, key, stored);
+  }
+
+  /**
+   * Makes the blob with key's bytes filename's latest, returning its content
+   * to share, which is stored if there was no such blob yet. The inner store
+   * has already been written to, outside the table, so nothing slow is done
+   * while a part of the table is locked.
+   */
+  private Content commit(String filename, Key key, Content stored) {
+    Blob blob = acquire(key, stored);
+    Blob previous = this.latest.put(filename, blob);
+    this.referencedBytes.add(blob.content.size());
+    if (previous != null) {
+      this.referencedBytes.add(-previous.content.size());
+      this.blobs.computeIfPresent(previous.key, this.release);
+    }
+    return blob.content;
+  }
+
+  /**
+   * The blob with key's bytes, made of stored if there wasn't one, with one
+   * more reference
+   */
+  private Blob acquire(Key key, Content stored) {
+    return this.blobs.compute(key, new BiFunction<Key, Blob, Blob>() {
+      @Override
+      public Blob apply(Key key, Blob blob) {
+        if (blob == null) {
+          // The table keeps this key, so it mustn't keep the caller's bytes
+          key.bytes = stored.bytes();
+          blob = new Blob(key, stored);
+          DedupStore.this.uniqueBytes.add(stored.size());
+        }
+        blob.references++;
+        return blob;
+      }
+    });
+  }
+
+  /**
+   * What the inner store recovers, with files that have the same content
+   * sharing one copy of it
+   */
+  @Override
+  public Map<String, Version> recover() {
+    Map<String, Version> recovered = new HashMap<String, Version>();
+    for (Map.Entry<String, Version> file : this.inner.recover().entrySet()) {
+      Version version = file.getValue();
+      Content shared = commit(file.getKey(), new Key(version.content.bytes()), version.content);
+      recovered.put(file.getKey(), new Version(version.number, shared));
+    }
+    return recovered;
+  }
+
+  @Override
+  public boolean persistent() {
+    return this.inner.persistent();
+  }
+
+  @Override
+  public void flush() {
+    this.inner.flush();
+  }
+
+  /**
+   * Number of distinct contents kept
+   */
+  public int blobs() {
+    return this.blobs.size();
+  }
+
+  /**
+   * Bytes of distinct content kept
+   */
+  public long uniqueBytes() {
+    return this.uniqueBytes.sum();
+  }
+
+  /**
+   * Bytes of content over every file's latest version, as they would take
+   * without deduplication
+   */
+  public long referencedBytes() {
+    return this.referencedBytes.sum();
+  }
+}
@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Delta is one change made through a File handle by append() or a ranged
+ * write(): bytes written at an offset, overwriting what was there and
+ * extending the content if they run past its end. An append is just a Delta at
+ * the offset the content ended at.
+ *
+ * A writer's Deltas, in order, are what a ContentStore is given on close, so
+ * that it only has to deal with the bytes that changed.
+ */
+final class Delta {
+  final int offset;
+  // Read-only, and owned by the Delta
+  final ByteBuffer bytes;
+
+  Delta(int offset, ByteBuffer bytes) {
+    this.offset = offset;
+    this.bytes = bytes;
+  }
+
+  /**
+   * The deltas as offset | length | bytes, one after the other, for logging
+   */
+  static ByteBuffer encode(List<Delta> deltas) {
+    int length = 0;
+    for (Delta delta : deltas) {
+      length += 8 + delta.bytes.remaining();
+    }
+    ByteBuffer encoded = ByteBuffer.allocate(length);
+    for (Delta delta : deltas) {
+      encoded.putInt(delta.offset);
+      encoded.putInt(delta.bytes.remaining());
+      encoded.put(delta.bytes.duplicate());
+    }
+    encoded.flip();
+    return encoded;
+  }
+
+  /**
+   * Applies deltas encoded by encode() to base, sharing the encoded bytes
+   * rather than copying them. Returns null if they don't fit base, or aren't
+   * encoded deltas at all.
+   */
+  static Content decode(Content base, ByteBuffer encoded) {
+    ChunkedContent content = ChunkedContent.of(base);
+    ByteBuffer remaining = encoded.duplicate();
+    while (remaining.hasRemaining()) {
+      if (remaining.remaining() < 8) {
+        return null;
+      }
+      int offset = remaining.getInt();
+      int length = remaining.getInt();
+      if (offset < 0 || offset > content.size() || length < 0 || length > remaining.remaining()) {
+        return null;
+      }
+      ByteBuffer bytes = remaining.slice();
+      bytes.limit(length);
+      content = content.write(offset, bytes.asReadOnlyBuffer());
+      remaining.position(remaining.position() + length);
+    }
+    return content;
+  }
+}
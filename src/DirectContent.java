@@ -0,0 +1,64 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * DirectContent keeps content in a direct (off-heap) ByteBuffer. Only a small
+ * wrapper object lives on the heap however large the content is, so stored
+ * content doesn't add to the garbage collector's work.
+ *
+ * The memory is given back once the content is no longer referenced by the
+ * server or any File handle, when the garbage collector frees the buffer.
+ * Total size is capped by -XX:MaxDirectMemorySize rather than the heap.
+ */
+final class DirectContent implements Content {
+  private final ByteBuffer buffer;
+  // Whether the buffer was filled by someone else, see wrap()
+  private final boolean wrapped;
+
+  private DirectContent(ByteBuffer buffer, boolean wrapped) {
+    this.buffer = buffer;
+    this.wrapped = wrapped;
+  }
+
+  /**
+   * Copies the remaining bytes of source off-heap, leaving the source's
+   * position where it was
+   */
+  public static DirectContent copyOf(ByteBuffer source) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(source.remaining());
+    buffer.put(source.duplicate());
+    buffer.flip();
+    return new DirectContent(buffer.asReadOnlyBuffer(), false);
+  }
+
+  /**
+   * Content backed by a read-only view of a direct buffer someone else has
+   * already filled (such as a slice of a memory-mapped file), without copying
+   */
+  static DirectContent wrap(ByteBuffer view) {
+    return new DirectContent(view, true);
+  }
+
+  /**
+   * Whether this is a view of someone else's buffer (see wrap()), which for
+   * MappedStore's content is a file on disk rather than memory of its own
+   */
+  boolean wrapped() {
+    return this.wrapped;
+  }
+
+  @Override
+  public int size() {
+    return this.buffer.limit();
+  }
+
+  @Override
+  public ByteBuffer bytes() {
+    return this.buffer.duplicate();
+  }
+
+  @Override
+  public String asString() {
+    return StandardCharsets.UTF_8.decode(bytes()).toString();
+  }
+}
@@ -0,0 +1,19 @@
+/**
+ * DirectStore keeps file content off-heap, as DirectContent, so the heap stays
+ * the same size however much content the server holds. Worth it for large
+ * files, which would otherwise make garbage collection pauses longer.
+ */
+public class DirectStore implements ContentStore {
+
+  @Override
+  public Content store(String filename, long version, Content content) {
+    if (content instanceof DirectContent) {
+      return content;
+    }
+    // Only copies off-heap the chunks a writer changed
+    if (content instanceof ChunkedContent) {
+      return ((ChunkedContent) content).offHeap();
+    }
+    return DirectContent.copyOf(content.bytes());
+  }
+}
@@ -2,20 +2,89 @@
 // School of Computing, University of Kent
 // Dominic Orchard & Laura Bocchi 2018-2020
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
 // Captures the client's view of a file
 public class File {
 
 	private Mode mode;
-	private String content;
+	private Content content;
+	// the server's frame to fetch the content from on first use, for a file
+	// opened under a lock (null once fetched)
+	private FileFrame frame;
 	private String filename;
+	private long version;
+	// the appends and ranged writes made since the content was last replaced
+	// as a whole, in order (null if there are none)
+	private List<Delta> deltas;
+	private boolean replaced;
+	private boolean closed;
+	// the handle's lease, if the server leases handles (see Leases)
+	Leases.Lease lease;
+	// the server's cache of decoded content, if it has one (see ContentCache)
+	ContentCache cache;
 
 	// constructor
 	public File(String filename, String content, Mode mode) {
+		this(filename, new HeapContent(content), mode, 0);
+	}
+
+	// constructor, for a file opened at a given committed version of the server's content
+	File(String filename, Content content, Mode mode, long version) {
 		this.content = content;
 		this.filename = filename;
 		this.mode = mode;
+		this.version = version;
+	}
+
+
+	// constructor, for a file opened under the frame's lock, whose content
+	// isn't fetched until it is used
+	File(String filename, FileFrame frame, Mode mode) {
+		this.frame = frame;
+		this.filename = filename;
+		this.mode = mode;
 	}
 
+	// fetches the committed content on first use -- while the lock is held it
+	// can't change, so this sees the same version as fetching it on open would
+	private Content fetched() {
+		if (this.frame != null) {
+			Version committed = this.frame.version;
+			// if the lease ran out the lock may be someone else's by now, so the
+			// version pinned before it was given back is the one to see (read
+			// after the frame's, so a later commit can't slip in between)
+			Leases.Lease expired = this.lease;
+			if (expired != null && expired.pinned != null) {
+				committed = expired.pinned;
+			}
+			this.content = committed.content;
+			this.version = committed.number;
+			this.frame = null;
+		}
+		return this.content;
+	}
+
+	// fetches the content now if it hasn't been, for when the lock is about to
+	// be given back, so the handle keeps seeing the version it was opened at
+	void pin() {
+		fetched();
+	}
+
+	// marks the handle closed, returning false if it already was
+	boolean closing() {
+		if (this.closed) {
+			return false;
+		}
+		this.closed = true;
+		return true;
+	}
 
 	// getter
 	public String filename() {
@@ -27,20 +96,129 @@ public class File {
 		return this.mode;
 	}
 
-	// Read the file
+	// getter -- the committed version of the content this file was opened at
+	public long version() {
+		fetched();
+		return this.version;
+	}
+
+	// getter -- the content as the server will see it on close
+	Content content() {
+		return fetched();
+	}
+
+	// whether anything was written, so the server has something to commit
+	boolean changed() {
+		return this.replaced || this.deltas != null;
+	}
+
+	// getter -- the changes to hand to the server on close, or null if the
+	// content was replaced as a whole (or never changed)
+	List<Delta> deltas() {
+		return this.replaced ? null : this.deltas;
+	}
+
+	// Size of the content in bytes
+	public int size() {
+		return fetched().size();
+	}
+
+	// Read the file -- through the server's cache if it has one and nothing
+	// has been written, in which case the content is a committed version
 	public String read() {
-		return this.content;
+		Content content = fetched();
+		if (this.cache != null && !changed()) {
+			return this.cache.read(this.filename, this.version, content);
+		}
+		return content.asString();
+	}
+
+	// Read the file as bytes, through a read-only view (no copy is made)
+	public ByteBuffer readBytes() {
+		return fetched().bytes();
+	}
+
+	// Read up to length bytes from a byte offset, copying just those bytes
+	// (fewer if the file ends first, and none if offset is at or past the end)
+	public ByteBuffer read(int offset, int length) {
+		if (offset < 0 || length < 0) {
+			throw new IndexOutOfBoundsException("Offset " + offset + " or length " + length + " is negative");
+		}
+		ByteBuffer range = ByteBuffer.allocate(Math.max(0, Math.min(length, fetched().size() - offset)));
+		if (range.hasRemaining()) {
+			fetched().read(offset, range);
+		}
+		range.flip();
+		return range;
+	}
+
+	// A read-only channel over the content as this handle sees it now, which
+	// reads it a buffer at a time rather than all at once and can be positioned
+	// anywhere in it
+	public SeekableByteChannel channel() {
+		return new ContentChannel(fetched());
+	}
+
+	// A stream over the content as this handle sees it now, see channel()
+	public InputStream inputStream() {
+		return Channels.newInputStream(channel());
 	}
 
 	// Write the file if it has the write mode
 	// return true if succesful, otherwise false (non writeable file)
 	public boolean write(String content) {
 		if (this.mode == Mode.READWRITEABLE) {
-			this.content = content;
+			fetched();
+			this.content = new HeapContent(content);
+			this.replaced = true;
 			return true;
 		} else {
 			return false;
 		}
 	}
 
+	// Write the remaining bytes of content to the file if it has the write mode
+	// (they are copied, so the buffer can be reused straight away)
+	// return true if succesful, otherwise false (non writeable file)
+	public boolean write(ByteBuffer content) {
+		if (this.mode == Mode.READWRITEABLE) {
+			fetched();
+			this.content = HeapContent.copyOf(content);
+			this.replaced = true;
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	// Append content to the end of the file if it has the write mode. Only the
+	// appended bytes are kept and handed to the server, not the whole file.
+	// return true if succesful, otherwise false (non writeable file)
+	public boolean append(String content) {
+		return append(ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	// Append the remaining bytes of content to the file if it has the write mode
+	// return true if succesful, otherwise false (non writeable file)
+	public boolean append(ByteBuffer content) {
+		return write(fetched().size(), content);
+	}
+
+	// Write the remaining bytes of content at a byte offset if the file has the
+	// write mode, overwriting what was there and extending the file if they run
+	// past its end. The offset can be at most the file's size.
+	// return true if succesful, otherwise false (non writeable file)
+	public boolean write(int offset, ByteBuffer content) {
+		if (this.mode != Mode.READWRITEABLE) {
+			return false;
+		}
+		ByteBuffer copy = HeapContent.copyOf(content).bytes();
+		this.content = ChunkedContent.of(fetched()).write(offset, copy);
+		if (this.deltas == null) {
+			this.deltas = new ArrayList<Delta>();
+		}
+		this.deltas.add(new Delta(offset, copy));
+		return true;
+	}
+
 }
\ No newline at end of file
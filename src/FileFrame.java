@@ -2,13 +2,28 @@
 // School of Computing, University of Kent
 // Dominic Orchard & Laura Bocchi 2018-2020
 
-// For storing file information on the server (contains the content and the mode)
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+// For storing file information on the server (contains the content, the mode
+// and the lock guarding both, so one registry lookup finds everything)
 class FileFrame {
-	public String content;
+	// For swapping the content of a version for the same bytes kept another
+	// way (see Tiering) without losing a commit made in the meantime
+	static final AtomicReferenceFieldUpdater<FileFrame, Version> VERSION = AtomicReferenceFieldUpdater
+			.newUpdater(FileFrame.class, Version.class, "version");
+
+	// Latest committed content, replaced (never modified) when a writer closes,
+	// so that snapshot readers can read it without taking the lock
+	public volatile Version version;
 	public Mode mode;
+	public final ReadWriteLocker lock;
+	// When the file was last opened or closed, in Tiering sweeps (only kept
+	// while tiering is on, and racy, as Tiering checks the lock as well)
+	public int used;
 
-	public FileFrame(String content, Mode mode) {
-		this.content = content;
+	public FileFrame(Version version, Mode mode, ReadWriteLocker lock) {
+		this.version = version;
 		this.mode = mode;
+		this.lock = lock;
 	}
 }
\ No newline at end of file
@@ -2,8 +2,11 @@
 // School of Computing, University of Kent
 // Dominic Orchard & Laura Bocchi 2018-2020
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 // File server interface
 public interface FileServer {
@@ -12,12 +15,31 @@ public interface FileServer {
 	public void create(String filename, String content);
 
   // Attempt to open a file -- may block if the file is not available at that mode
-  // Returns an Optional.empty() if no such file exists
+  // Returns an Optional.empty() if no such file exists, or if the thread is
+  // interrupted while blocked (in which case its interrupt status is set)
+  // Opening in SNAPSHOT mode never blocks, and reads the last committed content
 	public Optional<File> open(String filename, Mode mode);
 
+  // Attempt to open a file without blocking
+  // Returns an Optional.empty() if no such file exists or it is not available at that mode right now
+	public Optional<File> tryOpen(String filename, Mode mode);
+
+  // Attempt to open a file -- blocks for at most the timeout if the file is not available at that mode
+  // Returns an Optional.empty() if no such file exists or the timeout elapses
+	public Optional<File> open(String filename, Mode mode, long timeout, TimeUnit unit) throws InterruptedException;
+
   // Close a file
   public void close(File file);
 
+  // Open several files at once, each in its given mode -- blocks until all of them are available
+  // Locks are taken in filename order, so openAll calls never deadlock with each other
+  // All or nothing: returns Optional.empty() (holding none of them) if any file doesn't exist,
+  // any mode can't be opened, or the thread is interrupted while blocked
+	public Optional<Map<String, File>> openAll(Map<String, Mode> files);
+
+  // Close several files at once
+  public void closeAll(Collection<File> files);
+
   // Check on the status of a file (the mode it is currently in)
   public Mode fileStatus(String filename);
 
@@ -0,0 +1,66 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HeapContent keeps content on the Java heap, as text, bytes, or both. Whichever
+ * it was made from is converted to the other on first use and then kept.
+ */
+final class HeapContent implements Content {
+  private volatile String text;
+  private volatile byte[] bytes;
+
+  public HeapContent(String text) {
+    this.text = text;
+  }
+
+  private HeapContent(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * Content made from a copy of the remaining bytes of buffer, leaving the
+   * buffer's position where it was
+   */
+  public static HeapContent copyOf(ByteBuffer buffer) {
+    byte[] copy = new byte[buffer.remaining()];
+    buffer.duplicate().get(copy);
+    return new HeapContent(copy);
+  }
+
+  /**
+   * Content made from bytes without copying them, so they mustn't be changed
+   * afterwards
+   */
+  static HeapContent wrap(byte[] bytes) {
+    return new HeapContent(bytes);
+  }
+
+  private byte[] encoded() {
+    byte[] b = this.bytes;
+    if (b == null) {
+      b = this.text.getBytes(StandardCharsets.UTF_8);
+      this.bytes = b;
+    }
+    return b;
+  }
+
+  @Override
+  public int size() {
+    return encoded().length;
+  }
+
+  @Override
+  public ByteBuffer bytes() {
+    return ByteBuffer.wrap(encoded()).asReadOnlyBuffer();
+  }
+
+  @Override
+  public String asString() {
+    String t = this.text;
+    if (t == null) {
+      t = new String(this.bytes, StandardCharsets.UTF_8);
+      this.text = t;
+    }
+    return t;
+  }
+}
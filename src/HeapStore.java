@@ -0,0 +1,18 @@
+/**
+ * HeapStore keeps file content on the Java heap, as HeapContent. It is the
+ * default, and the cheapest for small files.
+ */
+public class HeapStore implements ContentStore {
+
+  @Override
+  public Content store(String filename, long version, Content content) {
+    if (content instanceof HeapContent) {
+      return content;
+    }
+    // Only the chunks a writer changed are new, the rest are already here
+    if (content instanceof ChunkedContent && ((ChunkedContent) content).onHeap()) {
+      return content;
+    }
+    return HeapContent.copyOf(content.bytes());
+  }
+}
@@ -0,0 +1,87 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram is a log-linear latency histogram in the style of HdrHistogram.
+ *
+ * Every power of two is split into 16 linear sub-buckets, so any recorded value
+ * is reported to within about 6% of what it was. The buckets are allocated up
+ * front, which makes record() allocation-free and safe to call from any number
+ * of threads at once.
+ */
+class Histogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+  private final AtomicLongArray counts;
+
+  public Histogram() {
+    this.counts = new AtomicLongArray(BUCKETS);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB) {
+      return (int) Math.max(value, 0);
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BITS;
+    return shift * SUB + (int) (value >>> shift);
+  }
+
+  private static long lowestValueIn(int bucket) {
+    if (bucket < 2 * SUB) {
+      return bucket;
+    }
+    int shift = bucket / SUB - 1;
+    return (long) (bucket - shift * SUB) << shift;
+  }
+
+  public void record(long value) {
+    this.counts.getAndIncrement(bucketOf(value));
+  }
+
+  public long count() {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += this.counts.get(i);
+    }
+    return total;
+  }
+
+  /**
+   * The value that the given fraction (0.0 to 1.0) of recorded values are at or
+   * below, or 0 if nothing has been recorded
+   */
+  public long percentile(double fraction) {
+    long total = count();
+    if (total == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(fraction * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.counts.get(i);
+      if (seen >= target) {
+        return i + 1 < BUCKETS ? lowestValueIn(i + 1) - 1 : Long.MAX_VALUE;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  /**
+   * Adds every value recorded by other into this histogram
+   */
+  public void add(Histogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = other.counts.get(i);
+      if (c != 0) {
+        this.counts.getAndAdd(i, c);
+      }
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      this.counts.set(i, 0);
+    }
+  }
+}
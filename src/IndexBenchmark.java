@@ -0,0 +1,161 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * IndexBenchmark measures listing names through a NameIndex, against scanning
+ * and sorting a map's keys the way availableFiles() used to have to be used.
+ *
+ * The names are laid out as directories, `top` top-level directories each
+ * with `sub` subdirectories of `files` names, "d42/s7/f123" and so on. They
+ * are added to a NameIndex from `threads` threads, and the time that takes and
+ * the heap the index takes per name are printed. Then each listing is run
+ * `repeat` times, on randomly chosen directories, and its mean time printed:
+ *
+ *   root       the top-level directories, as children("", '/')
+ *   directory  a top-level directory's subdirectories, as children()
+ *   page       a page of `page` names from a random place in a subdirectory
+ *   stream     counting a top-level directory's names through stream()
+ *   scan       the page, by filtering a ConcurrentHashMap's keys and sorting
+ *
+ *   java -Xmx4g IndexBenchmark top=100 sub=100 files=1000
+ *
+ * top      top-level directories           (default 100)
+ * sub      subdirectories in each          (default 100)
+ * files    names in each subdirectory      (default 1000)
+ * threads  threads adding names            (default 4)
+ * page     names per page                  (default 100)
+ * repeat   times each listing is run       (default 100)
+ *
+ * @author jamesjarvis
+ */
+public class IndexBenchmark {
+
+  private static final String[] DEFAULTS = { "top=100", "sub=100", "files=1000", "threads=4", "page=100",
+      "repeat=100" };
+
+  // Keeps what is being measured reachable until its heap use has been measured
+  private static volatile Object kept;
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    int top = Integer.parseInt(params.get("top")[0]);
+    int sub = Integer.parseInt(params.get("sub")[0]);
+    int files = Integer.parseInt(params.get("files")[0]);
+    int threads = Integer.parseInt(params.get("threads")[0]);
+    int page = Integer.parseInt(params.get("page")[0]);
+    int repeat = Integer.parseInt(params.get("repeat")[0]);
+
+    String[] names = new String[top * sub * files];
+    int n = 0;
+    for (int f = 0; f < files; f++) {
+      for (int t = 0; t < top; t++) {
+        for (int s = 0; s < sub; s++) {
+          names[n++] = "d" + t + "/s" + s + "/f" + f;
+        }
+      }
+    }
+
+    long empty = usedHeap();
+    NameIndex index = new NameIndex();
+    long start = System.nanoTime();
+    fill(names, threads, index, null);
+    long added = System.nanoTime() - start;
+    kept = index;
+    long indexed = usedHeap() - empty;
+    System.out.printf("%d names added from %d threads in %.1fs (%.0f/s), %.1f bytes each in the index%n",
+        names.length, threads, added / 1e9, names.length / (added / 1e9), indexed / (double) names.length);
+
+    ConcurrentHashMap<String, Boolean> map = new ConcurrentHashMap<String, Boolean>();
+    fill(names, threads, null, map);
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int entries = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < repeat; i++) {
+      entries += index.children("", '/', null, Integer.MAX_VALUE).size();
+    }
+    report("root", start, repeat, entries);
+
+    entries = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < repeat; i++) {
+      entries += index.children("d" + random.nextInt(top) + "/", '/', null, Integer.MAX_VALUE).size();
+    }
+    report("directory", start, repeat, entries);
+
+    entries = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < repeat; i++) {
+      String directory = "d" + random.nextInt(top) + "/s" + random.nextInt(sub) + "/";
+      entries += index.list(directory, directory + "f" + random.nextInt(files), page).size();
+    }
+    report("page", start, repeat, entries);
+
+    entries = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < Math.max(1, repeat / 10); i++) {
+      entries += (int) index.stream("d" + random.nextInt(top) + "/").count();
+    }
+    report("stream", start, Math.max(1, repeat / 10), entries);
+
+    entries = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < Math.max(1, repeat / 10); i++) {
+      String directory = "d" + random.nextInt(top) + "/s" + random.nextInt(sub) + "/";
+      String after = directory + "f" + random.nextInt(files);
+      List<String> scanned = new ArrayList<String>();
+      for (String name : map.keySet()) {
+        if (name.startsWith(directory) && name.compareTo(after) > 0) {
+          scanned.add(name);
+        }
+      }
+      Collections.sort(scanned);
+      entries += Math.min(page, scanned.size());
+    }
+    report("scan", start, Math.max(1, repeat / 10), entries);
+    kept = null;
+  }
+
+  private static void fill(String[] names, int threads, NameIndex index, ConcurrentHashMap<String, Boolean> map)
+      throws InterruptedException {
+    List<Thread> fillers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      int first = t;
+      Thread filler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = first; i < names.length; i += threads) {
+            if (index != null) {
+              index.add(names[i]);
+            } else {
+              map.put(names[i], Boolean.TRUE);
+            }
+          }
+        }
+      });
+      fillers.add(filler);
+      filler.start();
+    }
+    for (Thread filler : fillers) {
+      filler.join();
+    }
+  }
+
+  private static void report(String listing, long start, int repeat, int entries) {
+    long mean = (System.nanoTime() - start) / repeat;
+    System.out.printf("%-10s %12.1fus %10d entries%n", listing, mean / 1e3, entries / repeat);
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,97 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LeaseBenchmark measures what leasing handles costs (see Leases) with
+ * millions of them outstanding at once.
+ *
+ * For each number of `handles`, a server is filled with that many files and
+ * each is opened READABLE and left open, with leases off and then on, to
+ * compare the cost of an open. With leases on, every handle is then renewed
+ * once, and then they are all left to run out, timing how long after their
+ * deadline the last one is reclaimed and how much CPU the timing wheel's
+ * thread spent doing it. One row is printed per run.
+ *
+ *   java -Xmx4g LeaseBenchmark handles=100000,1000000,4000000
+ *
+ * handles  handles open at once           (default 100000,1000000)
+ * ttl      lease time to live in ms       (default 2000)
+ *
+ * @author jamesjarvis
+ */
+public class LeaseBenchmark {
+
+  private static final String[] DEFAULTS = { "handles=100000,1000000", "ttl=2000" };
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    long ttl = Long.parseLong(params.get("ttl")[0]);
+
+    System.out.printf("%10s %14s %14s %12s %14s %14s%n", "handles", "open ns plain", "open ns leased",
+        "renew ns", "reclaimed ms", "wheel cpu ms");
+
+    for (String handles : params.get("handles")) {
+      run(Integer.parseInt(handles), ttl);
+    }
+  }
+
+  private static void run(int handles, long ttl) throws InterruptedException {
+    double plain = openAll(new MyFileServer(), handles, new ArrayList<File>(handles));
+
+    MyFileServer fs = new MyFileServer();
+    Leases leases = fs.leases(ttl, TimeUnit.MILLISECONDS);
+    List<File> open = new ArrayList<File>(handles);
+    double leased = openAll(fs, handles, open);
+
+    long start = System.nanoTime();
+    for (File file : open) {
+      fs.renew(file);
+    }
+    long renewed = System.nanoTime();
+    double renew = (renewed - start) / (double) handles;
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long wheel = threadNamed("lease-wheel");
+    long cpuStart = threads.getThreadCpuTime(wheel);
+    long deadline = renewed + TimeUnit.MILLISECONDS.toNanos(ttl);
+    while (leases.expired() < handles) {
+      Thread.sleep(1);
+    }
+    long reclaimed = System.nanoTime();
+    long cpu = threads.getThreadCpuTime(wheel) - cpuStart;
+    leases.stop();
+
+    System.out.printf("%10d %14.0f %14.0f %12.0f %14.1f %14.1f%n", handles, plain, leased, renew,
+        (reclaimed - deadline) / 1e6, cpu / 1e6);
+  }
+
+  /**
+   * Creates handles files and opens them all READABLE, keeping the handles in
+   * open, and returns the average time an open took
+   */
+  private static double openAll(MyFileServer fs, int handles, List<File> open) {
+    for (int i = 0; i < handles; i++) {
+      fs.create(i + ".txt", "coheed and cambria");
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < handles; i++) {
+      Optional<File> file = fs.open(i + ".txt", Mode.READABLE);
+      open.add(file.get());
+    }
+    return (System.nanoTime() - start) / (double) handles;
+  }
+
+  private static long threadNamed(String name) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(name)) {
+        return thread.getId();
+      }
+    }
+    throw new IllegalStateException("No thread " + name);
+  }
+}
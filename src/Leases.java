@@ -0,0 +1,217 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leases puts a time limit on the File handles a MyFileServer hands out (see
+ * MyFileServer.leases()), so that a handle that is never closed, because its
+ * client crashed or got stuck, can't hold a file's lock forever. Each handle
+ * opened under a lock gets a Lease, which the holder renews to keep it
+ * (MyFileServer.renew()), and once a lease runs out the handle is reclaimed:
+ * its lock is given back and anything written through it thrown away, and
+ * closing it afterwards does nothing.
+ *
+ * Expiry is driven by a hashed timing wheel: BUCKETS buckets, each TICK long,
+ * swept in turn by one thread. A lease goes in the bucket its deadline falls
+ * in, and each bucket is a lock-free stack threaded through the leases
+ * themselves, so granting one is a single CAS and allocates nothing but the
+ * Lease. Renewing and closing don't touch the wheel at all: renewing just
+ * moves the deadline on, and closing marks the lease ended. When its bucket
+ * comes round, an ended lease is dropped, one whose deadline has passed is
+ * expired, and one that has been renewed since goes back in the bucket of its
+ * new deadline. Leases are never searched for or moved around outside the
+ * sweep, which is what keeps millions of them cheap.
+ *
+ * Deadlines are kept to within a tick, so a lease expires up to one TICK late.
+ *
+ * @author jamesjarvis
+ */
+public class Leases {
+
+  static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final int BUCKETS = 512;
+
+  private static final int ACTIVE = 0;
+  private static final int ENDED = 1;
+  private static final int EXPIRED = 2;
+  // Being renewed, which neither expiring nor ending can interrupt
+  private static final int RENEWING = 3;
+
+  /**
+   * The lease on one File handle
+   */
+  static final class Lease {
+    private static final AtomicIntegerFieldUpdater<Lease> STATE = AtomicIntegerFieldUpdater
+        .newUpdater(Lease.class, "state");
+
+    final File file;
+    // The version the handle was opened at, set as it expires so a handle
+    // that hasn't fetched its content yet doesn't see a later one
+    volatile Version pinned;
+    volatile long ttlNanos;
+    volatile long deadline;
+    private volatile int state;
+    // Next lease in the same bucket, only used by the wheel
+    private Lease next;
+
+    private Lease(File file, long ttlNanos, long now) {
+      this.file = file;
+      this.ttlNanos = ttlNanos;
+      this.deadline = now + ttlNanos;
+    }
+
+    /**
+     * Ends the lease because its handle is being closed, returning false if it
+     * had already expired (or been ended)
+     */
+    boolean end() {
+      return STATE.compareAndSet(settled(), ACTIVE, ENDED);
+    }
+
+    private boolean expire() {
+      return STATE.compareAndSet(settled(), ACTIVE, EXPIRED);
+    }
+
+    /**
+     * Waits out a renewal in progress, which is only ever a few writes long,
+     * returning this lease
+     */
+    private Lease settled() {
+      while (this.state == RENEWING) {
+        Thread.yield();
+      }
+      return this;
+    }
+  }
+
+  private final MyFileServer server;
+  private final long ttlNanos;
+  private final AtomicReferenceArray<Lease> wheel;
+  private final long origin;
+  private final LongAdder granted;
+  private final LongAdder expired;
+  private final Thread sweeper;
+  private volatile boolean stopped;
+
+  Leases(MyFileServer server, long ttl, TimeUnit unit) {
+    this.server = server;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.wheel = new AtomicReferenceArray<Lease>(BUCKETS);
+    this.origin = System.nanoTime();
+    this.granted = new LongAdder();
+    this.expired = new LongAdder();
+    this.sweeper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        sweep();
+      }
+    }, "lease-wheel");
+    this.sweeper.setDaemon(true);
+    this.sweeper.start();
+  }
+
+  /**
+   * Gives file a new lease, for the default time to live. The file has it
+   * before it goes on the wheel, so the sweep never expires a file whose lease
+   * it can't see.
+   */
+  void grant(File file) {
+    Lease lease = new Lease(file, this.ttlNanos, System.nanoTime());
+    file.lease = lease;
+    push(lease);
+    this.granted.increment();
+  }
+
+  /**
+   * Moves the lease's deadline to ttlNanos from now, returning false if it has
+   * already run out or been ended
+   */
+  static boolean renew(Lease lease, long ttlNanos) {
+    // Held RENEWING while the deadline moves, so the sweep can't expire it on
+    // the old deadline after the caller has been told it is renewed
+    if (!Lease.STATE.compareAndSet(lease, ACTIVE, RENEWING)) {
+      return false;
+    }
+    lease.ttlNanos = ttlNanos;
+    lease.deadline = System.nanoTime() + ttlNanos;
+    lease.state = ACTIVE;
+    return true;
+  }
+
+  private int bucket(long deadline) {
+    return (int) (((deadline - this.origin) / TICK) & (BUCKETS - 1));
+  }
+
+  private void push(Lease lease) {
+    int bucket = bucket(lease.deadline);
+    Lease head;
+    do {
+      head = this.wheel.get(bucket);
+      lease.next = head;
+    } while (!this.wheel.compareAndSet(bucket, head, lease));
+  }
+
+  private void sweep() {
+    long tick = 0;
+    while (!this.stopped) {
+      long due = this.origin + (tick + 1) * TICK;
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(this, wait);
+        continue;
+      }
+      long now = System.nanoTime();
+      Lease lease = this.wheel.getAndSet((int) (tick & (BUCKETS - 1)), null);
+      while (lease != null) {
+        Lease next = lease.next;
+        lease.next = null;
+        if (lease.settled().state == ACTIVE) {
+          if (lease.deadline - now <= 0) {
+            if (lease.expire()) {
+              // Counted first, so whoever the unlock wakes sees it
+              this.expired.increment();
+              this.server.expire(lease.file);
+            }
+          } else {
+            // Renewed, or a turn of the wheel or more away, in which case it
+            // goes back in this bucket to wait another turn
+            push(lease);
+          }
+        }
+        lease = next;
+      }
+      tick++;
+    }
+  }
+
+  /**
+   * The default time to live of a lease, in nanoseconds
+   */
+  public long ttlNanos() {
+    return this.ttlNanos;
+  }
+
+  /**
+   * How many leases have been granted
+   */
+  public long granted() {
+    return this.granted.sum();
+  }
+
+  /**
+   * How many leases have run out and had their handles reclaimed
+   */
+  public long expired() {
+    return this.expired.sum();
+  }
+
+  /**
+   * Stops expiring leases; handles leased so far keep their locks until closed
+   */
+  public void stop() {
+    this.stopped = true;
+    LockSupport.unpark(this.sweeper);
+  }
+}
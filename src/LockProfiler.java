@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * LockProfiler is MyFileServer's diagnostics mode (see MyFileServer.diagnose).
+ * It keeps track of which handles hold each file's lock, and on which thread
+ * they were opened, and which threads are blocked waiting for which file, and
+ * from those a wait-for graph: a thread waiting for a file waits for the
+ * threads holding it in a conflicting mode, and a reader also waits for any
+ * writers queued ahead of it, as the fair lockers make it.
+ *
+ * Only a thread starting to wait can close a cycle in that graph (a thread
+ * that has just been given a lock isn't waiting for anyone), so the graph is
+ * checked for a cycle through that thread each time one is about to block.
+ * A cycle is a deadlock, which is always recorded (see deadlocks()) and, with
+ * OnDeadlock.BREAK, broken by failing the open that would have completed it,
+ * as if the thread had been interrupted.
+ *
+ * The lock's own view of who is waiting isn't visible from outside it, so
+ * these are the threads the server has seen start waiting, and whether they
+ * really block is up to the lock, which may let a reader in that this counts
+ * as waiting. Everything is done under one monitor, so this is for finding
+ * problems rather than for running with all the time.
+ *
+ * Every hold is timed from open to close, and per-file hold counts, total and
+ * longest time are kept, along with the handles held longer than a given time
+ * right now (see heldLongerThan()).
+ *
+ * @author jamesjarvis
+ */
+public class LockProfiler {
+
+  public enum OnDeadlock {
+    // Record the deadlock and leave the threads in it blocked
+    REPORT,
+
+    // Record the deadlock and fail the open that would have completed it
+    BREAK
+  }
+
+  /**
+   * A handle holding a file's lock
+   */
+  private static final class Hold {
+    final File file;
+    final Thread owner;
+    final Mode mode;
+    final long since;
+
+    Hold(File file, Thread owner, Mode mode) {
+      this.file = file;
+      this.owner = owner;
+      this.mode = mode;
+      this.since = System.nanoTime();
+    }
+  }
+
+  /**
+   * A thread waiting for a file's lock
+   */
+  private static final class Wait {
+    final String filename;
+    final Mode mode;
+
+    Wait(String filename, Mode mode) {
+      this.filename = filename;
+      this.mode = mode;
+    }
+  }
+
+  /**
+   * How long a file's lock has been held for, over all the handles closed
+   */
+  public static final class HoldTimes {
+    public final long holds;
+    public final long totalNanos;
+    public final long longestNanos;
+
+    HoldTimes(long holds, long totalNanos, long longestNanos) {
+      this.holds = holds;
+      this.totalNanos = totalNanos;
+      this.longestNanos = longestNanos;
+    }
+  }
+
+  private final OnDeadlock onDeadlock;
+  private final Map<String, List<Hold>> holds;
+  private final Map<Thread, Wait> waits;
+  private final Map<String, HoldTimes> holdTimes;
+  private final List<String> deadlocks;
+
+  public LockProfiler(OnDeadlock onDeadlock) {
+    this.onDeadlock = onDeadlock;
+    this.holds = new HashMap<String, List<Hold>>();
+    this.waits = new HashMap<Thread, Wait>();
+    this.holdTimes = new HashMap<String, HoldTimes>();
+    this.deadlocks = new ArrayList<String>();
+  }
+
+  /**
+   * Called by the current thread just before it waits for filename's lock in
+   * mode. Returns false if that would complete a deadlock and it is to be
+   * broken, in which case the thread mustn't wait.
+   */
+  synchronized boolean waiting(String filename, Mode mode) {
+    Thread current = Thread.currentThread();
+    this.waits.put(current, new Wait(filename, mode));
+    List<String> cycle = cycleThrough(current);
+    if (cycle == null) {
+      return true;
+    }
+    String deadlock = String.join(" -> ", cycle);
+    this.deadlocks.add(deadlock);
+    if (this.onDeadlock == OnDeadlock.BREAK) {
+      this.waits.remove(current);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Called by the current thread when it has stopped waiting, without the lock
+   */
+  synchronized void gaveUp() {
+    this.waits.remove(Thread.currentThread());
+  }
+
+  /**
+   * Called once file's lock is held, by the thread that opened it (or with
+   * owner null if no thread waited for it, as with an asynchronous open)
+   */
+  synchronized void acquired(File file, Thread owner) {
+    if (owner != null) {
+      this.waits.remove(owner);
+    }
+    List<Hold> held = this.holds.get(file.filename());
+    if (held == null) {
+      held = new ArrayList<Hold>(1);
+      this.holds.put(file.filename(), held);
+    }
+    held.add(new Hold(file, owner, file.mode()));
+  }
+
+  /**
+   * Called when file is closed, with its lock about to be given back
+   */
+  synchronized void released(File file) {
+    List<Hold> held = this.holds.get(file.filename());
+    if (held == null) {
+      return;
+    }
+    for (Iterator<Hold> it = held.iterator(); it.hasNext();) {
+      Hold hold = it.next();
+      if (hold.file == file) {
+        it.remove();
+        long nanos = System.nanoTime() - hold.since;
+        HoldTimes times = this.holdTimes.get(file.filename());
+        this.holdTimes.put(file.filename(), times == null ? new HoldTimes(1, nanos, nanos)
+            : new HoldTimes(times.holds + 1, times.totalNanos + nanos, Math.max(times.longestNanos, nanos)));
+        break;
+      }
+    }
+    if (held.isEmpty()) {
+      this.holds.remove(file.filename());
+    }
+  }
+
+  /**
+   * The threads a waiting thread is waiting for
+   */
+  private Set<Thread> blockers(Thread waiter) {
+    Set<Thread> blockers = new HashSet<Thread>();
+    Wait wait = this.waits.get(waiter);
+    if (wait == null) {
+      return blockers;
+    }
+    List<Hold> held = this.holds.get(wait.filename);
+    if (held != null) {
+      for (Hold hold : held) {
+        if (hold.owner != null && (wait.mode == Mode.READWRITEABLE || hold.mode == Mode.READWRITEABLE)) {
+          blockers.add(hold.owner);
+        }
+      }
+    }
+    if (wait.mode == Mode.READABLE) {
+      for (Map.Entry<Thread, Wait> other : this.waits.entrySet()) {
+        if (other.getKey() != waiter && other.getValue().mode == Mode.READWRITEABLE
+            && other.getValue().filename.equals(wait.filename)) {
+          blockers.add(other.getKey());
+        }
+      }
+    }
+    return blockers;
+  }
+
+  /**
+   * A cycle in the wait-for graph through thread, as "thread waits for file"
+   * steps, or null if there isn't one
+   */
+  private List<String> cycleThrough(Thread thread) {
+    List<Thread> path = new ArrayList<Thread>();
+    path.add(thread);
+    if (!search(thread, path, new HashSet<Thread>())) {
+      return null;
+    }
+    List<String> cycle = new ArrayList<String>();
+    for (Thread waiter : path) {
+      cycle.add(waiter.getName() + " waits for " + this.waits.get(waiter).filename);
+    }
+    cycle.add(thread.getName());
+    return cycle;
+  }
+
+  private boolean search(Thread from, List<Thread> path, Set<Thread> visited) {
+    for (Thread blocker : blockers(from)) {
+      if (blocker == path.get(0)) {
+        return true;
+      }
+      if (visited.add(blocker) && this.waits.containsKey(blocker)) {
+        path.add(blocker);
+        if (search(blocker, path, visited)) {
+          return true;
+        }
+        path.remove(path.size() - 1);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Every deadlock found so far, as the cycle of threads and files in it
+   */
+  public synchronized List<String> deadlocks() {
+    return new ArrayList<String>(this.deadlocks);
+  }
+
+  /**
+   * Hold counts and times of every file whose lock has been held and given
+   * back since profiling started
+   */
+  public synchronized Map<String, HoldTimes> holdTimes() {
+    return Collections.unmodifiableMap(new HashMap<String, HoldTimes>(this.holdTimes));
+  }
+
+  /**
+   * The handles open right now that were opened more than nanos ago, as
+   * "filename mode by thread for ms"
+   */
+  public synchronized List<String> heldLongerThan(long nanos) {
+    List<String> found = new ArrayList<String>();
+    long now = System.nanoTime();
+    for (List<Hold> held : this.holds.values()) {
+      for (Hold hold : held) {
+        long age = now - hold.since;
+        if (age > nanos) {
+          found.add(String.format("%s %s by %s for %dms", hold.file.filename(), hold.mode,
+              hold.owner == null ? "nobody" : hold.owner.getName(), age / 1000000));
+        }
+      }
+    }
+    return found;
+  }
+}
@@ -0,0 +1,24 @@
+/**
+ * Which ReadWriteLocker implementation MyFileServer gives each of its files.
+ */
+public enum LockStrategy {
+  // Single int holding the reader count and a writer bit (the default)
+  STATE,
+
+  // java.util.concurrent.locks.StampedLock, with optimistic reads for fileStatus
+  STAMPED,
+
+  // The original two semaphores plus a fair ReentrantLock
+  SEMAPHORE;
+
+  ReadWriteLocker newLocker() {
+    switch (this) {
+    case STAMPED:
+      return new StampedLocker();
+    case SEMAPHORE:
+      return new SemaphoreLocker();
+    default:
+      return new StateLocker();
+    }
+  }
+}
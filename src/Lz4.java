@@ -0,0 +1,166 @@
+import java.util.Arrays;
+
+/**
+ * Lz4 compresses and decompresses byte arrays in the LZ4 block format, in
+ * plain Java.
+ *
+ * A block is a series of sequences, each a token byte (literal length in the
+ * high four bits, match length less MIN_MATCH in the low four, 15 meaning more
+ * length bytes follow, each adding up to 255), the literals, then a two byte
+ * little-endian offset back to where the match is copied from. The last
+ * sequence is literals only, and as in LZ4 the last LAST_LITERALS bytes are
+ * always literals, and no match starts in the last MATCH_LIMIT bytes.
+ *
+ * Compression finds matches through a table of the last position each hash of
+ * four bytes was seen at, and skips ahead faster the longer it goes without
+ * finding one, so data that doesn't compress is passed over quickly. That is
+ * LZ4's fast mode, which trades some ratio for speed.
+ */
+final class Lz4 {
+  private static final int MIN_MATCH = 4;
+  private static final int LAST_LITERALS = 5;
+  private static final int MATCH_LIMIT = 12;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int HASH_LOG = 12;
+  private static final int SKIP_TRIGGER = 6;
+
+  private Lz4() {
+  }
+
+  static byte[] compress(byte[] src) {
+    int n = src.length;
+    byte[] out = new byte[n + n / 255 + 16];
+    int op = 0;
+    int anchor = 0;
+    if (n >= MATCH_LIMIT + 1) {
+      int[] table = new int[1 << HASH_LOG];
+      Arrays.fill(table, -1);
+      int limit = n - MATCH_LIMIT;
+      int ip = 0;
+      int misses = 1 << SKIP_TRIGGER;
+      while (ip < limit) {
+        int sequence = readInt(src, ip);
+        int hash = hash(sequence);
+        int ref = table[hash];
+        table[hash] = ip;
+        if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          ip += misses++ >>> SKIP_TRIGGER;
+          continue;
+        }
+        misses = 1 << SKIP_TRIGGER;
+        while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+          ip--;
+          ref--;
+        }
+        int end = ip + MIN_MATCH;
+        int matchEnd = n - LAST_LITERALS;
+        while (end < matchEnd && src[end] == src[ref + end - ip]) {
+          end++;
+        }
+        op = sequence(out, op, src, anchor, ip - anchor, ip - ref, end - ip - MIN_MATCH);
+        ip = end;
+        anchor = end;
+        if (ip - 2 < limit) {
+          table[hash(readInt(src, ip - 2))] = ip - 2;
+        }
+      }
+    }
+    // The rest as literals
+    int literals = n - anchor;
+    int token = op++;
+    op = length(out, op, literals);
+    System.arraycopy(src, anchor, out, op, literals);
+    op += literals;
+    out[token] = (byte) (Math.min(literals, 15) << 4);
+    return Arrays.copyOf(out, op);
+  }
+
+  private static int sequence(byte[] out, int op, byte[] src, int from, int literals, int offset, int match) {
+    int token = op++;
+    op = length(out, op, literals);
+    System.arraycopy(src, from, out, op, literals);
+    op += literals;
+    out[op++] = (byte) offset;
+    out[op++] = (byte) (offset >>> 8);
+    op = length(out, op, match);
+    out[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(match, 15));
+    return op;
+  }
+
+  /**
+   * Writes the bytes that follow a token for a length of 15 or more
+   */
+  private static int length(byte[] out, int op, int length) {
+    if (length < 15) {
+      return op;
+    }
+    length -= 15;
+    while (length >= 255) {
+      out[op++] = (byte) 255;
+      length -= 255;
+    }
+    out[op++] = (byte) length;
+    return op;
+  }
+
+  /**
+   * Decompresses a block that was size bytes before compressing
+   */
+  static byte[] decompress(byte[] src, int size) {
+    byte[] out = new byte[size];
+    int ip = 0;
+    int op = 0;
+    while (true) {
+      int token = src[ip++] & 0xff;
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int b;
+        do {
+          b = src[ip++] & 0xff;
+          literals += b;
+        } while (b == 255);
+      }
+      System.arraycopy(src, ip, out, op, literals);
+      ip += literals;
+      op += literals;
+      if (ip >= src.length) {
+        break;
+      }
+      int offset = (src[ip++] & 0xff) | (src[ip++] & 0xff) << 8;
+      int match = token & 15;
+      if (match == 15) {
+        int b;
+        do {
+          b = src[ip++] & 0xff;
+          match += b;
+        } while (b == 255);
+      }
+      match += MIN_MATCH;
+      int ref = op - offset;
+      if (offset == 0 || ref < 0) {
+        throw new IllegalArgumentException("Bad match offset " + offset + " at " + op);
+      }
+      if (offset >= match) {
+        System.arraycopy(out, ref, out, op, match);
+        op += match;
+      } else {
+        // Overlapping, so the bytes being copied are still being written
+        for (int end = op + match; op < end;) {
+          out[op++] = out[ref++];
+        }
+      }
+    }
+    if (op != size) {
+      throw new IllegalArgumentException("Decompressed " + op + " bytes, expected " + size);
+    }
+    return out;
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+}
@@ -0,0 +1,309 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * MappedStore keeps file content on disk, in a directory of memory-mapped
+ * segment files, so that it survives a restart and isn't limited by the heap.
+ *
+ * Segments are append-only. Every version stored (on create and on each writer
+ * close) is appended to the newest segment as a record:
+ *
+ *   magic | crc | version | name length | content length | name | content
+ *
+ * where crc is a CRC32 of the name and content. When the newest segment is
+ * full a new one is started, and the full one is sealed. Content is copied straight into the mapped
+ * segment, and the Content handed back is a read-only slice of that mapping,
+ * so reading a file never copies it onto the heap.
+ *
+ * Reopening a directory maps its segments and walks the record headers to
+ * find the latest version of each file. The content itself is left alone
+ * until it is read, when the OS pages in just the parts being read.
+ *
+ * Writes reach the disk whenever the OS writes back the mapped pages, when a
+ * sealed segment's last record has been copied in (it is forced then), or on
+ * flush(). Once a sealed segment has been forced a SEALED marker is written
+ * after its last record, and forced too, so reopening can tell the segments
+ * that are known to be whole from the ones that may hold torn writes after a
+ * crash: the newest, and any sealed one whose records were still being copied
+ * in when the next segment was started. Records in segments without the marker
+ * are checked against their crc when reopening, skipping any that don't match.
+ * Superseded versions stay in their segments.
+ *
+ * @author jamesjarvis
+ */
+public class MappedStore implements ContentStore {
+  private static final int MAGIC = 0x46534731;
+  // Follows the last record of a sealed segment once all of it is on disk
+  private static final int SEALED = 0x46534753;
+  private static final int HEADER = 24;
+  private static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+  private final Path dir;
+  private final int segmentSize;
+  private final ReentrantLock appending;
+  private final List<Segment> segments;
+  private final Map<String, Version> recovered;
+
+  // The segment being appended to, and where the next record goes in it
+  private Segment tail;
+  private int tailPosition;
+
+  private static final class Segment {
+    final MappedByteBuffer buffer;
+    // Records reserved in this segment that are still being copied in
+    final AtomicInteger writing = new AtomicInteger();
+    volatile boolean sealed;
+    // Where the records end, once sealed
+    private int end;
+
+    Segment(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    /**
+     * Called once a record has been copied in. The last copy into a sealed
+     * segment forces it to disk.
+     */
+    void written() {
+      if (this.writing.decrementAndGet() == 0 && this.sealed) {
+        forced();
+      }
+    }
+
+    /**
+     * Seals the segment, whose records end at end, forcing it now if nothing
+     * is still being copied in
+     */
+    void seal(int end) {
+      this.end = end;
+      this.sealed = true;
+      if (this.writing.get() == 0) {
+        forced();
+      }
+    }
+
+    /**
+     * Forces the records, and then the marker that says they are all there
+     */
+    private void forced() {
+      this.buffer.force();
+      // A segment from before there were markers may have no room left for one
+      if (this.end + 4 <= this.buffer.capacity()) {
+        this.buffer.putInt(this.end, SEALED);
+        this.buffer.force();
+      }
+    }
+  }
+
+  public MappedStore(Path dir) throws IOException {
+    this(dir, DEFAULT_SEGMENT_SIZE);
+  }
+
+  public MappedStore(Path dir, int segmentSize) throws IOException {
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.appending = new ReentrantLock();
+    this.segments = new ArrayList<Segment>();
+    this.recovered = new HashMap<String, Version>();
+    Files.createDirectories(dir);
+    reopen();
+  }
+
+  private Path segmentPath(int segment) {
+    return this.dir.resolve(String.format("segment-%08d.dat", segment));
+  }
+
+  private MappedByteBuffer map(Path path, long size) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // The mapping stays valid after the channel is closed
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  /**
+   * Maps the existing segments in order and indexes the latest version of every
+   * file in them
+   */
+  private void reopen() throws IOException {
+    TreeMap<Integer, Path> existing = new TreeMap<Integer, Path>();
+    try (DirectoryStream<Path> listing = Files.newDirectoryStream(this.dir, "segment-*.dat")) {
+      for (Path path : listing) {
+        String name = path.getFileName().toString();
+        existing.put(Integer.parseInt(name.substring(8, name.length() - 4)), path);
+      }
+    }
+    for (Map.Entry<Integer, Path> entry : existing.entrySet()) {
+      int number = entry.getKey();
+      if (number != this.segments.size()) {
+        throw new IOException("Segment " + this.segments.size() + " is missing from " + this.dir);
+      }
+      Segment segment = new Segment(map(entry.getValue(), Files.size(entry.getValue())));
+      this.segments.add(segment);
+      this.tail = segment;
+      this.tailPosition = scan(segment.buffer, !sealed(segment.buffer));
+    }
+  }
+
+  /**
+   * Whether the records in a segment are followed by the SEALED marker, which
+   * is only written once they are all on disk
+   */
+  private static boolean sealed(MappedByteBuffer segment) {
+    int position = 0;
+    while (position + HEADER <= segment.capacity() && segment.getInt(position) == MAGIC) {
+      int nameLength = segment.getInt(position + 16);
+      int contentLength = segment.getInt(position + 20);
+      int end = position + HEADER + nameLength + contentLength;
+      if (nameLength < 0 || contentLength < 0 || end > segment.capacity() || end < position) {
+        return false;
+      }
+      position = end;
+    }
+    return position + 4 <= segment.capacity() && segment.getInt(position) == SEALED;
+  }
+
+  /**
+   * Indexes the records in a segment, returning where the records end. Only
+   * reads the content of the records too if verify is set.
+   */
+  private int scan(MappedByteBuffer segment, boolean verify) {
+    int position = 0;
+    while (position + HEADER <= segment.capacity() && segment.getInt(position) == MAGIC) {
+      int crc = segment.getInt(position + 4);
+      long version = segment.getLong(position + 8);
+      int nameLength = segment.getInt(position + 16);
+      int contentLength = segment.getInt(position + 20);
+      int end = position + HEADER + nameLength + contentLength;
+      if (nameLength < 0 || contentLength < 0 || end > segment.capacity() || end < position) {
+        break;
+      }
+      ByteBuffer name = slice(segment, position + HEADER, nameLength);
+      ByteBuffer content = slice(segment, position + HEADER + nameLength, contentLength);
+      if (!verify || crc(name, content) == crc) {
+        String filename = StandardCharsets.UTF_8.decode(name).toString();
+        Version latest = this.recovered.get(filename);
+        if (latest == null || latest.number <= version) {
+          this.recovered.put(filename, new Version(version, DirectContent.wrap(content)));
+        }
+      }
+      position = end;
+    }
+    return position;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(position + length);
+    view.position(position);
+    return view.slice().asReadOnlyBuffer();
+  }
+
+  private static int crc(ByteBuffer name, ByteBuffer content) {
+    CRC32 crc = new CRC32();
+    crc.update(name.duplicate());
+    crc.update(content.duplicate());
+    return (int) crc.getValue();
+  }
+
+  @Override
+  public Map<String, Version> recover() {
+    return this.recovered;
+  }
+
+  @Override
+  public Content store(String filename, long version, Content content) {
+    ByteBuffer name = StandardCharsets.UTF_8.encode(filename);
+    ByteBuffer bytes = content.bytes();
+    int nameLength = name.remaining();
+    int contentLength = bytes.remaining();
+    int length = HEADER + nameLength + contentLength;
+    int sealedAt = 0;
+
+    // Only reserving the space is done under the lock, the copying isn't
+    Segment segment;
+    Segment sealed = null;
+    int position;
+    this.appending.lock();
+    try {
+      // Room is always left after the records for the SEALED marker
+      if (this.tail == null || this.tail.buffer.capacity() - this.tailPosition < length + 4) {
+        sealed = this.tail;
+        sealedAt = this.tailPosition;
+        newSegment(length + 4);
+      }
+      segment = this.tail;
+      position = this.tailPosition;
+      this.tailPosition += length;
+      segment.writing.incrementAndGet();
+    } finally {
+      this.appending.unlock();
+    }
+    if (sealed != null) {
+      sealed.seal(sealedAt);
+    }
+
+    try {
+      ByteBuffer record = segment.buffer.duplicate();
+      record.position(position);
+      record.putInt(MAGIC);
+      record.putInt(crc(name, bytes));
+      record.putLong(version);
+      record.putInt(nameLength);
+      record.putInt(contentLength);
+      record.put(name);
+      record.put(bytes);
+    } finally {
+      segment.written();
+    }
+    return DirectContent.wrap(slice(segment.buffer, position + HEADER + nameLength, contentLength));
+  }
+
+  /**
+   * Starts a new segment big enough for at least one record of length bytes
+   */
+  private void newSegment(int length) {
+    try {
+      this.tail = new Segment(map(segmentPath(this.segments.size()), Math.max(this.segmentSize, length)));
+      this.tailPosition = 0;
+      this.segments.add(this.tail);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public boolean persistent() {
+    return true;
+  }
+
+  @Override
+  public void flush() {
+    List<Segment> all;
+    this.appending.lock();
+    try {
+      all = new ArrayList<Segment>(this.segments);
+    } finally {
+      this.appending.unlock();
+    }
+    for (Segment segment : all) {
+      segment.buffer.force();
+    }
+  }
+}
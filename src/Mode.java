@@ -13,5 +13,9 @@ public enum Mode {
   CLOSED,
 
   // File is unknown
-  UNKNOWN
+  UNKNOWN,
+
+  // File is being read from a snapshot of its latest committed content, which
+  // needs no lock, so a file is never reported to be in this mode
+  SNAPSHOT
 }
\ No newline at end of file
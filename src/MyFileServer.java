@@ -1,19 +1,33 @@
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.Semaphore;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 /**
  * The idea for this FileServer implementation is that the file mode can be
  * inferred by the status of it's associated locks.
  * 
- * As a result, there will be 2 HashMaps: 1. HashMap for the filename and file
- * content 2. HashMap for the filename and it's read and write locks.
+ * As a result, there is a single ConcurrentHashMap from the filename to its
+ * FileFrame, which holds both the file content and it's read and write lock.
+ * Lookups on the open/close path never block, and create is an atomic
+ * create-if-absent, so racing creates and opens cannot see a file without its
+ * lock (or the other way round).
  * 
  * The Read and Write lock is implemented in ReadWriteLocker, read the docstring
- * there In terms of fairness, the processes get allocated read or write locks
- * in the order they were added to the queue. (LIFO). To avoid race conditions,
+ * there. Which implementation each file gets is chosen with a LockStrategy when
+ * the server is constructed (StateLocker by default). In terms of fairness, the
+ * processes get allocated read or write locks in the order they were added to
+ * the queue. (LIFO). To avoid race conditions,
  * essentially I allow up to N concurrent read accesses (whilst blocking write
  * access) and I allow max 1 concurrent write access (while blocking read
  * access) Utilising the ReadWriteLocker I implemented
@@ -23,213 +37,636 @@ import java.util.concurrent.Semaphore;
  * 
  * Starvation is avoided by always releasing locks once the file has been
  * 
+ * Besides the blocking open there is tryOpen, which never waits, and a timed
+ * open which waits at most a given time. All of them give up without the lock
+ * if the waiting thread is interrupted, so callers can shed load rather than
+ * pile up behind a slow writer. Several files can be opened together with
+ * openAll, which takes their locks in filename order, all or nothing.
+ * 
+ * Files can also be opened as a SNAPSHOT, which takes no lock at all. Each
+ * writer close publishes the new content as a new immutable Version, so a
+ * snapshot reader just picks up whichever Version was committed last and is
+ * never held up by (or holds up) a writer. Writers still exclude each other,
+ * and plain READABLE opens, through the lock.
+ * 
+ * In diagnostics mode (see diagnose()) a LockProfiler follows who holds and
+ * waits for each lock, so deadlocked opens can be reported, or failed rather
+ * than left to hang, and handles held too long can be found.
+ * 
+ * Reads of files whose content is off-heap or on disk can go through a
+ * cache of decoded text (see cache()), which keeps the most used files.
+ * 
+ * Files left closed for a while can have their content compressed (see
+ * tier()), and it is decompressed again when they are next opened.
+ * 
+ * Handles can be leased (see leases()), so that one its holder never closes
+ * is reclaimed once its lease runs out rather than holding its file forever.
+ * 
+ * Filenames are also kept in order in a NameIndex (see names()), so they can
+ * be listed by prefix, range or directory a page at a time, and counted,
+ * without scanning the whole map.
+ * 
+ * Every operation is counted and timed in a ServerMetrics (see metrics()),
+ * unless that is switched off with -Dfileserver.metrics=false.
+ * 
+ * Where content is kept is up to the ContentStore the server is constructed
+ * with: on the heap (HeapStore, the default), off-heap (DirectStore) or on disk
+ * (MappedStore), in which case the server starts with the files already in it.
+ * Either way File handles share the stored bytes rather than copying them.
+ * Writers that append or write ranges rather than replacing the whole content
+ * hand just those changes to the store, which makes the new version out of the
+ * old one's unchanged chunks plus the changed bytes (see ChunkedContent).
+ * File handles opened under a lock only fetch the content when it is first
+ * used, and a writer that closes without having written anything commits
+ * nothing, so opening a file just to hold its lock costs no stores.
+ * Readers can stream a file or read ranges of it (File.channel(), read(offset,
+ * length)) without it ever being copied whole, so opening a large file costs
+ * no more memory than opening a small one.
+ * 
  * @author jamesjarvis
  */
 
 public class MyFileServer implements FileServer {
 
-  private HashMap<String, FileFrame> files;
-  private HashMap<String, ReadWriteLocker> locks;
+  private final ConcurrentHashMap<String, FileFrame> files;
+  // Names being created, with a store that isn't persistent, by their frames
+  private final ConcurrentHashMap<String, FileFrame> creating;
+  private final NameIndex names;
+  private final LockStrategy lockStrategy;
+  private final ContentStore store;
+  private final ServerMetrics metrics;
+  private volatile LockProfiler profiler;
+  private volatile Leases leases;
+  private volatile ContentCache cache;
+  private volatile Tiering tiering;
 
   public MyFileServer() {
-    this.files = new HashMap<String, FileFrame>();
-    this.locks = new HashMap<String, ReadWriteLocker>();
+    this(LockStrategy.STATE);
+  }
+
+  public MyFileServer(LockStrategy lockStrategy) {
+    this(lockStrategy, new HeapStore());
   }
 
+  public MyFileServer(LockStrategy lockStrategy, ContentStore store) {
+    this.files = new ConcurrentHashMap<String, FileFrame>();
+    this.creating = new ConcurrentHashMap<String, FileFrame>();
+    this.names = new NameIndex();
+    this.lockStrategy = lockStrategy;
+    this.store = store;
+    this.metrics = new ServerMetrics();
+    for (Map.Entry<String, Version> recovered : store.recover().entrySet()) {
+      this.files.put(recovered.getKey(),
+          new FileFrame(recovered.getValue(), Mode.CLOSED, lockStrategy.newLocker()));
+      this.names.add(recovered.getKey());
+    }
+  }
+
+  /**
+   * Creates the file if no file with that name exists yet. Creating an existing
+   * file leaves it (and anyone holding it open) untouched.
+   *
+   * Only the create that wins the name stores anything, and no writer can
+   * commit a later version before the first one is stored. With a store that
+   * isn't persistent the name is won in a map of names being created, and the
+   * content is stored before the file is put in the map of files, so nobody
+   * sees it until it is whole and no lock is taken; a create that loses waits
+   * for the winner to finish, which is no more than a copy in memory. With a
+   * persistent store, which may wait on the disk, the file goes in the map of
+   * files to win the name, and is held for writing until it is stored.
+   */
   @Override
   public void create(String filename, String content) {
-    this.locks.put(filename, new ReadWriteLocker());
-    this.files.put(filename, new FileFrame(content, Mode.CLOSED));
+    boolean timed = ServerMetrics.ENABLED && ServerMetrics.sampled();
+    long start = timed ? System.nanoTime() : 0;
+    try {
+      createFile(filename, content);
+    } finally {
+      if (ServerMetrics.ENABLED) {
+        this.metrics.record(ServerMetrics.Op.CREATE, timed, start);
+      }
+    }
+  }
+
+  private void createFile(String filename, String content) {
+    if (this.files.containsKey(filename)) {
+      return;
+    }
+    if (!this.store.persistent()) {
+      FileFrame created = new FileFrame(null, Mode.CLOSED, this.lockStrategy.newLocker());
+      FileFrame racing = this.creating.putIfAbsent(filename, created);
+      if (racing != null) {
+        while (this.creating.get(filename) == racing) {
+          Thread.yield();
+        }
+        return;
+      }
+      try {
+        // It may have been created between the check and winning the name
+        if (!this.files.containsKey(filename)) {
+          created.version = new Version(0, this.store.store(filename, 0, new HeapContent(content)));
+          used(created);
+          this.files.put(filename, created);
+          this.names.add(filename);
+        }
+      } finally {
+        this.creating.remove(filename, created);
+      }
+      return;
+    }
+    FileFrame created = new FileFrame(new Version(0, new HeapContent(content)), Mode.CLOSED,
+        this.lockStrategy.newLocker());
+    used(created);
+    created.lock.tryWriteLock();
+    try {
+      if (this.files.putIfAbsent(filename, created) == null) {
+        try {
+          created.version = new Version(0, this.store.store(filename, 0, created.version.content));
+        } catch (RuntimeException e) {
+          this.files.remove(filename, created);
+          throw e;
+        }
+        // Only listed once it is certain to stay
+        this.names.add(filename);
+      }
+    } finally {
+      created.lock.writeUnlock();
+    }
   }
 
+  /**
+   * Blocks until the file is available in the given mode. If the thread is
+   * interrupted while waiting, gives up and returns Optional.empty() with the
+   * interrupt status set again.
+   */
   @Override
   public Optional<File> open(String filename, Mode mode) {
-    if (!this.files.containsKey(filename)) {
+    try {
+      return open(filename, mode, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       return Optional.empty();
     }
+  }
+
+  @Override
+  public Optional<File> tryOpen(String filename, Mode mode) {
+    try {
+      return open(filename, mode, 0);
+    } catch (InterruptedException e) {
+      // Never waits, so is never interrupted
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Optional<File> open(String filename, Mode mode, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return open(filename, mode, Math.max(unit.toNanos(timeout), 0));
+  }
+
+  /**
+   * Opens the file, waiting at most timeoutNanos for the lock. 0 means don't
+   * wait at all and a negative timeout means wait for as long as it takes.
+   */
+  private Optional<File> open(String filename, Mode mode, long timeoutNanos)
+      throws InterruptedException {
+    boolean timed = ServerMetrics.ENABLED && ServerMetrics.sampled();
+    long start = timed ? System.nanoTime() : 0;
     try {
-      switch (mode) {
-      case READABLE:
-        this.locks.get(filename).readLock();
-        break;
-      case READWRITEABLE:
-        this.locks.get(filename).writeLock();
-        break;
-      default:
+      FileFrame acquired = this.files.get(filename);
+      if (acquired == null) {
         return Optional.empty();
       }
-    } catch (Exception e) {
-      System.err.println(e);
+      boolean locking = ServerMetrics.ENABLED && mode != Mode.SNAPSHOT;
+      long waitStart = locking ? this.metrics.waitStart(acquired.lock, mode, timed, start) : 0;
+      if (!acquire(filename, acquired, mode, timeoutNanos)) {
+        return Optional.empty();
+      }
+      if (locking) {
+        this.metrics.waited(filename, mode, waitStart);
+      }
+      return Optional.of(opened(filename, acquired, mode, Thread.currentThread()));
+    } finally {
+      if (ServerMetrics.ENABLED) {
+        this.metrics.record(ServerMetrics.Op.OPEN, timed, start);
+      }
     }
-
-    FileFrame acquired = this.files.get(filename);
-    acquired.mode = mode;
-    return Optional.of(new File(filename, acquired.content, acquired.mode));
   }
 
+  /**
+   * Looks up every file first, and then locks them one at a time in filename
+   * order, so that two openAll calls wanting overlapping files always go for
+   * them in the same order and can't each end up holding what the other
+   * needs. If any of them can't be opened the ones already opened are closed
+   * again.
+   */
   @Override
-  public void close(File file) {
-    Mode actualMode = this.locks.get(file.filename()).getMode();
-    Mode fileMode = file.mode();
-    if (fileMode != actualMode) {
-      return;
+  public Optional<Map<String, File>> openAll(Map<String, Mode> modes) {
+    TreeMap<String, Mode> ordered = new TreeMap<String, Mode>(modes);
+    List<FileFrame> frames = new ArrayList<FileFrame>(ordered.size());
+    for (String filename : ordered.keySet()) {
+      FileFrame frame = this.files.get(filename);
+      if (frame == null) {
+        return Optional.empty();
+      }
+      frames.add(frame);
     }
-    FileFrame current = this.files.get(file.filename());
 
-    if (fileMode == Mode.READABLE) {
-      this.locks.get(file.filename()).readUnlock();
-    } else if (fileMode == Mode.READWRITEABLE) {
-      current.content = file.read();
-      this.locks.get(file.filename()).writeUnlock();
+    Map<String, File> opened = new LinkedHashMap<String, File>();
+    int i = 0;
+    try {
+      for (Map.Entry<String, Mode> entry : ordered.entrySet()) {
+        FileFrame frame = frames.get(i++);
+        if (!acquire(entry.getKey(), frame, entry.getValue(), -1)) {
+          closeAll(opened.values());
+          return Optional.empty();
+        }
+        opened.put(entry.getKey(), opened(entry.getKey(), frame, entry.getValue(), Thread.currentThread()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      closeAll(opened.values());
+      return Optional.empty();
     }
-
-    current.mode = this.locks.get(file.filename()).getMode();
-
+    return Optional.of(opened);
   }
 
   @Override
-  public Mode fileStatus(String filename) {
-    if (!files.containsKey(filename)) {
-      return Mode.UNKNOWN;
+  public void closeAll(Collection<File> files) {
+    for (File file : files) {
+      close(file);
     }
-    return this.locks.get(filename).getMode();
   }
 
-  @Override
-  public Set<String> availableFiles() {
-    return this.files.keySet();
+  /**
+   * Queues for the file's lock without blocking, see AsyncFileServer. The
+   * returned future is completed on the executor once the lock is held, or
+   * completes exceptionally with NoSuchElementException if there's no such
+   * file.
+   */
+  CompletableFuture<File> openAsync(String filename, Mode mode, Executor executor) {
+    CompletableFuture<File> result = new CompletableFuture<File>();
+    FileFrame acquired = this.files.get(filename);
+    if (acquired == null) {
+      result.completeExceptionally(new NoSuchElementException("No such file " + filename));
+      return result;
+    }
+    if (mode == Mode.SNAPSHOT) {
+      result.complete(opened(filename, acquired, mode, null));
+      return result;
+    }
+    if (mode != Mode.READABLE && mode != Mode.READWRITEABLE) {
+      result.completeExceptionally(new IllegalArgumentException("Cannot open a file in mode " + mode));
+      return result;
+    }
+
+    CompletableFuture<Void> locked = acquired.lock.lockAsync(mode);
+    locked.thenRunAsync(new Runnable() {
+      @Override
+      public void run() {
+        File file = opened(filename, acquired, mode, null);
+        if (!result.complete(file)) {
+          // Given up on by the caller in the meantime
+          close(file);
+        }
+      }
+    }, executor);
+    result.whenComplete(new BiConsumer<File, Throwable>() {
+      @Override
+      public void accept(File file, Throwable e) {
+        if (result.isCancelled()) {
+          locked.cancel(false);
+        }
+      }
+    });
+    return result;
   }
-}
 
-/**
- * ReadWriteLocker features two semaphores, readSem and writeSem
- * 
- * readSem allows for a specified maximum concurrent read requests, and
- * writeSem, only 1 write request.
- * 
- * This is due to the fact that there is a specified max buffer for the read
- * semaphore. Also, if the read is starting from a closed state, it also obtains
- * the write lock to prevent any writes while being read.
- * 
- * Similarly, when the write lock is being obtained (it can only be obtained if
- * all write and read locks are available), then it also allocated all of the
- * read locks in order to prevent any reads while being written to.
- */
-class ReadWriteLocker {
-  private int reads;
-  private boolean isWrite;
-  private ReentrantLock locker;
-  private Semaphore readSem;
-  private Semaphore writeSem;
-  private int MAXREADS;
-
-  public ReadWriteLocker() {
-    this.MAXREADS = 10000;
-    this.reads = 0;
-    this.isWrite = false;
-    this.locker = new ReentrantLock(true);
-    this.readSem = new Semaphore(MAXREADS);
-    this.writeSem = new Semaphore(1);
-  }
-
-  public int getReads() {
-    this.locker.lock();
+  /**
+   * Hands out a File for a frame whose lock has just been taken in mode by
+   * owner (null if no thread waited for it), which fetches the content when
+   * it is first used, or at its latest committed version for a SNAPSHOT
+   */
+  private File opened(String filename, FileFrame acquired, Mode mode, Thread owner) {
+    used(acquired);
+    inflate(acquired);
+    if (mode == Mode.SNAPSHOT) {
+      Version version = acquired.version;
+      File snapshot = new File(filename, version.content, mode, version.number);
+      snapshot.cache = this.cache;
+      return snapshot;
+    }
+    acquired.mode = mode;
+    if (ServerMetrics.ENABLED) {
+      this.metrics.holding(mode, true);
+    }
+    File file = new File(filename, acquired, mode);
+    file.cache = this.cache;
+    LockProfiler profiler = this.profiler;
+    if (profiler != null) {
+      profiler.acquired(file, owner);
+    }
+    Leases leases = this.leases;
+    if (leases != null) {
+      leases.grant(file);
+    }
+    return file;
+  }
 
-    try {
-      return this.reads;
-    } finally {
-      this.locker.unlock();
+  /**
+   * Stamps the frame as just used, if tiering is on
+   */
+  private void used(FileFrame frame) {
+    Tiering tiering = this.tiering;
+    if (tiering != null) {
+      frame.used = tiering.now();
     }
   }
 
-  public boolean isWrite() {
-    this.locker.lock();
+  /**
+   * Swaps content that Tiering compressed back for the decompressed bytes, so
+   * only the first open after the file went cold pays for decompressing it
+   */
+  private void inflate(FileFrame frame) {
+    Version version = frame.version;
+    if (!(version.content instanceof CompressedContent)) {
+      return;
+    }
+    CompressedContent compressed = (CompressedContent) version.content;
+    Version inflated = new Version(version.number, compressed.inflate());
+    if (FileFrame.VERSION.compareAndSet(frame, version, inflated) && ServerMetrics.ENABLED) {
+      this.metrics.compressed(compressed.size(), compressed.compressedSize(), false);
+    }
+  }
 
+  /**
+   * Takes the frame's lock in mode, as lock() does, telling the profiler about
+   * the wait if diagnostics are on. Returns false without waiting if the wait
+   * would complete a deadlock that the profiler is to break.
+   */
+  private boolean acquire(String filename, FileFrame frame, Mode mode, long timeoutNanos)
+      throws InterruptedException {
+    LockProfiler profiler = this.profiler;
+    if (profiler == null || mode == Mode.SNAPSHOT) {
+      return lock(frame.lock, mode, timeoutNanos);
+    }
+    if (timeoutNanos != 0 && !profiler.waiting(filename, mode)) {
+      return false;
+    }
+    boolean locked = false;
     try {
-      return this.isWrite;
+      locked = lock(frame.lock, mode, timeoutNanos);
     } finally {
-      this.locker.unlock();
+      if (!locked) {
+        profiler.gaveUp();
+      }
     }
+    return locked;
   }
 
   /**
-   * Read lock prevents writes and adds a read to the count
+   * Turns on diagnostics mode: from now on every lock held and waited for is
+   * tracked by a new LockProfiler, which is returned, and deadlocks between
+   * opens are found and reported or broken. Files already open aren't known to
+   * it.
    */
-  public void readLock() {
+  public LockProfiler diagnose(LockProfiler.OnDeadlock onDeadlock) {
+    LockProfiler profiler = new LockProfiler(onDeadlock);
+    this.profiler = profiler;
+    return profiler;
+  }
 
-    try {
-      this.readSem.acquire();
-    } catch (InterruptedException e) {
-      System.out.println(e);
+  /**
+   * Turns on leases: from now on every handle opened under a lock is leased
+   * for ttl, and reclaimed if it is neither closed nor renewed by then (see
+   * Leases). Returns the Leases, which count what has been granted and
+   * reclaimed. Handles already open aren't leased.
+   */
+  public Leases leases(long ttl, TimeUnit unit) {
+    Leases leases = new Leases(this, ttl, unit);
+    Leases previous = this.leases;
+    this.leases = leases;
+    if (previous != null) {
+      previous.stop();
     }
+    return leases;
+  }
 
-    this.locker.lock();
+  /**
+   * Turns on caching of decoded content: from now on files are read through
+   * a new ContentCache of capacity bytes, which is returned. It saves
+   * decoding content kept off-heap or on disk every time it's read, and is
+   * of little use with a HeapStore, whose content keeps its own text. A
+   * capacity of 0 turns caching off again, returning null. averageSize is
+   * roughly how big the files are, see ContentCache.
+   */
+  public ContentCache cache(long capacity, int averageSize) {
+    ContentCache cache = capacity > 0 ? new ContentCache(capacity, averageSize) : null;
+    this.cache = cache;
+    return cache;
+  }
 
-    try {
-      this.reads += 1;
-    } finally {
-      this.locker.unlock();
+  /**
+   * Turns on tiering: from now on the content of files left CLOSED for idle
+   * is compressed, and decompressed again when they are next opened (see
+   * Tiering). Returns the Tiering, and the compression ratio is in metrics().
+   * Meant for content kept in memory; MappedStore's is on disk already, and
+   * is left alone.
+   */
+  public Tiering tier(long idle, TimeUnit unit) {
+    Tiering tiering = new Tiering(this.files, this.metrics, idle, unit);
+    for (FileFrame frame : this.files.values()) {
+      frame.used = tiering.now();
     }
+    Tiering previous = this.tiering;
+    this.tiering = tiering;
+    if (previous != null) {
+      previous.stop();
+    }
+    return tiering;
   }
 
-  public void writeLock() {
+  /**
+   * Renews file's lease for the time to live it was last given, returning
+   * false if it has run out already, and the handle with it. Handles without
+   * a lease (SNAPSHOTs, or opened before leases were turned on) never run out.
+   */
+  public boolean renew(File file) {
+    Leases.Lease lease = file.lease;
+    return lease == null || Leases.renew(lease, lease.ttlNanos);
+  }
 
-    try {
-      this.readSem.acquire(this.MAXREADS);
-      this.writeSem.acquire();
-    } catch (InterruptedException e) {
-      System.out.println(e);
+  /**
+   * Renews file's lease for ttl from now, see renew(File)
+   */
+  public boolean renew(File file, long ttl, TimeUnit unit) {
+    Leases.Lease lease = file.lease;
+    return lease == null || Leases.renew(lease, unit.toNanos(ttl));
+  }
+
+  /**
+   * Takes back the lock of a handle whose lease has run out, throwing away
+   * anything written through it. Its holder may still be using it, so the
+   * handle itself isn't touched.
+   */
+  void expire(File file) {
+    FileFrame current = this.files.get(file.filename());
+    if (current == null) {
+      return;
+    }
+    LockProfiler profiler = this.profiler;
+    if (profiler != null) {
+      profiler.released(file);
     }
+    // Can't be changed until the lock is given back
+    file.lease.pinned = current.version;
+    if (file.mode() == Mode.READABLE) {
+      current.lock.readUnlock();
+    } else {
+      current.lock.writeUnlock();
+    }
+    if (ServerMetrics.ENABLED) {
+      this.metrics.holding(file.mode(), false);
+    }
+    current.mode = current.lock.getMode();
+  }
 
-    this.locker.lock();
+  private static boolean lock(ReadWriteLocker lock, Mode mode, long timeoutNanos)
+      throws InterruptedException {
+    switch (mode) {
+    case SNAPSHOT:
+      return true;
+    case READABLE:
+      if (timeoutNanos < 0) {
+        lock.readLock();
+        return true;
+      }
+      if (timeoutNanos == 0) {
+        return lock.tryReadLock();
+      }
+      return lock.tryReadLock(timeoutNanos, TimeUnit.NANOSECONDS);
+    case READWRITEABLE:
+      if (timeoutNanos < 0) {
+        lock.writeLock();
+        return true;
+      }
+      if (timeoutNanos == 0) {
+        return lock.tryWriteLock();
+      }
+      return lock.tryWriteLock(timeoutNanos, TimeUnit.NANOSECONDS);
+    default:
+      return false;
+    }
+  }
 
+  @Override
+  public void close(File file) {
+    boolean timed = ServerMetrics.ENABLED && ServerMetrics.sampled();
+    long start = timed ? System.nanoTime() : 0;
     try {
-      this.isWrite = true;
+      closeFile(file);
     } finally {
-      this.locker.unlock();
+      if (ServerMetrics.ENABLED) {
+        this.metrics.record(ServerMetrics.Op.CLOSE, timed, start);
+      }
     }
   }
 
-  public void readUnlock() {
-    this.locker.lock();
+  private void closeFile(File file) {
+    FileFrame current = this.files.get(file.filename());
+    // Snapshots hold no lock, so there is nothing to give back
+    if (current == null || file.mode() == Mode.SNAPSHOT) {
+      return;
+    }
+    Mode actualMode = current.lock.getMode();
+    Mode fileMode = file.mode();
+    if (fileMode != actualMode) {
+      return;
+    }
+    // A handle closed twice would otherwise release someone else's use
+    if (!file.closing()) {
+      return;
+    }
+    // A lease that has run out has had its lock taken back already
+    if (file.lease != null && !file.lease.end()) {
+      return;
+    }
+    LockProfiler profiler = this.profiler;
+    if (profiler != null) {
+      profiler.released(file);
+    }
 
-    try {
-      this.reads--;
-      if (this.reads == 0) {
-        this.writeSem.release();
+    if (fileMode == Mode.READABLE) {
+      file.pin();
+      current.lock.readUnlock();
+    } else if (fileMode == Mode.READWRITEABLE && !file.changed()) {
+      // Nothing written, so nothing to store and no new version
+      file.pin();
+      current.lock.writeUnlock();
+    } else if (fileMode == Mode.READWRITEABLE) {
+      long number = current.version.number + 1;
+      List<Delta> deltas = file.deltas();
+      Content committed = deltas == null ? this.store.store(file.filename(), number, file.content())
+          : this.store.apply(file.filename(), number, file.content(), deltas);
+      current.version = new Version(number, committed);
+      ContentCache cache = this.cache;
+      if (cache != null) {
+        cache.invalidate(file.filename());
       }
-      this.readSem.release();
-
-    } finally {
-      this.locker.unlock();
+      current.lock.writeUnlock();
     }
-  }
+    if (ServerMetrics.ENABLED && (fileMode == Mode.READABLE || fileMode == Mode.READWRITEABLE)) {
+      this.metrics.holding(fileMode, false);
+    }
+    used(current);
 
-  public void writeUnlock() {
-    this.locker.lock();
+    current.mode = current.lock.getMode();
 
-    try {
-      this.isWrite = false;
-      this.writeSem.release();
-      this.readSem.release(this.MAXREADS);
+  }
 
-    } finally {
-      this.locker.unlock();
+  @Override
+  public Mode fileStatus(String filename) {
+    boolean timed = ServerMetrics.ENABLED && ServerMetrics.sampled();
+    long start = timed ? System.nanoTime() : 0;
+    FileFrame current = this.files.get(filename);
+    Mode mode = current == null ? Mode.UNKNOWN : current.lock.getMode();
+    if (ServerMetrics.ENABLED) {
+      this.metrics.record(ServerMetrics.Op.STATUS, timed, start);
     }
+    return mode;
   }
 
-  public Mode getMode() {
-    this.locker.lock();
+  /**
+   * What this server has been doing, see ServerMetrics
+   */
+  public ServerMetrics metrics() {
+    return this.metrics;
+  }
 
-    try {
-      if (this.isWrite) {
-        return Mode.READWRITEABLE;
-      } else if (this.reads > 0) {
-        return Mode.READABLE;
-      }
-      return Mode.CLOSED;
-    } finally {
-      this.locker.unlock();
-    }
+  /**
+   * The names of this server's files in order, to list by prefix, range or
+   * directory a page at a time, and count, without walking all of them
+   */
+  public NameIndex names() {
+    return this.names;
+  }
+
+  /**
+   * Whether this server's content goes to a persistent store, so that creates
+   * and commits may wait on the disk
+   */
+  public boolean persistent() {
+    return this.store.persistent();
+  }
+
+  /**
+   * Every filename in order, as a view that can't be changed and that sees
+   * files created after it was taken (see NameIndex)
+   */
+  @Override
+  public Set<String> availableFiles() {
+    return this.names.all();
   }
-}
\ No newline at end of file
+}
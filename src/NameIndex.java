@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * NameIndex keeps the names of a server's files in order, so they can be
+ * listed a page, a prefix or a range at a time rather than all at once.
+ *
+ * The names are kept in a ConcurrentSkipListSet next to the server's map of
+ * files, sharing its Strings, so the index costs a skip list node (and a share
+ * of its index levels) per name. Adding never blocks a lookup or another add,
+ * and listings walk the list as it is, weakly consistent like the JDK's
+ * concurrent collections: a name added before a listing starts is in it, one
+ * added during may or may not be, and nothing is ever listed twice or out of
+ * order.
+ *
+ * Pages are taken from a cursor, the last name of the previous page, so each
+ * one costs a search for where it starts plus the names on it, however deep
+ * into the listing it is. Directory-style listings (see children()) jump over
+ * everything under a subdirectory once it has been listed, so listing a
+ * directory costs its direct entries, not every name under it.
+ *
+ * Names are only ever added (a server doesn't delete files), and count() is
+ * only raised once a name is in the set, so a listing started after count()
+ * has returned n has at least n names in it.
+ *
+ * @author jamesjarvis
+ */
+public class NameIndex {
+
+  private final ConcurrentSkipListSet<String> names;
+  private final AtomicInteger count;
+
+  public NameIndex() {
+    this.names = new ConcurrentSkipListSet<String>();
+    this.count = new AtomicInteger();
+  }
+
+  /**
+   * Adds name, returning false if it was already there
+   */
+  boolean add(String name) {
+    if (!this.names.add(name)) {
+      return false;
+    }
+    this.count.incrementAndGet();
+    return true;
+  }
+
+  public boolean contains(String name) {
+    return this.names.contains(name);
+  }
+
+  /**
+   * How many names there are, in constant time
+   */
+  public int count() {
+    return this.count.get();
+  }
+
+  /**
+   * Every name, in order, as a view that can't be changed
+   */
+  public NavigableSet<String> all() {
+    return Collections.unmodifiableNavigableSet(this.names);
+  }
+
+  /**
+   * The names starting with prefix, in order, walked lazily as the stream is
+   * consumed
+   */
+  public Stream<String> stream(String prefix) {
+    return between(prefix, null, successor(prefix)).stream();
+  }
+
+  /**
+   * Up to limit names starting with prefix, in order, after the name after
+   * (or from the first, if after is null)
+   */
+  public List<String> list(String prefix, String after, int limit) {
+    return page(between(prefix, after, successor(prefix)), limit);
+  }
+
+  /**
+   * Up to limit names from from (inclusive) to to (exclusive), in order, after
+   * the name after (or from the first, if after is null). Either bound can be
+   * null for no bound.
+   */
+  public List<String> range(String from, String to, String after, int limit) {
+    return page(between(from, after, to), limit);
+  }
+
+  /**
+   * Up to limit entries of the directory prefix, in order, after the entry
+   * after (or from the first, if after is null), where a name is split into
+   * directories at each separator. An entry is either a name starting with
+   * prefix with no separator after it, or the prefix of the names in one
+   * subdirectory, up to and including the separator, listed once however many
+   * names there are in it.
+   */
+  public List<String> children(String prefix, char separator, String after, int limit) {
+    List<String> page = new ArrayList<String>(Math.min(limit, 1024));
+    NavigableSet<String> directory = between(prefix, null, successor(prefix));
+    String name = after == null ? directory.ceiling(prefix) : directory.higher(after);
+    if (after != null && after.endsWith(Character.toString(separator))) {
+      // Past the subdirectory the last page ended with
+      name = ceiling(directory, successor(after));
+    }
+    while (name != null && page.size() < limit) {
+      int split = name.indexOf(separator, prefix.length());
+      if (split < 0) {
+        page.add(name);
+        name = directory.higher(name);
+      } else {
+        String subdirectory = name.substring(0, split + 1);
+        page.add(subdirectory);
+        name = ceiling(directory, successor(subdirectory));
+      }
+    }
+    return page;
+  }
+
+  /**
+   * The names from from (inclusive) or after after (exclusive), whichever is
+   * later, to to (exclusive), where any of them can be null for no bound
+   */
+  private NavigableSet<String> between(String from, String after, String to) {
+    boolean inclusive = true;
+    if (after != null && (from == null || after.compareTo(from) >= 0)) {
+      from = after;
+      inclusive = false;
+    }
+    if (from != null && to != null) {
+      return from.compareTo(to) < 0 ? this.names.subSet(from, inclusive, to, false)
+          : Collections.<String>emptyNavigableSet();
+    } else if (from != null) {
+      return this.names.tailSet(from, inclusive);
+    } else if (to != null) {
+      return this.names.headSet(to, false);
+    }
+    return this.names;
+  }
+
+  private static List<String> page(NavigableSet<String> names, int limit) {
+    List<String> page = new ArrayList<String>(Math.min(limit, 1024));
+    for (String name : names) {
+      if (page.size() == limit) {
+        break;
+      }
+      page.add(name);
+    }
+    return page;
+  }
+
+  private static String ceiling(NavigableSet<String> names, String name) {
+    return name == null ? null : names.ceiling(name);
+  }
+
+  /**
+   * The least string greater than every string starting with prefix, or null
+   * if there isn't one (prefix is all Character.MAX_VALUE)
+   */
+  static String successor(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+}
@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NetworkBenchmark measures a NetworkServer over loopback with many clients
+ * connected at once, each a RemoteFileServer with its own connection.
+ *
+ * For each combination of parameters a fresh server is started on an
+ * ephemeral port with `files` files of `size` bytes, `connections` clients
+ * connect to it, and `threads` threads per connection run open/close cycles
+ * on random files for `seconds` seconds, sharing their connection, so with
+ * more than one thread per connection requests are pipelined. A cycle opens a
+ * file, READWRITEABLE with probability `writes` percent (appending a few bytes
+ * before closing) and READABLE otherwise, with the content coming back on the
+ * open. One row is printed with the cycles per second and the percentiles of
+ * how long a cycle took.
+ *
+ *   java NetworkBenchmark connections=100,1000,4000 threads=1,4
+ *
+ * connections  clients connected at once           (default 100,1000,4000)
+ * threads      threads per connection              (default 1)
+ * files        number of files                     (default 1000)
+ * size         bytes per file                      (default 1024)
+ * writes       percent of opens READWRITEABLE      (default 10)
+ * seconds      length of each run                  (default 5)
+ *
+ * Thousands of connections need as many open files, see ulimit -n.
+ *
+ * @author jamesjarvis
+ */
+public class NetworkBenchmark {
+
+  private static final String[] DEFAULTS = { "connections=100,1000,4000", "threads=1", "files=1000",
+      "size=1024", "writes=10", "seconds=5" };
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    int files = Integer.parseInt(params.get("files")[0]);
+    int size = Integer.parseInt(params.get("size")[0]);
+    int writes = Integer.parseInt(params.get("writes")[0]);
+    int seconds = Integer.parseInt(params.get("seconds")[0]);
+
+    System.out.printf("%11s %7s %12s %10s %10s %10s%n", "connections", "threads", "cycles/s", "p50 us",
+        "p99 us", "p999 us");
+
+    for (String connections : params.get("connections")) {
+      for (String threads : params.get("threads")) {
+        run(Integer.parseInt(connections), Integer.parseInt(threads), files, size, writes, seconds);
+      }
+    }
+  }
+
+  private static void run(int connections, int threads, int files, int size, int writes, int seconds)
+      throws Exception {
+    MyFileServer fs = new MyFileServer();
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < size; i++) {
+      content.append((char) ('a' + i % 26));
+    }
+    for (int i = 0; i < files; i++) {
+      fs.create(i + ".txt", content.toString());
+    }
+
+    try (NetworkServer server = new NetworkServer(fs, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+      List<RemoteFileServer> clients = new ArrayList<RemoteFileServer>();
+      for (int c = 0; c < connections; c++) {
+        clients.add(new RemoteFileServer(server.address()));
+      }
+
+      Histogram latencies = new Histogram();
+      LongAdder cycles = new LongAdder();
+      long end = System.nanoTime() + seconds * 1000000000L;
+      List<Thread> workers = new ArrayList<Thread>();
+      for (RemoteFileServer client : clients) {
+        for (int t = 0; t < threads; t++) {
+          Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+              ThreadLocalRandom random = ThreadLocalRandom.current();
+              long now;
+              while ((now = System.nanoTime()) < end) {
+                boolean write = random.nextInt(100) < writes;
+                Optional<File> file = client.open(random.nextInt(files) + ".txt",
+                    write ? Mode.READWRITEABLE : Mode.READABLE);
+                if (!file.isPresent()) {
+                  return;
+                }
+                if (write) {
+                  file.get().append("x");
+                }
+                client.close(file.get());
+                latencies.record(System.nanoTime() - now);
+                cycles.increment();
+              }
+            }
+          });
+          worker.setDaemon(true);
+          workers.add(worker);
+        }
+      }
+      long start = System.nanoTime();
+      for (Thread worker : workers) {
+        worker.start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      long elapsed = System.nanoTime() - start;
+
+      System.out.printf("%11d %7d %12.0f %10.1f %10.1f %10.1f%n", connections, threads,
+          cycles.sum() * 1e9 / elapsed, latencies.percentile(0.5) / 1e3, latencies.percentile(0.99) / 1e3,
+          latencies.percentile(0.999) / 1e3);
+
+      for (RemoteFileServer client : clients) {
+        close(client);
+      }
+    }
+  }
+
+  private static void close(RemoteFileServer client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      System.err.println(e);
+    }
+  }
+}
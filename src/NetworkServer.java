@@ -0,0 +1,607 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * NetworkServer serves a MyFileServer over TCP, speaking Protocol, so that it
+ * can be used from other processes (see RemoteFileServer).
+ *
+ * Everything runs on one selector thread, which never blocks: it accepts
+ * connections, reads whatever requests have arrived on each, carries them out
+ * in order and queues their responses, which go out in gathering writes of as
+ * many as are ready. The exception is storing content in a persistent store,
+ * which may wait on the disk (a WriteAheadLog in SYNC mode fsyncs every
+ * commit), so there creates and closes that commit a change are handed to a
+ * small pool of threads, and the connection reads nothing more until the
+ * store is done, so its requests are still carried out in order. Opens that
+ * have to wait for a file go through the server's asynchronous open (see
+ * AsyncFileServer), so a connection waiting for a busy file is just an entry
+ * in that file's queue, and when the file is granted the rest of the open is
+ * run back on the selector thread. A timed open is given up on by cancelling
+ * it when the timeout runs out.
+ *
+ * File content is never copied into a response: the response's header is
+ * followed in the queue by views of the content itself (see Content.views),
+ * so content kept off-heap, by DirectStore or MappedStore, is sent without
+ * any copy on the Java side at all.
+ *
+ * Each connection has its own table of the files it has open, and closing the
+ * connection (or losing it) closes them all and gives up on any opens it was
+ * still waiting for.
+ *
+ * @author jamesjarvis
+ */
+public class NetworkServer implements Closeable {
+
+  private static final int BUFFER_SIZE = 64 << 10;
+  private static final int HEAP_SLICE = 64 << 10;
+  private static final int HEAP_BATCH = 256 << 10;
+  // Enough stores at once for a WriteAheadLog to commit several per fsync
+  private static final int STORE_THREADS = 16;
+
+  private final MyFileServer fs;
+  private final ServerSocketChannel listener;
+  private final Selector selector;
+  private final ConcurrentLinkedQueue<Runnable> tasks;
+  private final Executor onLoop;
+  private final ScheduledExecutorService timeouts;
+  // Where content is stored, if the store is persistent, otherwise null
+  private final ExecutorService storing;
+  private final Set<Connection> connections;
+  private final Thread loop;
+  private volatile boolean closed;
+
+  /**
+   * One client connection, only ever touched on the selector thread
+   */
+  private final class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    ByteBuffer in;
+    final ArrayDeque<ByteBuffer> out;
+    final Map<Integer, File> handles;
+    final Set<CompletableFuture<File>> opening;
+    int nextHandle;
+    // Waiting for a create or close to be stored, before reading on
+    boolean storing;
+    boolean closed;
+
+    Connection(SocketChannel channel) throws IOException {
+      this.channel = channel;
+      this.key = channel.register(NetworkServer.this.selector, SelectionKey.OP_READ, this);
+      this.in = ByteBuffer.allocate(BUFFER_SIZE);
+      this.out = new ArrayDeque<ByteBuffer>();
+      this.handles = new HashMap<Integer, File>();
+      this.opening = new HashSet<CompletableFuture<File>>();
+    }
+  }
+
+  public NetworkServer(MyFileServer fs, InetSocketAddress address) throws IOException {
+    this.fs = fs;
+    this.selector = Selector.open();
+    this.listener = ServerSocketChannel.open();
+    this.listener.bind(address, 4096);
+    this.listener.configureBlocking(false);
+    this.listener.register(this.selector, SelectionKey.OP_ACCEPT);
+    this.tasks = new ConcurrentLinkedQueue<Runnable>();
+    this.onLoop = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        NetworkServer.this.tasks.add(task);
+        NetworkServer.this.selector.wakeup();
+      }
+    };
+    this.timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "network-server-timeouts");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.storing = !fs.persistent() ? null : Executors.newFixedThreadPool(STORE_THREADS, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "network-server-store");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.connections = new HashSet<Connection>();
+    this.loop = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    }, "network-server");
+    this.loop.start();
+  }
+
+  /**
+   * Where the server is listening, with the actual port if it was given 0
+   */
+  public InetSocketAddress address() throws IOException {
+    return (InetSocketAddress) this.listener.getLocalAddress();
+  }
+
+  private void serve() {
+    try {
+      while (!this.closed) {
+        this.selector.select();
+        Runnable task;
+        while ((task = this.tasks.poll()) != null) {
+          task.run();
+        }
+        Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey key = selected.next();
+          selected.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isReadable()) {
+              read(connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+              flush(connection);
+            }
+          } catch (IOException e) {
+            disconnect(connection);
+          }
+        }
+      }
+    } catch (IOException e) {
+      if (!this.closed) {
+        System.err.println(e);
+      }
+    } finally {
+      for (Connection connection : new ArrayList<Connection>(this.connections)) {
+        disconnect(connection);
+      }
+      try {
+        this.listener.close();
+        this.selector.close();
+      } catch (IOException e) {
+        System.err.println(e);
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = this.listener.accept()) != null) {
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      this.connections.add(new Connection(channel));
+    }
+  }
+
+  /**
+   * Reads what has arrived and carries out every whole request in it, then
+   * sends as many of the responses as the socket will take
+   */
+  private void read(Connection connection) throws IOException {
+    if (connection.channel.read(connection.in) < 0) {
+      disconnect(connection);
+      return;
+    }
+    process(connection);
+  }
+
+  /**
+   * Carries out the whole requests read so far, up to one that has to be
+   * stored, then sends as many of the responses as the socket will take
+   */
+  private void process(Connection connection) throws IOException {
+    ByteBuffer in = connection.in;
+    in.flip();
+    while (!connection.storing && in.remaining() >= 4) {
+      int length = in.getInt(in.position());
+      if (length < 5 || length > Protocol.MAX_FRAME) {
+        disconnect(connection);
+        return;
+      }
+      if (in.remaining() < 4 + length) {
+        break;
+      }
+      ByteBuffer frame = in.slice();
+      frame.limit(4 + length);
+      in.position(in.position() + 4 + length);
+      frame.getInt();
+      int id = frame.getInt();
+      handle(connection, id, frame);
+    }
+    if (in.remaining() >= 4 && 4 + in.getInt(in.position()) > in.capacity()) {
+      // Too big for the buffer, so make room for the whole frame
+      ByteBuffer bigger = ByteBuffer.allocate(4 + in.getInt(in.position()));
+      bigger.put(in);
+      connection.in = bigger;
+    } else {
+      in.compact();
+    }
+    flush(connection);
+  }
+
+  private void handle(Connection connection, int id, ByteBuffer request) {
+    try {
+      byte op = request.get();
+      switch (op) {
+      case Protocol.CREATE:
+        String name = Protocol.getString(request);
+        String content = StandardCharsets.UTF_8.decode(Protocol.getBytes(request)).toString();
+        store(connection, id, true, new Runnable() {
+          @Override
+          public void run() {
+            NetworkServer.this.fs.create(name, content);
+          }
+        });
+        return;
+      case Protocol.OPEN:
+        open(connection, id, Protocol.getString(request), Mode.values()[request.get()], request.getLong(),
+            request.get() == 1);
+        return;
+      case Protocol.READ:
+        read(connection, id, connection.handles.get(request.getInt()), request.getInt(), request.getInt());
+        return;
+      case Protocol.WRITE:
+        write(connection, id, connection.handles.get(request.getInt()), request.get(), request.getInt(),
+            Protocol.getBytes(request));
+        return;
+      case Protocol.CLOSE:
+        File file = connection.handles.remove(request.getInt());
+        if (file == null) {
+          respond(connection, id, Protocol.BAD_HANDLE);
+          return;
+        }
+        store(connection, id, file.changed(), new Runnable() {
+          @Override
+          public void run() {
+            NetworkServer.this.fs.close(file);
+          }
+        });
+        return;
+      case Protocol.STATUS:
+        ByteBuffer status = response(id, Protocol.OK, 1);
+        status.put((byte) this.fs.fileStatus(Protocol.getString(request)).ordinal());
+        send(connection, status);
+        return;
+      case Protocol.LIST:
+        list(connection, id);
+        return;
+      default:
+        respond(connection, id, Protocol.BAD_REQUEST);
+      }
+    } catch (RuntimeException e) {
+      // Malformed arguments, such as a frame cut short or a bad mode
+      respond(connection, id, Protocol.BAD_REQUEST);
+    }
+  }
+
+  /**
+   * Carries out a create or close and responds OK. If it stores content in a
+   * persistent store it is run on the storing pool instead of here, and the
+   * connection's later requests wait for it; if it fails the response is
+   * BAD_REQUEST, as it would be here.
+   */
+  private void store(Connection connection, int id, boolean stores, Runnable work) {
+    if (this.storing == null || !stores) {
+      work.run();
+      respond(connection, id, Protocol.OK);
+      return;
+    }
+    connection.storing = true;
+    CompletableFuture.runAsync(work, this.storing).whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+      @Override
+      public void accept(Void done, Throwable e) {
+        connection.storing = false;
+        if (connection.closed) {
+          return;
+        }
+        respond(connection, id, e == null ? Protocol.OK : Protocol.BAD_REQUEST);
+        try {
+          process(connection);
+        } catch (IOException failed) {
+          disconnect(connection);
+        }
+      }
+    }, this.onLoop);
+  }
+
+  /**
+   * Closes a file nobody is waiting to hear about, on the storing pool if
+   * that means storing it
+   */
+  private void release(File file) {
+    if (this.storing == null || !file.changed()) {
+      this.fs.close(file);
+      return;
+    }
+    this.storing.execute(new Runnable() {
+      @Override
+      public void run() {
+        NetworkServer.this.fs.close(file);
+      }
+    });
+  }
+
+  private void open(Connection connection, int id, String filename, Mode mode, long timeoutNanos,
+      boolean fetch) {
+    if (timeoutNanos == 0 || (mode != Mode.READABLE && mode != Mode.READWRITEABLE)) {
+      // Never waits (a SNAPSHOT never does), so can be done here and now
+      Optional<File> file = this.fs.tryOpen(filename, mode);
+      if (file.isPresent()) {
+        opened(connection, id, file.get(), fetch);
+      } else {
+        respond(connection, id, this.fs.fileStatus(filename) == Mode.UNKNOWN ? Protocol.NOT_FOUND
+            : Protocol.UNAVAILABLE);
+      }
+      return;
+    }
+
+    CompletableFuture<File> opening = this.fs.openAsync(filename, mode, this.onLoop);
+    connection.opening.add(opening);
+    if (timeoutNanos > 0) {
+      this.timeouts.schedule(new Runnable() {
+        @Override
+        public void run() {
+          opening.cancel(false);
+        }
+      }, timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+    opening.whenCompleteAsync(new BiConsumer<File, Throwable>() {
+      @Override
+      public void accept(File file, Throwable e) {
+        connection.opening.remove(opening);
+        if (connection.closed) {
+          if (file != null) {
+            release(file);
+          }
+          return;
+        }
+        if (file != null) {
+          opened(connection, id, file, fetch);
+        } else {
+          Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+          respond(connection, id, cause instanceof NoSuchElementException ? Protocol.NOT_FOUND
+              : Protocol.UNAVAILABLE);
+        }
+        try {
+          flush(connection);
+        } catch (IOException failed) {
+          disconnect(connection);
+        }
+      }
+    }, this.onLoop);
+  }
+
+  private void opened(Connection connection, int id, File file, boolean fetch) {
+    int handle = connection.nextHandle++;
+    connection.handles.put(handle, file);
+    if (!fetch) {
+      ByteBuffer response = response(id, Protocol.OK, 12);
+      response.putInt(handle);
+      response.putLong(file.version());
+      send(connection, response);
+      return;
+    }
+    // Any more than a chunk is left for the client to read
+    Content content = file.content();
+    int sent = Math.min(content.size(), Protocol.MAX_CHUNK);
+    ByteBuffer header = Protocol.header(id, 1 + 12 + 4 + 4 + sent, 1 + 12 + 4 + 4);
+    header.put(Protocol.OK);
+    header.putInt(handle);
+    header.putLong(file.version());
+    header.putInt(content.size());
+    header.putInt(sent);
+    send(connection, header, content, 0, sent);
+  }
+
+  private void read(Connection connection, int id, File file, int offset, int length) {
+    if (file == null) {
+      respond(connection, id, Protocol.BAD_HANDLE);
+      return;
+    }
+    Content content = file.content();
+    if (offset < 0) {
+      respond(connection, id, Protocol.BAD_REQUEST);
+      return;
+    }
+    int available = Math.max(0, content.size() - offset);
+    int sent = Math.min(length < 0 ? available : Math.min(length, available), Protocol.MAX_CHUNK);
+    ByteBuffer header = Protocol.header(id, 1 + 4 + sent, 1 + 4);
+    header.put(Protocol.OK);
+    header.putInt(sent);
+    send(connection, header, content, offset, sent);
+  }
+
+  private void write(Connection connection, int id, File file, byte how, int offset, ByteBuffer bytes) {
+    if (file == null) {
+      respond(connection, id, Protocol.BAD_HANDLE);
+      return;
+    }
+    boolean written;
+    if (how == Protocol.REPLACE) {
+      written = file.write(bytes);
+    } else if (how == Protocol.APPEND) {
+      written = file.append(bytes);
+    } else if (how == Protocol.AT) {
+      written = file.write(offset, bytes);
+    } else {
+      respond(connection, id, Protocol.BAD_REQUEST);
+      return;
+    }
+    respond(connection, id, written ? Protocol.OK : Protocol.BAD_HANDLE);
+  }
+
+  private void list(Connection connection, int id) {
+    List<String> names = new ArrayList<String>(this.fs.availableFiles());
+    int length = 4;
+    for (String name : names) {
+      length += Protocol.stringLength(name);
+    }
+    ByteBuffer response = response(id, Protocol.OK, length);
+    response.putInt(names.size());
+    for (String name : names) {
+      Protocol.putString(response, name);
+    }
+    send(connection, response);
+  }
+
+  private static ByteBuffer response(int id, byte status, int results) {
+    ByteBuffer response = Protocol.frame(id, 1 + results);
+    response.put(status);
+    return response;
+  }
+
+  private void respond(Connection connection, int id, byte status) {
+    send(connection, response(id, status, 0));
+  }
+
+  private void send(Connection connection, ByteBuffer response) {
+    response.flip();
+    connection.out.add(response);
+  }
+
+  /**
+   * Sends a response header followed by length bytes of content from offset,
+   * which go out straight from the content's own memory rather than being
+   * copied into the response
+   */
+  private void send(Connection connection, ByteBuffer header, Content content, int offset, int length) {
+    send(connection, header);
+    List<ByteBuffer> views = new ArrayList<ByteBuffer>(1);
+    content.views(offset, length, views);
+    for (ByteBuffer view : views) {
+      if (view.isDirect()) {
+        connection.out.add(view);
+        continue;
+      }
+      // The JDK copies a heap buffer into a temporary direct one of its whole
+      // size on every write, however little the socket takes, so large heap
+      // views go as slices, and flush() writes only a few of them at a time
+      for (int from = 0; from < view.limit(); from += HEAP_SLICE) {
+        ByteBuffer slice = view.duplicate();
+        slice.limit(Math.min(view.limit(), from + HEAP_SLICE));
+        slice.position(from);
+        connection.out.add(slice.slice());
+      }
+    }
+  }
+
+  /**
+   * Writes out as many queued responses as the socket will take in one
+   * gathering write, and waits to be told it can take more if any are left.
+   * Content views are written from wherever they are: off-heap ones go to the
+   * kernel as they are, and heap ones are copied once by the JDK on the way.
+   */
+  private void flush(Connection connection) throws IOException {
+    if (connection.closed) {
+      return;
+    }
+    List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    while (!connection.out.isEmpty()) {
+      // Only so many heap bytes at a time, as each is copied before the write
+      int heap = 0;
+      batch.clear();
+      for (ByteBuffer queued : connection.out) {
+        if (!batch.isEmpty() && heap >= HEAP_BATCH) {
+          break;
+        }
+        batch.add(queued);
+        heap += queued.isDirect() ? 0 : queued.remaining();
+      }
+      connection.channel.write(batch.toArray(new ByteBuffer[0]));
+      while (!connection.out.isEmpty() && !connection.out.peek().hasRemaining()) {
+        connection.out.poll();
+      }
+      if (!connection.out.isEmpty() && connection.out.peek().hasRemaining()) {
+        break;
+      }
+    }
+    // Nothing more is read while a request is being stored
+    int ops = connection.storing ? 0 : SelectionKey.OP_READ;
+    if (!connection.out.isEmpty()) {
+      ops |= SelectionKey.OP_WRITE;
+    }
+    if (connection.key.interestOps() != ops) {
+      connection.key.interestOps(ops);
+    }
+  }
+
+  /**
+   * Closes the connection, along with every file it had open, and gives up on
+   * the opens it was waiting for
+   */
+  private void disconnect(Connection connection) {
+    if (connection.closed) {
+      return;
+    }
+    connection.closed = true;
+    this.connections.remove(connection);
+    connection.key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      // Going anyway
+    }
+    for (CompletableFuture<File> opening : new ArrayList<CompletableFuture<File>>(connection.opening)) {
+      opening.cancel(false);
+    }
+    for (File file : connection.handles.values()) {
+      release(file);
+    }
+    connection.handles.clear();
+  }
+
+  /**
+   * Stops serving, closing every connection
+   */
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    this.selector.wakeup();
+    try {
+      this.loop.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.timeouts.shutdownNow();
+    if (this.storing != null) {
+      // Lets the stores already started finish
+      this.storing.shutdown();
+    }
+  }
+}
@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol is the wire format spoken between NetworkServer and
+ * RemoteFileServer.
+ *
+ * Every message is a frame: an int length of the rest of the frame, then an
+ * int request id chosen by the client. A request follows the id with a one
+ * byte op and the op's arguments, and its response follows the same id with a
+ * one byte status and the results. Clients may send any number of requests
+ * without waiting for responses (pipelining), and responses can come back in
+ * a different order to the requests, an open waiting for a busy file not
+ * holding up anything behind it, so the id is what ties them together.
+ *
+ * Numbers are big-endian, strings are an unsigned short length then UTF-8
+ * bytes (so no more than MAX_STRING of them), and byte arrays are an int
+ * length then the bytes. Open files are referred to by an int handle, which
+ * only means something on the connection that opened them.
+ *
+ *   op       arguments                              results
+ *   CREATE   name, content bytes                    -
+ *   OPEN     name, mode, timeout ns (-1 to block),  handle, version (long),
+ *            fetch (byte)                           and if fetched the size
+ *                                                   and the first bytes
+ *   READ     handle, offset, length (-1 for all)    bytes
+ *   WRITE    handle, how, offset, bytes             -
+ *   CLOSE    handle                                 -
+ *   STATUS   name                                   mode
+ *   LIST     -                                      count, names
+ *
+ * An OPEN with fetch set to 1 gets the content back with the handle, saving a
+ * READ for clients that want all of it, and one with 0 just takes the lock.
+ * No response carries more than MAX_CHUNK bytes of content, so every frame
+ * stays well under MAX_FRAME however big the file: a fetching OPEN sends the
+ * content's whole size but only its first MAX_CHUNK bytes, and a READ sends
+ * at most MAX_CHUNK, leaving the client to READ the rest a range at a time.
+ * Clients keep to the same limit, sending bigger changes as several WRITEs at
+ * offsets, and content too big to CREATE in one frame isn't sent at all.
+ * WRITE replaces the whole content (REPLACE), appends (APPEND) or writes at
+ * the offset (AT), which is ignored for the other two. Modes are sent as their
+ * ordinal in Mode.
+ */
+final class Protocol {
+  static final byte CREATE = 1;
+  static final byte OPEN = 2;
+  static final byte READ = 3;
+  static final byte WRITE = 4;
+  static final byte CLOSE = 5;
+  static final byte STATUS = 6;
+  static final byte LIST = 7;
+
+  static final byte REPLACE = 0;
+  static final byte APPEND = 1;
+  static final byte AT = 2;
+
+  static final byte OK = 0;
+  // No such file
+  static final byte NOT_FOUND = 1;
+  // The file couldn't be opened in time, or the mode isn't one it can be opened in
+  static final byte UNAVAILABLE = 2;
+  // No such handle open on this connection, or not open in a mode that allows it
+  static final byte BAD_HANDLE = 3;
+  static final byte BAD_REQUEST = 4;
+
+  // Length and request id
+  static final int FRAME_HEADER = 8;
+  static final int MAX_FRAME = 64 << 20;
+  // Most content bytes sent in one frame, either way
+  static final int MAX_CHUNK = 16 << 20;
+  // Longest string, in UTF-8 bytes, that its length can describe
+  static final int MAX_STRING = 0xffff;
+
+  private Protocol() {
+  }
+
+  static int stringLength(String s) {
+    return 2 + encode(s).remaining();
+  }
+
+  static void putString(ByteBuffer buffer, String s) {
+    ByteBuffer bytes = encode(s);
+    buffer.putShort((short) bytes.remaining());
+    buffer.put(bytes);
+  }
+
+  /**
+   * The UTF-8 bytes of s, which must fit the unsigned short length they are
+   * sent with
+   */
+  private static ByteBuffer encode(String s) {
+    ByteBuffer bytes = StandardCharsets.UTF_8.encode(s);
+    if (bytes.remaining() > MAX_STRING) {
+      throw new IllegalArgumentException("String of " + bytes.remaining() + " bytes is longer than "
+          + MAX_STRING + " bytes");
+    }
+    return bytes;
+  }
+
+  static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xffff;
+    ByteBuffer bytes = buffer.slice();
+    bytes.limit(length);
+    buffer.position(buffer.position() + length);
+    return StandardCharsets.UTF_8.decode(bytes).toString();
+  }
+
+  static void putBytes(ByteBuffer buffer, ByteBuffer bytes) {
+    buffer.putInt(bytes.remaining());
+    buffer.put(bytes.duplicate());
+  }
+
+  /**
+   * A view of the next byte array in buffer, without copying it
+   */
+  static ByteBuffer getBytes(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("Byte array of " + length + " bytes runs past the frame");
+    }
+    ByteBuffer bytes = buffer.slice();
+    bytes.limit(length);
+    buffer.position(buffer.position() + length);
+    return bytes;
+  }
+
+  /**
+   * A frame with room for body bytes after the header, with the header filled
+   * in and the position after it
+   */
+  static ByteBuffer frame(int id, int body) {
+    return header(id, body, body);
+  }
+
+  /**
+   * The start of a frame of body bytes after the header, with room for only
+   * the first room of them, for when the rest are sent from other buffers
+   */
+  static ByteBuffer header(int id, int body, int room) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER + room);
+    frame.putInt(4 + body);
+    frame.putInt(id);
+    return frame;
+  }
+}
@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ReadWriteLocker is the per-file lock that MyFileServer infers a file's mode
+ * from. Any number of readers may hold it at once, or a single writer.
+ *
+ * Unlike java.util.concurrent's ReadWriteLock, a lock taken by one thread may
+ * be released by another, since a File handle can be closed by any thread
+ * that has it.
+ *
+ * There are a few implementations to choose from, see LockStrategy.
+ *
+ * As well as blocking, the lock can be asked for with lockAsync, which queues
+ * the request and returns straight away. The queue is served by whichever
+ * thread releases the lock, so waiting for a file asynchronously doesn't cost
+ * a parked thread. It is only created the first time a file is waited on
+ * asynchronously.
+ *
+ * The queue is FIFO among asynchronous requests only. It is separate from
+ * whatever the implementation parks blocking callers on, and neither side
+ * defers to the other: a release grants the requests at the front of the
+ * queue with tryReadLock()/tryWriteLock(), which can take the lock ahead of
+ * threads already parked for it, and blocking (or try) opens never look at
+ * the queue, so a steady stream of blocking readers can keep a queued
+ * asynchronous writer waiting for as long as the stream lasts. A file that
+ * both kinds of caller contend for is only as fair as that; one that is
+ * waited on in a single way gets that way's ordering.
+ */
+abstract class ReadWriteLocker {
+
+  private static final AtomicReferenceFieldUpdater<ReadWriteLocker, Waiters> WAITERS = AtomicReferenceFieldUpdater
+      .newUpdater(ReadWriteLocker.class, Waiters.class, "waiters");
+
+  private volatile Waiters waiters;
+
+  /**
+   * The queue of asynchronous lock requests, and the lock that makes granting
+   * them one at a time (in order) possible
+   */
+  private static final class Waiters {
+    final ConcurrentLinkedQueue<Waiter> queue = new ConcurrentLinkedQueue<Waiter>();
+    final ReentrantLock granting = new ReentrantLock();
+  }
+
+  private static final class Waiter {
+    final Mode mode;
+    final CompletableFuture<Void> granted;
+
+    Waiter(Mode mode) {
+      this.mode = mode;
+      this.granted = new CompletableFuture<Void>();
+    }
+  }
+
+  /**
+   * Number of readers currently holding the lock
+   */
+  public abstract int getReads();
+
+  /**
+   * Whether a writer currently holds the lock
+   */
+  public abstract boolean isWrite();
+
+  /**
+   * Blocks until no writer holds the lock, then adds a reader. If interrupted
+   * while waiting the lock is not taken.
+   */
+  public abstract void readLock() throws InterruptedException;
+
+  /**
+   * Adds a reader only if that can be done without waiting
+   */
+  public abstract boolean tryReadLock();
+
+  /**
+   * Waits at most timeout to add a reader, returns whether it did
+   */
+  public abstract boolean tryReadLock(long timeout, TimeUnit unit) throws InterruptedException;
+
+  /**
+   * Blocks until no reader or writer holds the lock, then takes it exclusively.
+   * If interrupted while waiting the lock is not taken.
+   */
+  public abstract void writeLock() throws InterruptedException;
+
+  /**
+   * Takes the lock exclusively only if that can be done without waiting
+   */
+  public abstract boolean tryWriteLock();
+
+  /**
+   * Waits at most timeout to take the lock exclusively, returns whether it did
+   */
+  public abstract boolean tryWriteLock(long timeout, TimeUnit unit) throws InterruptedException;
+
+  public final void readUnlock() {
+    releaseRead();
+    grantWaiters();
+  }
+
+  public final void writeUnlock() {
+    releaseWrite();
+    grantWaiters();
+  }
+
+  protected abstract void releaseRead();
+
+  protected abstract void releaseWrite();
+
+  /**
+   * Queues a request for the lock in the given mode (READABLE or READWRITEABLE)
+   * and returns without blocking. The future completes once the lock is held
+   * on the caller's behalf, which must then be released as usual.
+   *
+   * Cancelling the future before it completes withdraws the request. If the
+   * lock was granted at the same moment, it is released again.
+   */
+  public CompletableFuture<Void> lockAsync(Mode mode) {
+    if (mode != Mode.READABLE && mode != Mode.READWRITEABLE) {
+      throw new IllegalArgumentException("Cannot lock a file in mode " + mode);
+    }
+    Waiters w = this.waiters;
+    if (w == null) {
+      WAITERS.compareAndSet(this, null, new Waiters());
+      w = this.waiters;
+    }
+    Waiter waiter = new Waiter(mode);
+    w.queue.add(waiter);
+    // The lock may have been free all along, or released just before queueing
+    grantWaiters();
+    return waiter.granted;
+  }
+
+  /**
+   * Hands the lock to as many queued asynchronous requests as can have it, from
+   * the front of the queue. Their futures are completed after letting go of
+   * the queue, as whatever runs on completion may well release the lock again.
+   */
+  private void grantWaiters() {
+    Waiters w = this.waiters;
+    if (w == null || w.queue.isEmpty()) {
+      return;
+    }
+    List<Waiter> granted = null;
+    w.granting.lock();
+    try {
+      Waiter head;
+      while ((head = w.queue.peek()) != null) {
+        if (head.granted.isDone()) {
+          // Cancelled while waiting
+          w.queue.poll();
+          continue;
+        }
+        boolean locked = head.mode == Mode.READWRITEABLE ? tryWriteLock() : tryReadLock();
+        if (!locked) {
+          break;
+        }
+        w.queue.poll();
+        if (granted == null) {
+          granted = new ArrayList<Waiter>();
+        }
+        granted.add(head);
+      }
+    } finally {
+      w.granting.unlock();
+    }
+
+    if (granted != null) {
+      for (Waiter waiter : granted) {
+        if (!waiter.granted.complete(null)) {
+          // Cancelled as it was granted, so nobody is going to release it
+          if (waiter.mode == Mode.READWRITEABLE) {
+            writeUnlock();
+          } else {
+            readUnlock();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The mode the lock is currently held in, CLOSED if nobody holds it. Should
+   * not block, as fileStatus is expected to be cheap.
+   */
+  public abstract Mode getMode();
+}
@@ -0,0 +1,441 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * RemoteFileServer is a FileServer whose files are on a NetworkServer,
+ * reached over one TCP connection speaking Protocol.
+ *
+ * Any number of threads can use it at once. Each request is written out as
+ * soon as it is made, without waiting for the ones before it to be answered,
+ * and one reader thread hands each response to whoever is waiting for it by
+ * request id, so a thread blocked opening a busy file doesn't hold up the
+ * others sharing the connection.
+ *
+ * Opening a file brings its content back with the lock, and the File handed
+ * out works on that copy as usual. Closing it sends back what was written, as
+ * the appends and writes at offsets made if that's all there were, otherwise
+ * the whole content, followed by the close, all without waiting in between.
+ * Content bigger than Protocol.MAX_CHUNK goes a chunk per frame either way:
+ * the rest of a big file is read a range at a time after the open, and big
+ * changes are written a range at a time before the close. A file can't be
+ * created with that much content, though, as a create has to be one frame.
+ * openAll opens the files one at a time in filename order, as on the server.
+ *
+ * Connection failures are thrown as UncheckedIOException, as FileServer's
+ * methods don't throw IOException.
+ *
+ * @author jamesjarvis
+ */
+public class RemoteFileServer implements FileServer, Closeable {
+
+  private final SocketChannel channel;
+  private final AtomicInteger ids;
+  private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending;
+  // The server's handle for each File open through this connection
+  private final Map<File, Integer> handles;
+  private final Thread reader;
+  private volatile IOException failure;
+
+  public RemoteFileServer(InetSocketAddress address) throws IOException {
+    this.channel = SocketChannel.open(address);
+    this.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    this.ids = new AtomicInteger();
+    this.pending = new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+    this.handles = Collections.synchronizedMap(new IdentityHashMap<File, Integer>());
+    this.reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receive();
+      }
+    }, "remote-file-server-" + address.getPort());
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  /**
+   * Hands every response that comes in to its request, until the connection
+   * closes, when any still waiting are failed
+   */
+  private void receive() {
+    ByteBuffer header = ByteBuffer.allocate(Protocol.FRAME_HEADER);
+    try {
+      while (true) {
+        header.clear();
+        readFully(header);
+        header.flip();
+        int length = header.getInt();
+        int id = header.getInt();
+        if (length < 5 || length > Protocol.MAX_FRAME) {
+          throw new IOException("Bad frame of " + length + " bytes");
+        }
+        ByteBuffer body = ByteBuffer.allocate(length - 4);
+        readFully(body);
+        body.flip();
+        CompletableFuture<ByteBuffer> waiting = this.pending.remove(id);
+        if (waiting != null) {
+          waiting.complete(body);
+        }
+      }
+    } catch (IOException e) {
+      this.failure = e;
+      // So that the server gives back whatever this connection had open
+      try {
+        this.channel.close();
+      } catch (IOException ignored) {
+        // Closing anyway
+      }
+      for (CompletableFuture<ByteBuffer> waiting : this.pending.values()) {
+        waiting.completeExceptionally(e);
+      }
+      this.pending.clear();
+    }
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer) < 0) {
+        throw new EOFException("Connection closed");
+      }
+    }
+  }
+
+  /**
+   * A request frame for op with room for args bytes of arguments, to be
+   * filled in and then sent
+   */
+  private ByteBuffer request(byte op, int args) {
+    ByteBuffer request = Protocol.frame(this.ids.incrementAndGet(), 1 + args);
+    request.put(op);
+    return request;
+  }
+
+  /**
+   * Sends a filled in request, returning its response to come
+   */
+  private CompletableFuture<ByteBuffer> send(ByteBuffer request) {
+    CompletableFuture<ByteBuffer> response = new CompletableFuture<ByteBuffer>();
+    int id = request.getInt(4);
+    this.pending.put(id, response);
+    request.flip();
+    try {
+      synchronized (this.channel) {
+        while (request.hasRemaining()) {
+          this.channel.write(request);
+        }
+      }
+    } catch (IOException e) {
+      this.pending.remove(id);
+      throw new UncheckedIOException(e);
+    }
+    if (this.failure != null && this.pending.remove(id) != null) {
+      // The reader stopped before it could see this one
+      throw new UncheckedIOException(this.failure);
+    }
+    return response;
+  }
+
+  /**
+   * Waits for a response, returning its status, with the results after it
+   */
+  private static ByteBuffer await(CompletableFuture<ByteBuffer> response) throws InterruptedException {
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      throw new UncheckedIOException(cause instanceof IOException ? (IOException) cause
+          : new IOException(cause));
+    }
+  }
+
+  private static ByteBuffer awaitUninterruptibly(CompletableFuture<ByteBuffer> response) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return await(response);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void check(ByteBuffer response, byte op) {
+    byte status = response.get();
+    if (status != Protocol.OK) {
+      throw new IllegalStateException("Request " + op + " failed with status " + status);
+    }
+  }
+
+  /**
+   * Creates the file on the server. Throws IllegalArgumentException for
+   * content of more than Protocol.MAX_CHUNK bytes, which can't be sent in one
+   * frame.
+   */
+  @Override
+  public void create(String filename, String content) {
+    ByteBuffer bytes = StandardCharsets.UTF_8.encode(content);
+    if (bytes.remaining() > Protocol.MAX_CHUNK) {
+      throw new IllegalArgumentException("Content of " + bytes.remaining() + " bytes is more than "
+          + Protocol.MAX_CHUNK + " bytes, too big to create remotely");
+    }
+    ByteBuffer request = request(Protocol.CREATE, Protocol.stringLength(filename) + 4 + bytes.remaining());
+    Protocol.putString(request, filename);
+    Protocol.putBytes(request, bytes);
+    check(awaitUninterruptibly(send(request)), Protocol.CREATE);
+  }
+
+  @Override
+  public Optional<File> open(String filename, Mode mode) {
+    try {
+      return open(filename, mode, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Optional<File> tryOpen(String filename, Mode mode) {
+    return openUninterruptibly(filename, mode);
+  }
+
+  @Override
+  public Optional<File> open(String filename, Mode mode, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return open(filename, mode, Math.max(0, unit.toNanos(timeout)));
+  }
+
+  private Optional<File> openUninterruptibly(String filename, Mode mode) {
+    boolean interrupted = Thread.interrupted();
+    try {
+      return open(filename, mode, 0);
+    } catch (InterruptedException e) {
+      interrupted = true;
+      return Optional.empty();
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Opens filename on the server, waiting up to timeoutNanos for it (forever
+   * if negative), and fetches its content, reading whatever didn't come with
+   * the open a chunk at a time
+   */
+  private Optional<File> open(String filename, Mode mode, long timeoutNanos) throws InterruptedException {
+    ByteBuffer request = request(Protocol.OPEN, Protocol.stringLength(filename) + 1 + 8 + 1);
+    Protocol.putString(request, filename);
+    request.put((byte) mode.ordinal());
+    request.putLong(timeoutNanos);
+    request.put((byte) 1);
+    CompletableFuture<ByteBuffer> opening = send(request);
+    ByteBuffer response;
+    try {
+      response = await(opening);
+    } catch (InterruptedException e) {
+      // Still queued on the server, so close the file if it is opened anyway
+      opening.whenComplete(new BiConsumer<ByteBuffer, Throwable>() {
+        @Override
+        public void accept(ByteBuffer late, Throwable failed) {
+          if (late != null && late.get(0) == Protocol.OK) {
+            closeHandle(late.getInt(1));
+          }
+        }
+      });
+      throw e;
+    }
+    if (response.get() != Protocol.OK) {
+      return Optional.empty();
+    }
+    int handle = response.getInt();
+    long version = response.getLong();
+    int size = response.getInt();
+    ByteBuffer first = Protocol.getBytes(response);
+    Content content;
+    if (first.remaining() == size) {
+      content = HeapContent.copyOf(first);
+    } else {
+      content = HeapContent.wrap(fetch(handle, first, size));
+    }
+    File file = new File(filename, content, mode, version);
+    this.handles.put(file, handle);
+    return Optional.of(file);
+  }
+
+  /**
+   * The whole size bytes of an open file's content, starting with the first
+   * bytes that came with the open and reading the rest, all the READs sent
+   * before waiting for any
+   */
+  private byte[] fetch(int handle, ByteBuffer first, int size) {
+    byte[] content = new byte[size];
+    int offset = first.remaining();
+    first.get(content, 0, offset);
+    List<CompletableFuture<ByteBuffer>> responses = new ArrayList<CompletableFuture<ByteBuffer>>();
+    for (int from = offset; from < size; from += Protocol.MAX_CHUNK) {
+      ByteBuffer request = request(Protocol.READ, 4 + 4 + 4);
+      request.putInt(handle);
+      request.putInt(from);
+      request.putInt(Math.min(Protocol.MAX_CHUNK, size - from));
+      responses.add(send(request));
+    }
+    for (CompletableFuture<ByteBuffer> response : responses) {
+      ByteBuffer bytes = awaitUninterruptibly(response);
+      check(bytes, Protocol.READ);
+      int length = bytes.getInt();
+      bytes.get(content, offset, length);
+      offset += length;
+    }
+    return content;
+  }
+
+  private void closeHandle(int handle) {
+    ByteBuffer request = request(Protocol.CLOSE, 4);
+    request.putInt(handle);
+    send(request);
+  }
+
+  @Override
+  public Optional<Map<String, File>> openAll(Map<String, Mode> files) {
+    Map<String, File> opened = new TreeMap<String, File>();
+    for (Map.Entry<String, Mode> entry : new TreeMap<String, Mode>(files).entrySet()) {
+      Optional<File> file = open(entry.getKey(), entry.getValue());
+      if (!file.isPresent()) {
+        closeAll(opened.values());
+        return Optional.empty();
+      }
+      opened.put(entry.getKey(), file.get());
+    }
+    return Optional.of(opened);
+  }
+
+  /**
+   * Sends back what was written to file, if anything, then closes it, and
+   * waits for the server to have done so
+   */
+  @Override
+  public void close(File file) {
+    Integer handle = this.handles.remove(file);
+    if (handle == null || !file.closing()) {
+      return;
+    }
+    List<CompletableFuture<ByteBuffer>> responses = new ArrayList<CompletableFuture<ByteBuffer>>();
+    if (file.changed()) {
+      List<Delta> deltas = file.deltas();
+      if (deltas == null) {
+        // The first chunk replaces the content, and the rest go after it
+        ByteBuffer content = file.content().bytes();
+        responses.add(send(write(handle, Protocol.REPLACE, 0, chunk(content, 0))));
+        for (int from = Protocol.MAX_CHUNK; from < content.remaining(); from += Protocol.MAX_CHUNK) {
+          responses.add(send(write(handle, Protocol.AT, from, chunk(content, from))));
+        }
+      } else {
+        for (Delta delta : deltas) {
+          for (int from = 0; from == 0 || from < delta.bytes.remaining(); from += Protocol.MAX_CHUNK) {
+            responses.add(send(write(handle, Protocol.AT, delta.offset + from, chunk(delta.bytes, from))));
+          }
+        }
+      }
+    }
+    ByteBuffer request = request(Protocol.CLOSE, 4);
+    request.putInt(handle);
+    responses.add(send(request));
+    for (CompletableFuture<ByteBuffer> response : responses) {
+      check(awaitUninterruptibly(response), Protocol.CLOSE);
+    }
+  }
+
+  /**
+   * Up to a chunk of bytes from from, without copying them
+   */
+  private static ByteBuffer chunk(ByteBuffer bytes, int from) {
+    ByteBuffer chunk = bytes.duplicate();
+    chunk.position(bytes.position() + from);
+    chunk.limit(Math.min(bytes.limit(), chunk.position() + Protocol.MAX_CHUNK));
+    return chunk.slice();
+  }
+
+  private ByteBuffer write(int handle, byte how, int offset, ByteBuffer bytes) {
+    ByteBuffer request = request(Protocol.WRITE, 4 + 1 + 4 + 4 + bytes.remaining());
+    request.putInt(handle);
+    request.put(how);
+    request.putInt(offset);
+    Protocol.putBytes(request, bytes);
+    return request;
+  }
+
+  @Override
+  public void closeAll(Collection<File> files) {
+    for (File file : files) {
+      close(file);
+    }
+  }
+
+  @Override
+  public Mode fileStatus(String filename) {
+    ByteBuffer request = request(Protocol.STATUS, Protocol.stringLength(filename));
+    Protocol.putString(request, filename);
+    ByteBuffer response = awaitUninterruptibly(send(request));
+    check(response, Protocol.STATUS);
+    return Mode.values()[response.get()];
+  }
+
+  /**
+   * The files on the server when asked, as a snapshot that doesn't change
+   */
+  @Override
+  public Set<String> availableFiles() {
+    ByteBuffer response = awaitUninterruptibly(send(request(Protocol.LIST, 0)));
+    check(response, Protocol.LIST);
+    int count = response.getInt();
+    Set<String> names = new HashSet<String>(Math.max(16, count * 2));
+    for (int i = 0; i < count; i++) {
+      names.add(Protocol.getString(response));
+    }
+    return Collections.unmodifiableSet(names);
+  }
+
+  /**
+   * Closes the connection, which closes every file still open through it on
+   * the server
+   */
+  @Override
+  public void close() throws IOException {
+    this.channel.close();
+    try {
+      this.reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
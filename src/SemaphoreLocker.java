@@ -0,0 +1,200 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * SemaphoreLocker features two semaphores, readSem and writeSem
+ * 
+ * readSem allows for a specified maximum concurrent read requests, and
+ * writeSem, only 1 write request.
+ * 
+ * This is due to the fact that there is a specified max buffer for the read
+ * semaphore. Also, if the read is starting from a closed state, it also obtains
+ * the write lock to prevent any writes while being read.
+ * 
+ * Similarly, when the write lock is being obtained (it can only be obtained if
+ * all write and read locks are available), then it also allocated all of the
+ * read locks in order to prevent any reads while being written to.
+ *
+ * This was the original lock behind MyFileServer, and is kept as the
+ * LockStrategy.SEMAPHORE fallback. Every operation takes the fair ReentrantLock
+ * and a write takes MAXREADS permits, so StateLocker is cheaper in practice.
+ */
+class SemaphoreLocker extends ReadWriteLocker {
+  private int reads;
+  private boolean isWrite;
+  private ReentrantLock locker;
+  private Semaphore readSem;
+  private Semaphore writeSem;
+  private int MAXREADS;
+
+  public SemaphoreLocker() {
+    this.MAXREADS = 10000;
+    this.reads = 0;
+    this.isWrite = false;
+    this.locker = new ReentrantLock(true);
+    this.readSem = new Semaphore(MAXREADS);
+    this.writeSem = new Semaphore(1);
+  }
+
+  @Override
+  public int getReads() {
+    this.locker.lock();
+
+    try {
+      return this.reads;
+    } finally {
+      this.locker.unlock();
+    }
+  }
+
+  @Override
+  public boolean isWrite() {
+    this.locker.lock();
+
+    try {
+      return this.isWrite;
+    } finally {
+      this.locker.unlock();
+    }
+  }
+
+  /**
+   * Read lock prevents writes and adds a read to the count
+   */
+  @Override
+  public void readLock() throws InterruptedException {
+    this.readSem.acquire();
+    readAcquired();
+  }
+
+  @Override
+  public boolean tryReadLock() {
+    if (!this.readSem.tryAcquire()) {
+      return false;
+    }
+    readAcquired();
+    return true;
+  }
+
+  @Override
+  public boolean tryReadLock(long timeout, TimeUnit unit) throws InterruptedException {
+    if (!this.readSem.tryAcquire(timeout, unit)) {
+      return false;
+    }
+    readAcquired();
+    return true;
+  }
+
+  private void readAcquired() {
+    this.locker.lock();
+
+    try {
+      this.reads += 1;
+    } finally {
+      this.locker.unlock();
+    }
+  }
+
+  @Override
+  public void writeLock() throws InterruptedException {
+    this.readSem.acquire(this.MAXREADS);
+    try {
+      this.writeSem.acquire();
+    } catch (InterruptedException e) {
+      // Hand back the read permits, otherwise the file stays locked for good
+      this.readSem.release(this.MAXREADS);
+      throw e;
+    }
+    writeAcquired();
+  }
+
+  @Override
+  public boolean tryWriteLock() {
+    if (!this.readSem.tryAcquire(this.MAXREADS)) {
+      return false;
+    }
+    if (!this.writeSem.tryAcquire()) {
+      this.readSem.release(this.MAXREADS);
+      return false;
+    }
+    writeAcquired();
+    return true;
+  }
+
+  @Override
+  public boolean tryWriteLock(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    if (!this.readSem.tryAcquire(this.MAXREADS, timeout, unit)) {
+      return false;
+    }
+    boolean acquired = false;
+    try {
+      acquired = this.writeSem.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } finally {
+      if (!acquired) {
+        this.readSem.release(this.MAXREADS);
+      }
+    }
+    if (acquired) {
+      writeAcquired();
+    }
+    return acquired;
+  }
+
+  private void writeAcquired() {
+    this.locker.lock();
+
+    try {
+      this.isWrite = true;
+    } finally {
+      this.locker.unlock();
+    }
+  }
+
+  @Override
+  protected void releaseRead() {
+    this.locker.lock();
+
+    try {
+      this.reads--;
+      if (this.reads == 0) {
+        this.writeSem.release();
+      }
+      this.readSem.release();
+
+    } finally {
+      this.locker.unlock();
+    }
+  }
+
+  @Override
+  protected void releaseWrite() {
+    this.locker.lock();
+
+    try {
+      this.isWrite = false;
+      this.writeSem.release();
+      this.readSem.release(this.MAXREADS);
+
+    } finally {
+      this.locker.unlock();
+    }
+  }
+
+  @Override
+  public Mode getMode() {
+    this.locker.lock();
+
+    try {
+      if (this.isWrite) {
+        return Mode.READWRITEABLE;
+      } else if (this.reads > 0) {
+        return Mode.READABLE;
+      }
+      return Mode.CLOSED;
+    } finally {
+      this.locker.unlock();
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,371 @@
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * ServerMetrics counts and times what a MyFileServer does: how many of each
+ * operation and how long they took, how long opens waited for the lock (split
+ * by mode), how many readers and writers hold files right now, and which files
+ * were waited on the longest, and how well the files Tiering has compressed
+ * have compressed.
+ *
+ * Recording is meant for the hot path, so it never allocates or blocks:
+ * counters are LongAdders and latencies go into Histograms, which are
+ * allocated up front. Reading the clock costs more than an uncontended open,
+ * so it is read as little as possible. Every operation is counted, but only
+ * one in SAMPLE (-Dfileserver.metrics.sample, 16 by default) is timed, and an
+ * open only times its wait for the lock if the lock is held in a conflicting
+ * mode when it starts (opens that find it free record no wait). Only an open
+ * that waited longer than CONTENDED_NANOS touches the per-file map of
+ * contended files. Reading is done through snapshot(), or through JMX once
+ * register() has been called.
+ *
+ * Setting -Dfileserver.metrics=false turns recording off. ENABLED is a static
+ * final constant, so the JIT compiles the checks on it, and the recording
+ * behind them, out of the server altogether.
+ *
+ * @author jamesjarvis
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+  public static final boolean ENABLED = !"false".equals(System.getProperty("fileserver.metrics"));
+
+  public enum Op {
+    CREATE, OPEN, CLOSE, STATUS
+  }
+
+  static final int SAMPLE = Math.max(1, Integer.getInteger("fileserver.metrics.sample", 16));
+
+  // Waiting longer than this for a lock counts as contention
+  static final long CONTENDED_NANOS = 20000;
+  // Beyond this many contended files only the ones already known are counted
+  private static final int MAX_CONTENDED = 10000;
+  private static final int TOP_CONTENDED = 10;
+
+  private final LongAdder[] counts;
+  private final Histogram[] latencies;
+  private final Histogram readWaits;
+  private final Histogram writeWaits;
+  private final LongAdder activeReaders;
+  private final LongAdder activeWriters;
+  private final ConcurrentHashMap<String, LongAdder> contended;
+  private final LongAdder compressedFiles;
+  private final LongAdder compressedFrom;
+  private final LongAdder compressedTo;
+  private volatile ObjectName registered;
+
+  public ServerMetrics() {
+    int ops = Op.values().length;
+    this.counts = new LongAdder[ops];
+    this.latencies = new Histogram[ops];
+    for (int i = 0; i < ops; i++) {
+      this.counts[i] = new LongAdder();
+      this.latencies[i] = new Histogram();
+    }
+    this.readWaits = new Histogram();
+    this.writeWaits = new Histogram();
+    this.activeReaders = new LongAdder();
+    this.activeWriters = new LongAdder();
+    this.contended = new ConcurrentHashMap<String, LongAdder>();
+    this.compressedFiles = new LongAdder();
+    this.compressedFrom = new LongAdder();
+    this.compressedTo = new LongAdder();
+  }
+
+  /**
+   * Whether to time the operation about to start
+   */
+  static boolean sampled() {
+    return SAMPLE == 1 || ThreadLocalRandom.current().nextInt(SAMPLE) == 0;
+  }
+
+  /**
+   * Records an operation that has just finished, and how long it took if it
+   * was timed from startNanos (from System.nanoTime())
+   */
+  void record(Op op, boolean timed, long startNanos) {
+    this.counts[op.ordinal()].increment();
+    if (timed) {
+      this.latencies[op.ordinal()].record(System.nanoTime() - startNanos);
+    }
+  }
+
+  /**
+   * When an open in mode starts waiting for lock: 0 if it looks like it won't
+   * have to, because the lock isn't held in a conflicting mode (readers queued
+   * behind a waiting writer are missed), otherwise now, or startNanos if the
+   * open is already being timed
+   */
+  long waitStart(ReadWriteLocker lock, Mode mode, boolean timed, long startNanos) {
+    boolean conflict = mode == Mode.READWRITEABLE ? lock.getMode() != Mode.CLOSED : lock.isWrite();
+    if (!conflict) {
+      return 0;
+    }
+    return timed ? startNanos : System.nanoTime();
+  }
+
+  /**
+   * Records an open of filename in mode that started waiting at waitStart
+   * (see waitStart()) having got the lock
+   */
+  void waited(String filename, Mode mode, long waitStart) {
+    if (waitStart == 0) {
+      // Found the lock free, and every open sharing one slot of the histogram
+      // would make it the contended line sampling is there to avoid
+      return;
+    }
+    long nanos = System.nanoTime() - waitStart;
+    (mode == Mode.READWRITEABLE ? this.writeWaits : this.readWaits).record(nanos);
+    if (nanos < CONTENDED_NANOS) {
+      return;
+    }
+    LongAdder total = this.contended.get(filename);
+    if (total == null) {
+      if (this.contended.size() >= MAX_CONTENDED) {
+        return;
+      }
+      LongAdder fresh = new LongAdder();
+      total = this.contended.putIfAbsent(filename, fresh);
+      if (total == null) {
+        total = fresh;
+      }
+    }
+    total.add(nanos);
+  }
+
+  /**
+   * Records a lock being taken (true) or given back (false) in mode
+   */
+  void holding(Mode mode, boolean taken) {
+    LongAdder active = mode == Mode.READWRITEABLE ? this.activeWriters : this.activeReaders;
+    if (taken) {
+      active.increment();
+    } else {
+      active.decrement();
+    }
+  }
+
+  /**
+   * Records a file's content of size bytes being compressed to compressedSize
+   * (true), or decompressed again (false)
+   */
+  void compressed(int size, int compressedSize, boolean compressed) {
+    int sign = compressed ? 1 : -1;
+    this.compressedFiles.add(sign);
+    this.compressedFrom.add(sign * (long) size);
+    this.compressedTo.add(sign * (long) compressedSize);
+  }
+
+  private double compressionRatio() {
+    long to = this.compressedTo.sum();
+    return to == 0 ? 0 : this.compressedFrom.sum() / (double) to;
+  }
+
+  /**
+   * Count and latency percentiles of one kind of event, in nanoseconds
+   */
+  public static final class Stat {
+    public final long count;
+    public final long p50;
+    public final long p99;
+    public final long p999;
+
+    Stat(Histogram histogram) {
+      // Copied first, so the count and percentiles agree
+      Histogram copy = new Histogram();
+      copy.add(histogram);
+      this.count = copy.count();
+      this.p50 = copy.percentile(0.5);
+      this.p99 = copy.percentile(0.99);
+      this.p999 = copy.percentile(0.999);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d p50=%.1fus p99=%.1fus p999=%.1fus", this.count, this.p50 / 1e3,
+          this.p99 / 1e3, this.p999 / 1e3);
+    }
+  }
+
+  /**
+   * The metrics at one point in time
+   */
+  public static final class Snapshot {
+    public final Map<Op, Long> counts;
+    public final Map<Op, Stat> latencies;
+    // Lock waits of the opens that had to wait, by READABLE or READWRITEABLE
+    public final Map<Mode, Stat> waits;
+    public final long activeReaders;
+    public final long activeWriters;
+    // Most contended files first, with their total wait in nanoseconds
+    public final List<Map.Entry<String, Long>> contended;
+    // Files whose content is compressed right now, and their size before
+    // compressing over their size after (0 if there are none)
+    public final long compressedFiles;
+    public final double compressionRatio;
+
+    Snapshot(Map<Op, Long> counts, Map<Op, Stat> latencies, Map<Mode, Stat> waits, long activeReaders,
+        long activeWriters, List<Map.Entry<String, Long>> contended, long compressedFiles,
+        double compressionRatio) {
+      this.counts = Collections.unmodifiableMap(counts);
+      this.latencies = Collections.unmodifiableMap(latencies);
+      this.waits = Collections.unmodifiableMap(waits);
+      this.activeReaders = activeReaders;
+      this.activeWriters = activeWriters;
+      this.contended = Collections.unmodifiableList(contended);
+      this.compressedFiles = compressedFiles;
+      this.compressionRatio = compressionRatio;
+    }
+  }
+
+  public Snapshot snapshot() {
+    Map<Op, Long> counts = new EnumMap<Op, Long>(Op.class);
+    Map<Op, Stat> latencies = new EnumMap<Op, Stat>(Op.class);
+    for (Op op : Op.values()) {
+      counts.put(op, this.counts[op.ordinal()].sum());
+      latencies.put(op, new Stat(this.latencies[op.ordinal()]));
+    }
+    Map<Mode, Stat> waits = new EnumMap<Mode, Stat>(Mode.class);
+    waits.put(Mode.READABLE, new Stat(this.readWaits));
+    waits.put(Mode.READWRITEABLE, new Stat(this.writeWaits));
+    return new Snapshot(counts, latencies, waits, this.activeReaders.sum(), this.activeWriters.sum(),
+        topContended(TOP_CONTENDED), this.compressedFiles.sum(), compressionRatio());
+  }
+
+  private List<Map.Entry<String, Long>> topContended(int n) {
+    List<Map.Entry<String, Long>> all = new ArrayList<Map.Entry<String, Long>>();
+    for (Map.Entry<String, LongAdder> entry : this.contended.entrySet()) {
+      all.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), entry.getValue().sum()));
+    }
+    Collections.sort(all, new Comparator<Map.Entry<String, Long>>() {
+      @Override
+      public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+        return Long.compare(b.getValue(), a.getValue());
+      }
+    });
+    return all.subList(0, Math.min(n, all.size()));
+  }
+
+  /**
+   * Makes these metrics visible through the platform MBean server as
+   * fileserver:type=ServerMetrics,name=name
+   */
+  public void register(String name) throws JMException {
+    ObjectName objectName = new ObjectName("fileserver:type=ServerMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    this.registered = objectName;
+  }
+
+  public void unregister() throws JMException {
+    ObjectName objectName = this.registered;
+    if (objectName != null) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+      this.registered = null;
+    }
+  }
+
+  @Override
+  public long getCreates() {
+    return this.counts[Op.CREATE.ordinal()].sum();
+  }
+
+  @Override
+  public long getOpens() {
+    return this.counts[Op.OPEN.ordinal()].sum();
+  }
+
+  @Override
+  public long getCloses() {
+    return this.counts[Op.CLOSE.ordinal()].sum();
+  }
+
+  @Override
+  public long getStatusChecks() {
+    return this.counts[Op.STATUS.ordinal()].sum();
+  }
+
+  @Override
+  public double getOpenP50Micros() {
+    return this.latencies[Op.OPEN.ordinal()].percentile(0.5) / 1e3;
+  }
+
+  @Override
+  public double getOpenP99Micros() {
+    return this.latencies[Op.OPEN.ordinal()].percentile(0.99) / 1e3;
+  }
+
+  @Override
+  public double getCloseP99Micros() {
+    return this.latencies[Op.CLOSE.ordinal()].percentile(0.99) / 1e3;
+  }
+
+  @Override
+  public double getReadWaitP99Micros() {
+    return this.readWaits.percentile(0.99) / 1e3;
+  }
+
+  @Override
+  public double getWriteWaitP99Micros() {
+    return this.writeWaits.percentile(0.99) / 1e3;
+  }
+
+  @Override
+  public long getActiveReaders() {
+    return this.activeReaders.sum();
+  }
+
+  @Override
+  public long getActiveWriters() {
+    return this.activeWriters.sum();
+  }
+
+  @Override
+  public String[] getContendedFiles() {
+    List<Map.Entry<String, Long>> top = topContended(TOP_CONTENDED);
+    String[] files = new String[top.size()];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = top.get(i).getKey() + "=" + top.get(i).getValue() / 1000;
+    }
+    return files;
+  }
+
+  @Override
+  public long getCompressedFiles() {
+    return this.compressedFiles.sum();
+  }
+
+  @Override
+  public double getCompressionRatio() {
+    return compressionRatio();
+  }
+
+  /**
+   * Starts every count and histogram again from zero, apart from the numbers
+   * of active readers and writers and of compressed files, which are the state
+   * of the server
+   */
+  @Override
+  public void reset() {
+    for (int i = 0; i < this.counts.length; i++) {
+      this.counts[i].reset();
+      this.latencies[i].reset();
+    }
+    this.readWaits.reset();
+    this.writeWaits.reset();
+    this.contended.clear();
+  }
+}
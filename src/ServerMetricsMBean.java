@@ -0,0 +1,43 @@
+/**
+ * What ServerMetrics shows through JMX, under
+ * fileserver:type=ServerMetrics,name=... once registered. Latencies are in
+ * microseconds.
+ */
+public interface ServerMetricsMBean {
+
+  long getCreates();
+
+  long getOpens();
+
+  long getCloses();
+
+  long getStatusChecks();
+
+  double getOpenP50Micros();
+
+  double getOpenP99Micros();
+
+  double getCloseP99Micros();
+
+  double getReadWaitP99Micros();
+
+  double getWriteWaitP99Micros();
+
+  long getActiveReaders();
+
+  long getActiveWriters();
+
+  long getCompressedFiles();
+
+  /**
+   * Size of the compressed files' content before compressing over after
+   */
+  double getCompressionRatio();
+
+  /**
+   * The most contended files, as "filename=total wait in microseconds"
+   */
+  String[] getContendedFiles();
+
+  void reset();
+}
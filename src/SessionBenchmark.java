@@ -0,0 +1,124 @@
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SessionBenchmark compares running every client session on its own platform
+ * thread with running it on its own virtual thread, at numbers of concurrent
+ * sessions where platform threads start to struggle.
+ *
+ * For each thread mode a fresh server is created with the same file set, then
+ * `sessions` threads are started and all held at a gate until every one of
+ * them exists. Once released, each does `cycles` open/read/write/close cycles
+ * (see Benchmark.cycle) with `think` ms of sleep between them, standing in for
+ * a client doing I/O. The time to start the sessions and to run them all to
+ * completion is printed as one row per mode.
+ *
+ *   java SessionBenchmark mode=platform,virtual sessions=100000
+ *
+ * mode      platform and/or virtual        (default platform,virtual)
+ * sessions  number of concurrent sessions  (default 100000)
+ * cycles    cycles per session             (default 10)
+ * think     ms slept between cycles        (default 1)
+ * writes    fraction of opens for writing  (default 0.1)
+ * dist      uniform, or zipf for hot files (default uniform)
+ * files     number of files on the server  (default 1000)
+ * size      characters of content per file (default 64)
+ *
+ * Virtual threads need JDK 21 or later. Platform threads may fail to start at
+ * all at these numbers, which is reported rather than treated as an error.
+ *
+ * @author jamesjarvis
+ */
+public class SessionBenchmark {
+
+  private static final String[] DEFAULTS = { "mode=platform,virtual", "sessions=100000", "cycles=10",
+      "think=1", "writes=0.1", "dist=uniform", "files=1000", "size=64" };
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+
+    System.out.printf("%-8s %9s %6s %12s %12s %12s%n", "mode", "sessions", "cycles", "start(ms)", "run(ms)",
+        "cycles/s");
+
+    for (String mode : params.get("mode")) {
+      for (String sessions : params.get("sessions")) {
+        run(ThreadMode.valueOf(mode.toUpperCase()), Integer.parseInt(sessions),
+            Integer.parseInt(params.get("cycles")[0]), Long.parseLong(params.get("think")[0]),
+            Double.parseDouble(params.get("writes")[0]), params.get("dist")[0],
+            Integer.parseInt(params.get("files")[0]), Integer.parseInt(params.get("size")[0]));
+      }
+    }
+  }
+
+  private static void run(ThreadMode threadMode, int sessions, int cycles, long think, double writes,
+      String dist, int files, int size) throws InterruptedException {
+    if (threadMode == ThreadMode.VIRTUAL && !ThreadMode.virtualThreadsSupported()) {
+      System.out.printf("%-8s %9d  skipped, virtual threads need JDK 21 or later%n", threadMode, sessions);
+      return;
+    }
+
+    MyFileServer fs = new MyFileServer();
+    String[] names = new String[files];
+    for (int i = 0; i < files; i++) {
+      names[i] = i + ".txt";
+      fs.create(names[i], Benchmark.content(size, 'a'));
+    }
+    String written = Benchmark.content(size, 'b');
+    Benchmark.FileChooser chooser = Benchmark.chooser(dist, files);
+
+    CountDownLatch gate = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(sessions);
+    AtomicLong completed = new AtomicLong();
+    Runnable session = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          gate.await();
+          ThreadLocalRandom random = ThreadLocalRandom.current();
+          for (int i = 0; i < cycles; i++) {
+            String filename = names[chooser.next(random)];
+            Mode mode = random.nextDouble() < writes ? Mode.READWRITEABLE : Mode.READABLE;
+            Benchmark.cycle(fs, filename, mode, written);
+            completed.incrementAndGet();
+            if (think > 0) {
+              Thread.sleep(think);
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      }
+    };
+
+    long start = System.nanoTime();
+    int started = 0;
+    try {
+      for (; started < sessions; started++) {
+        threadMode.start(session);
+      }
+    } catch (OutOfMemoryError e) {
+      // Ran out of native threads, let the ones that did start finish
+      for (int i = started; i < sessions; i++) {
+        done.countDown();
+      }
+      gate.countDown();
+      done.await();
+      System.out.printf("%-8s %9d  failed, only %d threads could be started (%s)%n", threadMode, sessions,
+          started, e.getMessage());
+      return;
+    }
+    long startup = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    gate.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - start;
+
+    System.out.printf("%-8s %9d %6d %12.0f %12.0f %12.0f%n", threadMode, sessions, cycles, startup / 1e6,
+        elapsed / 1e6, completed.get() * 1e9 / elapsed);
+  }
+}
@@ -0,0 +1,381 @@
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * ShardedFileServer is a FileServer for namespaces of millions of files,
+ * where most files are closed most of the time.
+ *
+ * MyFileServer gives every file a FileFrame and its own ReadWriteLocker from
+ * the moment it is created, so each closed file still pays for a lock it
+ * isn't using. Here a closed file is just its name and its latest Version. Its
+ * lock is allocated when someone first opens (or queues to open) it, and
+ * dropped again once the last of them has closed, so the number of locks is
+ * the number of files in use rather than the number of files.
+ *
+ * The namespace is split into shards by the hash of the filename, each with
+ * its own map of files and its own map of the locks in use. Keeping a lock in
+ * place while it is needed relies on a count of its users (holders plus
+ * waiters), which is only changed inside the lock map's compute(), so a lock
+ * can't be dropped while anyone has it or is waiting for it, and two users of
+ * a file can't end up with different locks.
+ *
+ * Opening, snapshots and content storage otherwise work as in MyFileServer.
+ *
+ * @author jamesjarvis
+ */
+public class ShardedFileServer implements FileServer {
+
+  private final Shard[] shards;
+  private final LockStrategy lockStrategy;
+  private final ContentStore store;
+
+  /**
+   * A lock in use, and how many opens are holding or waiting for it
+   */
+  private static final class Locked {
+    final ReadWriteLocker lock;
+    int users;
+
+    Locked(ReadWriteLocker lock) {
+      this.lock = lock;
+    }
+  }
+
+  private final class Shard {
+    final ConcurrentHashMap<String, Version> files = new ConcurrentHashMap<String, Version>();
+    final ConcurrentHashMap<String, Locked> locks = new ConcurrentHashMap<String, Locked>();
+
+    final BiFunction<String, Locked, Locked> use = new BiFunction<String, Locked, Locked>() {
+      @Override
+      public Locked apply(String filename, Locked locked) {
+        if (locked == null) {
+          locked = new Locked(ShardedFileServer.this.lockStrategy.newLocker());
+        }
+        locked.users++;
+        return locked;
+      }
+    };
+
+    final BiFunction<String, Locked, Locked> release = new BiFunction<String, Locked, Locked>() {
+      @Override
+      public Locked apply(String filename, Locked locked) {
+        return --locked.users == 0 ? null : locked;
+      }
+    };
+
+    /**
+     * The file's lock, allocated if nobody else is using it, counted as used
+     * until release() is called
+     */
+    ReadWriteLocker use(String filename) {
+      return this.locks.compute(filename, this.use).lock;
+    }
+
+    void release(String filename) {
+      this.locks.computeIfPresent(filename, this.release);
+    }
+  }
+
+  public ShardedFileServer() {
+    this(64);
+  }
+
+  public ShardedFileServer(int shards) {
+    this(shards, LockStrategy.STATE, new HeapStore());
+  }
+
+  /**
+   * A server with the given number of shards, rounded up to a power of two
+   */
+  public ShardedFileServer(int shards, LockStrategy lockStrategy, ContentStore store) {
+    int n = Integer.highestOneBit(Math.max(1, shards - 1)) << 1;
+    this.shards = new Shard[shards <= 1 ? 1 : n];
+    for (int i = 0; i < this.shards.length; i++) {
+      this.shards[i] = new Shard();
+    }
+    this.lockStrategy = lockStrategy;
+    this.store = store;
+    for (Map.Entry<String, Version> recovered : store.recover().entrySet()) {
+      shard(recovered.getKey()).files.put(recovered.getKey(), recovered.getValue());
+    }
+  }
+
+  private Shard shard(String filename) {
+    int h = filename.hashCode();
+    return this.shards[(h ^ (h >>> 16)) & (this.shards.length - 1)];
+  }
+
+  /**
+   * Creates the file if no file with that name exists yet, holding it for
+   * writing until its content is stored, as MyFileServer does. If another
+   * create of the same name holds it first, that one wins.
+   */
+  @Override
+  public void create(String filename, String content) {
+    Shard shard = shard(filename);
+    if (shard.files.containsKey(filename)) {
+      return;
+    }
+    ReadWriteLocker lock = shard.use(filename);
+    try {
+      if (!lock.tryWriteLock()) {
+        return;
+      }
+      try {
+        Version created = new Version(0, new HeapContent(content));
+        if (shard.files.putIfAbsent(filename, created) == null) {
+          try {
+            shard.files.put(filename, new Version(0, this.store.store(filename, 0, created.content)));
+          } catch (RuntimeException e) {
+            shard.files.remove(filename);
+            throw e;
+          }
+        }
+      } finally {
+        lock.writeUnlock();
+      }
+    } finally {
+      shard.release(filename);
+    }
+  }
+
+  /**
+   * Blocks until the file is available in the given mode. If the thread is
+   * interrupted while waiting, gives up and returns Optional.empty() with the
+   * interrupt status set again.
+   */
+  @Override
+  public Optional<File> open(String filename, Mode mode) {
+    try {
+      return open(filename, mode, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Optional<File> tryOpen(String filename, Mode mode) {
+    try {
+      return open(filename, mode, 0);
+    } catch (InterruptedException e) {
+      // Never waits, so is never interrupted
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Optional<File> open(String filename, Mode mode, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return open(filename, mode, Math.max(unit.toNanos(timeout), 0));
+  }
+
+  /**
+   * Opens the file, waiting at most timeoutNanos for the lock. 0 means don't
+   * wait at all and a negative timeout means wait for as long as it takes.
+   */
+  private Optional<File> open(String filename, Mode mode, long timeoutNanos) throws InterruptedException {
+    Shard shard = shard(filename);
+    if (!shard.files.containsKey(filename)) {
+      return Optional.empty();
+    }
+    if (mode == Mode.SNAPSHOT) {
+      Version version = shard.files.get(filename);
+      return version == null ? Optional.<File>empty()
+          : Optional.of(new File(filename, version.content, mode, version.number));
+    }
+    if (mode != Mode.READABLE && mode != Mode.READWRITEABLE) {
+      return Optional.empty();
+    }
+
+    ReadWriteLocker lock = shard.use(filename);
+    boolean locked = false;
+    try {
+      if (mode == Mode.READABLE) {
+        if (timeoutNanos < 0) {
+          lock.readLock();
+          locked = true;
+        } else {
+          locked = timeoutNanos == 0 ? lock.tryReadLock() : lock.tryReadLock(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+      } else {
+        if (timeoutNanos < 0) {
+          lock.writeLock();
+          locked = true;
+        } else {
+          locked = timeoutNanos == 0 ? lock.tryWriteLock() : lock.tryWriteLock(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+      }
+    } finally {
+      if (!locked) {
+        shard.release(filename);
+      }
+    }
+    if (!locked) {
+      return Optional.empty();
+    }
+    // Content is read once the lock is held, so it is the latest committed
+    Version version = shard.files.get(filename);
+    if (version == null) {
+      // Its create failed while we waited
+      if (mode == Mode.READABLE) {
+        lock.readUnlock();
+      } else {
+        lock.writeUnlock();
+      }
+      shard.release(filename);
+      return Optional.empty();
+    }
+    return Optional.of(new File(filename, version.content, mode, version.number));
+  }
+
+  /**
+   * Opens the files one at a time in filename order, as MyFileServer does,
+   * closing the ones already opened if any of them can't be
+   */
+  @Override
+  public Optional<Map<String, File>> openAll(Map<String, Mode> modes) {
+    TreeMap<String, Mode> ordered = new TreeMap<String, Mode>(modes);
+    for (String filename : ordered.keySet()) {
+      if (!shard(filename).files.containsKey(filename)) {
+        return Optional.empty();
+      }
+    }
+
+    Map<String, File> opened = new LinkedHashMap<String, File>();
+    try {
+      for (Map.Entry<String, Mode> entry : ordered.entrySet()) {
+        Optional<File> file = open(entry.getKey(), entry.getValue(), -1);
+        if (!file.isPresent()) {
+          closeAll(opened.values());
+          return Optional.empty();
+        }
+        opened.put(entry.getKey(), file.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      closeAll(opened.values());
+      return Optional.empty();
+    }
+    return Optional.of(opened);
+  }
+
+  @Override
+  public void closeAll(Collection<File> files) {
+    for (File file : files) {
+      close(file);
+    }
+  }
+
+  @Override
+  public void close(File file) {
+    String filename = file.filename();
+    Shard shard = shard(filename);
+    Locked locked = shard.locks.get(filename);
+    // Snapshots hold no lock, so there is nothing to give back
+    if (locked == null || file.mode() == Mode.SNAPSHOT || locked.lock.getMode() != file.mode()) {
+      return;
+    }
+    // A handle closed twice would otherwise release someone else's use
+    if (!file.closing()) {
+      return;
+    }
+
+    if (file.mode() == Mode.READABLE) {
+      locked.lock.readUnlock();
+    } else if (file.mode() == Mode.READWRITEABLE) {
+      if (file.changed()) {
+        long number = file.version() + 1;
+        List<Delta> deltas = file.deltas();
+        Content committed = deltas == null ? this.store.store(filename, number, file.content())
+            : this.store.apply(filename, number, file.content(), deltas);
+        shard.files.put(filename, new Version(number, committed));
+      }
+      locked.lock.writeUnlock();
+    }
+    shard.release(filename);
+  }
+
+  @Override
+  public Mode fileStatus(String filename) {
+    Shard shard = shard(filename);
+    if (!shard.files.containsKey(filename)) {
+      return Mode.UNKNOWN;
+    }
+    Locked locked = shard.locks.get(filename);
+    return locked == null ? Mode.CLOSED : locked.lock.getMode();
+  }
+
+  /**
+   * A live view of the filenames in every shard, one shard after another
+   */
+  @Override
+  public Set<String> availableFiles() {
+    return new AbstractSet<String>() {
+      @Override
+      public boolean contains(Object filename) {
+        return filename instanceof String && shard((String) filename).files.containsKey(filename);
+      }
+
+      @Override
+      public int size() {
+        long size = 0;
+        for (Shard shard : ShardedFileServer.this.shards) {
+          size += shard.files.size();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+      }
+
+      @Override
+      public Iterator<String> iterator() {
+        return new Iterator<String>() {
+          private int next = 0;
+          private Iterator<String> current = null;
+
+          @Override
+          public boolean hasNext() {
+            while (this.current == null || !this.current.hasNext()) {
+              if (this.next == ShardedFileServer.this.shards.length) {
+                return false;
+              }
+              this.current = ShardedFileServer.this.shards[this.next++].files.keySet().iterator();
+            }
+            return true;
+          }
+
+          @Override
+          public String next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            return this.current.next();
+          }
+        };
+      }
+    };
+  }
+
+  /**
+   * Number of files whose lock is allocated right now, because they are open
+   * or being waited for
+   */
+  int locksInUse() {
+    int locks = 0;
+    for (Shard shard : this.shards) {
+      locks += shard.locks.size();
+    }
+    return locks;
+  }
+}
@@ -0,0 +1,83 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * StampedLocker is backed by a java.util.concurrent.locks.StampedLock.
+ *
+ * Handles don't carry the stamp they were opened with, so the lock is released
+ * with the stamp-less tryUnlockRead/tryUnlockWrite, which is fine as any holder
+ * may release it (see ReadWriteLocker).
+ *
+ * getMode uses an optimistic read: a stamp is only handed out while no writer
+ * holds the lock, so fileStatus can tell a write-locked file apart without
+ * writing to the lock word at all.
+ */
+class StampedLocker extends ReadWriteLocker {
+  private final StampedLock lock;
+
+  public StampedLocker() {
+    this.lock = new StampedLock();
+  }
+
+  @Override
+  public int getReads() {
+    return this.lock.getReadLockCount();
+  }
+
+  @Override
+  public boolean isWrite() {
+    return this.lock.isWriteLocked();
+  }
+
+  @Override
+  public void readLock() throws InterruptedException {
+    this.lock.readLockInterruptibly();
+  }
+
+  @Override
+  public boolean tryReadLock() {
+    return this.lock.tryReadLock() != 0L;
+  }
+
+  @Override
+  public boolean tryReadLock(long timeout, TimeUnit unit) throws InterruptedException {
+    return this.lock.tryReadLock(timeout, unit) != 0L;
+  }
+
+  @Override
+  public void writeLock() throws InterruptedException {
+    this.lock.writeLockInterruptibly();
+  }
+
+  @Override
+  public boolean tryWriteLock() {
+    return this.lock.tryWriteLock() != 0L;
+  }
+
+  @Override
+  public boolean tryWriteLock(long timeout, TimeUnit unit) throws InterruptedException {
+    return this.lock.tryWriteLock(timeout, unit) != 0L;
+  }
+
+  @Override
+  protected void releaseRead() {
+    if (!this.lock.tryUnlockRead()) {
+      throw new IllegalMonitorStateException("No reader holds the lock");
+    }
+  }
+
+  @Override
+  protected void releaseWrite() {
+    if (!this.lock.tryUnlockWrite()) {
+      throw new IllegalMonitorStateException("No writer holds the lock");
+    }
+  }
+
+  @Override
+  public Mode getMode() {
+    if (this.lock.tryOptimisticRead() == 0L) {
+      return Mode.READWRITEABLE;
+    }
+    return this.lock.isReadLocked() ? Mode.READABLE : Mode.CLOSED;
+  }
+}
@@ -0,0 +1,157 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+
+/**
+ * StateLocker keeps the whole lock in a single int: the low bits are the number
+ * of readers and the top bit is set while a writer holds it.
+ *
+ * Taking or releasing the lock uncontended is a single compare-and-set on that
+ * word, and getMode is a single volatile read. Threads that cannot get the lock
+ * park in the AbstractQueuedSynchronizer queue, which is FIFO: a reader that
+ * arrives behind a waiting writer queues up too, so a steady stream of readers
+ * cannot starve writers.
+ *
+ * The untimed tryReadLock/tryWriteLock barge in whenever the lock is free, the
+ * same as ReentrantReadWriteLock's tryLock does even when fair.
+ */
+class StateLocker extends ReadWriteLocker {
+  private static final int WRITE_BIT = Integer.MIN_VALUE;
+  private static final int READS_MASK = ~WRITE_BIT;
+
+  private final Sync sync;
+
+  public StateLocker() {
+    this.sync = new Sync();
+  }
+
+  private static final class Sync extends AbstractQueuedSynchronizer {
+    private static final long serialVersionUID = 1L;
+
+    int state() {
+      return getState();
+    }
+
+    @Override
+    protected int tryAcquireShared(int unused) {
+      for (;;) {
+        if (hasQueuedPredecessors()) {
+          return -1;
+        }
+        int c = getState();
+        if ((c & WRITE_BIT) != 0) {
+          return -1;
+        }
+        if (compareAndSetState(c, c + 1)) {
+          return 1;
+        }
+      }
+    }
+
+    @Override
+    protected boolean tryReleaseShared(int unused) {
+      for (;;) {
+        int c = getState();
+        if ((c & READS_MASK) == 0) {
+          throw new IllegalMonitorStateException("No reader holds the lock");
+        }
+        if (compareAndSetState(c, c - 1)) {
+          // Only the last reader out can let a waiting writer in
+          return c - 1 == 0;
+        }
+      }
+    }
+
+    // Like tryAcquireShared, but ignoring any threads queued for the lock
+    boolean bargeShared() {
+      for (;;) {
+        int c = getState();
+        if ((c & WRITE_BIT) != 0) {
+          return false;
+        }
+        if (compareAndSetState(c, c + 1)) {
+          return true;
+        }
+      }
+    }
+
+    // Like tryAcquire, but ignoring any threads queued for the lock
+    boolean barge() {
+      return compareAndSetState(0, WRITE_BIT);
+    }
+
+    @Override
+    protected boolean tryAcquire(int unused) {
+      return !hasQueuedPredecessors() && compareAndSetState(0, WRITE_BIT);
+    }
+
+    @Override
+    protected boolean tryRelease(int unused) {
+      if (getState() != WRITE_BIT) {
+        throw new IllegalMonitorStateException("No writer holds the lock");
+      }
+      setState(0);
+      return true;
+    }
+  }
+
+  @Override
+  public int getReads() {
+    return this.sync.state() & READS_MASK;
+  }
+
+  @Override
+  public boolean isWrite() {
+    return (this.sync.state() & WRITE_BIT) != 0;
+  }
+
+  @Override
+  public void readLock() throws InterruptedException {
+    this.sync.acquireSharedInterruptibly(1);
+  }
+
+  @Override
+  public boolean tryReadLock() {
+    return this.sync.bargeShared();
+  }
+
+  @Override
+  public boolean tryReadLock(long timeout, TimeUnit unit) throws InterruptedException {
+    return this.sync.tryAcquireSharedNanos(1, unit.toNanos(timeout));
+  }
+
+  @Override
+  public void writeLock() throws InterruptedException {
+    this.sync.acquireInterruptibly(1);
+  }
+
+  @Override
+  public boolean tryWriteLock() {
+    return this.sync.barge();
+  }
+
+  @Override
+  public boolean tryWriteLock(long timeout, TimeUnit unit) throws InterruptedException {
+    return this.sync.tryAcquireNanos(1, unit.toNanos(timeout));
+  }
+
+  @Override
+  protected void releaseRead() {
+    this.sync.releaseShared(1);
+  }
+
+  @Override
+  protected void releaseWrite() {
+    this.sync.release(1);
+  }
+
+  @Override
+  public Mode getMode() {
+    int c = this.sync.state();
+    if ((c & WRITE_BIT) != 0) {
+      return Mode.READWRITEABLE;
+    } else if (c != 0) {
+      return Mode.READABLE;
+    }
+    return Mode.CLOSED;
+  }
+}
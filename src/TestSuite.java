@@ -1,8 +1,34 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
 import java.lang.Thread.State;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class TestSuite {
 
@@ -19,6 +45,78 @@ public class TestSuite {
 		testMultiThreadRead();
 		testMultiThread1();
 		testMultiThread2();
+
+		describe("Test non-blocking and timed open");
+		testTryOpen();
+		testInterruptedOpen();
+
+		describe("Test opening several files at once");
+		testOpenAll();
+
+		describe("Test asynchronous open");
+		testAsyncOpen();
+
+		describe("Test snapshot reads");
+		testSnapshot();
+
+		describe("Test closing without writing");
+		testUnchangedClose();
+
+		describe("Test reading and writing bytes");
+		testBytes(newFileServer());
+		if (newFileServer() instanceof MyFileServer) {
+			testBytes(new MyFileServer(lockStrategy(), new DirectStore()));
+		}
+
+		describe("Test appends and ranged writes");
+		testAppend(newFileServer());
+		if (newFileServer() instanceof MyFileServer) {
+			testAppend(new MyFileServer(lockStrategy(), new DirectStore()));
+		}
+
+		describe("Test streaming and ranged reads");
+		testStreaming(newFileServer());
+		if (newFileServer() instanceof MyFileServer) {
+			testStreaming(new MyFileServer(lockStrategy(), new DirectStore()));
+		}
+
+		if (newFileServer() instanceof MyFileServer) {
+			describe("Test metrics");
+			testMetrics();
+
+			describe("Test deadlock detection and hold times");
+			testDeadlock();
+
+			describe("Test content cache");
+			testContentCache();
+
+			describe("Test compressing cold files");
+			testTiering();
+
+			describe("Test deduplicated content");
+			testDedup();
+
+			describe("Test listing names by prefix, range and directory");
+			testNameIndex();
+
+			describe("Test leased handles");
+			testLeases();
+
+			describe("Test sharded server with locks allocated on demand");
+			testShardedLocks();
+
+			describe("Test directories and paths");
+			testTreeNamespace();
+
+			describe("Test serving over TCP");
+			testNetwork();
+
+			describe("Test persistence to memory-mapped segments");
+			testMappedStore();
+
+			describe("Test write-ahead logging");
+			testWriteAheadLog();
+		}
 	}
 
 	public void testAvailableFiles() {
@@ -53,6 +151,36 @@ public class TestSuite {
 		it("Opening a file (write) keeps the same available files");
 		fs.open("a", Mode.READWRITEABLE);
 		assertEquals(fs.availableFiles().toArray(new String[0]), new String[] { "a", "b" });
+
+		if (!(fs instanceof MyFileServer)) {
+			return;
+		}
+		it("A file being created isn't there, or locked, until its content is stored");
+		final Semaphore storing = new Semaphore(0);
+		final Semaphore stored = new Semaphore(0);
+		final MyFileServer slow = new MyFileServer(lockStrategy(), new ContentStore() {
+			public Content store(String filename, long version, Content content) {
+				storing.release();
+				stored.acquireUninterruptibly();
+				return content;
+			}
+		});
+		Thread creator = new Thread(new Runnable() {
+			public void run() {
+				slow.create("c", "coheed");
+			}
+		});
+		creator.start();
+		storing.acquireUninterruptibly();
+		assertEquals(slow.fileStatus("c"), Mode.UNKNOWN);
+		assertEquals(slow.availableFiles().size(), 0);
+		stored.release();
+		try {
+			creator.join();
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(slow.fileStatus("c"), Mode.CLOSED);
 	}
 
 	public void testSingleThread() {
@@ -480,9 +608,1321 @@ public class TestSuite {
 
 	}
 
+	public void testTryOpen() {
+		FileServer fs = newFileServer();
+		fs.create("a", "coheed");
+
+		it("tryOpen of a closed file succeeds");
+		Optional<File> ofr = fs.tryOpen("a", Mode.READABLE);
+		assertEquals(ofr.isPresent(), true);
+
+		it("tryOpen for write of a file open for reading returns Optional.empty() straight away");
+		long start = System.nanoTime();
+		assertEquals(fs.tryOpen("a", Mode.READWRITEABLE).isPresent(), false);
+		assertEquals(System.nanoTime() - start < 100000000L, true);
+
+		it("tryOpen for read of a file open for reading succeeds");
+		Optional<File> ofr2 = fs.tryOpen("a", Mode.READABLE);
+		assertEquals(ofr2.isPresent(), true);
+		fs.close(ofr2.get());
+
+		it("Timed open for write of a file open for reading times out");
+		try {
+			start = System.nanoTime();
+			assertEquals(fs.open("a", Mode.READWRITEABLE, 100, TimeUnit.MILLISECONDS).isPresent(), false);
+			assertEquals(System.nanoTime() - start >= 100000000L, true);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+
+		it("Failed tryOpen and timed open leave the file in the mode it was in");
+		assertEquals(fs.fileStatus("a"), Mode.READABLE);
+		fs.close(ofr.get());
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+
+		it("Timed open succeeds once the file is available");
+		try {
+			Optional<File> ofw = fs.open("a", Mode.READWRITEABLE, 100, TimeUnit.MILLISECONDS);
+			assertEquals(ofw.isPresent(), true);
+			fs.close(ofw.get());
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+
+		it("tryOpen of an unknown file returns Optional.empty()");
+		assertEquals(fs.tryOpen("b", Mode.READABLE).isPresent(), false);
+	}
+
+	public void testInterruptedOpen() {
+		FileServer fs = newFileServer();
+		fs.create("a", "coheed");
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+
+		Signal gaveUp = new Signal();
+		Signal stillInterrupted = new Signal();
+		Thread blocked = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+				gaveUp.flag = !ofw.isPresent();
+				stillInterrupted.flag = Thread.currentThread().isInterrupted();
+			}
+		});
+		blocked.start();
+		try {
+			blocked.join(300);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		it("Writer blocked behind a reader is waiting");
+		assertEquals(blocked.getState(), Thread.State.WAITING);
+
+		blocked.interrupt();
+		try {
+			blocked.join(300);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		it("Interrupting a blocked open makes it give up, with the interrupt status kept");
+		assertEquals(blocked.getState(), Thread.State.TERMINATED);
+		assertEquals(gaveUp.flag, true);
+		assertEquals(stillInterrupted.flag, true);
+
+		it("Interrupted open does not hold on to the lock");
+		assertEquals(fs.fileStatus("a"), Mode.READABLE);
+		fs.close(ofr.get());
+		Optional<File> ofw = fs.tryOpen("a", Mode.READWRITEABLE);
+		assertEquals(ofw.isPresent(), true);
+		fs.close(ofw.get());
+
+		it("Timed open throws InterruptedException when interrupted");
+		Thread.currentThread().interrupt();
+		boolean thrown = false;
+		try {
+			fs.open("a", Mode.READABLE, 100, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			thrown = true;
+		}
+		assertEquals(thrown, true);
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+	}
+
+	public void testAsyncOpen() {
+		FileServer server = newFileServer();
+		if (!(server instanceof MyFileServer)) {
+			return;
+		}
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		AsyncFileServer fs = new AsyncFileServer((MyFileServer) server, executor);
+		server.create("a", "coheed");
+
+		try {
+			it("Asynchronous open of a closed file completes");
+			File fa = fs.openAsync("a", Mode.READWRITEABLE).get(500, TimeUnit.MILLISECONDS);
+			assertEquals(server.fileStatus("a"), Mode.READWRITEABLE);
+
+			it("Asynchronous opens of a file open for writing wait, without blocking the caller");
+			CompletableFuture<File> r1 = fs.openAsync("a", Mode.READABLE);
+			CompletableFuture<File> r2 = fs.openAsync("a", Mode.READABLE);
+			CompletableFuture<File> w = fs.openAsync("a", Mode.READWRITEABLE);
+			CompletableFuture<File> r3 = fs.openAsync("a", Mode.READABLE);
+			Thread.sleep(100);
+			assertEquals(r1.isDone() || r2.isDone() || w.isDone() || r3.isDone(), false);
+
+			it("Closing the writer completes the readers at the front of the queue, in order");
+			fa.write("claudio");
+			fs.close(fa);
+			File fr1 = r1.get(500, TimeUnit.MILLISECONDS);
+			File fr2 = r2.get(500, TimeUnit.MILLISECONDS);
+			assertEquals(fr1.read(), "claudio");
+			assertEquals(server.fileStatus("a"), Mode.READABLE);
+			Thread.sleep(100);
+			assertEquals(w.isDone() || r3.isDone(), false);
+
+			it("Closing the readers completes the queued writer, then the reader behind it");
+			fs.close(fr1);
+			fs.close(fr2);
+			File fw = w.get(500, TimeUnit.MILLISECONDS);
+			assertEquals(server.fileStatus("a"), Mode.READWRITEABLE);
+			fw.write("ambelina");
+			fs.close(fw);
+			File fr3 = r3.get(500, TimeUnit.MILLISECONDS);
+			assertEquals(fr3.read(), "ambelina");
+			fs.close(fr3);
+			assertEquals(server.fileStatus("a"), Mode.CLOSED);
+
+			it("Cancelling a waiting asynchronous open gives up on the file");
+			File fb = fs.openAsync("a", Mode.READWRITEABLE).get(500, TimeUnit.MILLISECONDS);
+			CompletableFuture<File> cancelled = fs.openAsync("a", Mode.READWRITEABLE);
+			cancelled.cancel(false);
+			fs.close(fb);
+			Thread.sleep(100);
+			assertEquals(server.fileStatus("a"), Mode.CLOSED);
+
+			it("Asynchronous open of an unknown file completes exceptionally");
+			assertEquals(fs.openAsync("b", Mode.READABLE).isCompletedExceptionally(), true);
+		} catch (Exception e) {
+			failure("");
+			e.printStackTrace();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testOpenAll() {
+		FileServer fs = newFileServer();
+		fs.create("a", "coheed");
+		fs.create("b", "cambria");
+		fs.create("c", "claudio");
+
+		it("Opens every file in its mode");
+		Map<String, Mode> modes = new HashMap<String, Mode>();
+		modes.put("a", Mode.READABLE);
+		modes.put("b", Mode.READWRITEABLE);
+		Optional<Map<String, File>> opened = fs.openAll(modes);
+		assertEquals(opened.isPresent(), true);
+		assertEquals(opened.get().get("a").read(), "coheed");
+		assertEquals(fs.fileStatus("a"), Mode.READABLE);
+		assertEquals(fs.fileStatus("b"), Mode.READWRITEABLE);
+
+		it("closeAll closes every file, committing what was written");
+		opened.get().get("b").write("ambelina");
+		fs.closeAll(opened.get().values());
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		assertEquals(fs.fileStatus("b"), Mode.CLOSED);
+		Optional<File> ofb = fs.open("b", Mode.READABLE);
+		assertEquals(ofb.get().read(), "ambelina");
+		fs.close(ofb.get());
+
+		it("An unknown file means nothing is opened");
+		modes.put("d", Mode.READABLE);
+		assertEquals(fs.openAll(modes).isPresent(), false);
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		assertEquals(fs.fileStatus("b"), Mode.CLOSED);
+
+		it("A mode that can't be opened means nothing is held");
+		modes.remove("d");
+		modes.put("c", Mode.CLOSED);
+		assertEquals(fs.openAll(modes).isPresent(), false);
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		assertEquals(fs.fileStatus("b"), Mode.CLOSED);
+
+		it("Writers wanting the same files in opposite orders don't deadlock");
+		final Map<String, Mode> ab = new HashMap<String, Mode>();
+		ab.put("a", Mode.READWRITEABLE);
+		ab.put("b", Mode.READWRITEABLE);
+		final Map<String, Mode> ba = new TreeMap<String, Mode>(Collections.reverseOrder());
+		ba.putAll(ab);
+		Thread[] writers = new Thread[2];
+		for (int t = 0; t < 2; t++) {
+			final Map<String, Mode> wanted = t == 0 ? ab : ba;
+			writers[t] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = 0; i < 2000; i++) {
+						Optional<Map<String, File>> both = fs.openAll(wanted);
+						fs.closeAll(both.get().values());
+					}
+				}
+			});
+			writers[t].start();
+		}
+		try {
+			for (Thread writer : writers) {
+				writer.join(10000);
+			}
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(writers[0].isAlive() || writers[1].isAlive(), false);
+	}
+
+	public void testUnchangedClose() {
+		FileServer fs = newFileServer();
+		fs.create("a", "coheed");
+
+		it("A writer that wrote nothing commits no new version");
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		fs.close(ofw.get());
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+		assertEquals(ofr.get().version() == 0, true);
+		assertEquals(ofr.get().read(), "coheed");
+		fs.close(ofr.get());
+
+		it("A handle closed before it was read still reads the version it was opened at");
+		Optional<File> unread = fs.open("a", Mode.READABLE);
+		fs.close(unread.get());
+		ofw = fs.open("a", Mode.READWRITEABLE);
+		ofw.get().write("cambria");
+		fs.close(ofw.get());
+		assertEquals(unread.get().read(), "coheed");
+
+		it("A writer that did write commits the next version");
+		ofr = fs.open("a", Mode.READABLE);
+		assertEquals(ofr.get().version() == 1, true);
+		fs.close(ofr.get());
+
+		it("A handle closed again doesn't give back a lock someone else has taken since");
+		Optional<File> next = fs.open("a", Mode.READWRITEABLE);
+		fs.close(ofw.get());
+		assertEquals(fs.fileStatus("a"), Mode.READWRITEABLE);
+		next.get().write("coheed");
+		fs.close(next.get());
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		ofr = fs.open("a", Mode.READABLE);
+		assertEquals(ofr.get().version() == 2, true);
+		assertEquals(ofr.get().read(), "coheed");
+		fs.close(ofr.get());
+	}
+
+	public void testSnapshot() {
+		FileServer fs = newFileServer();
+		fs.create("a", "coheed");
+
+		it("Snapshot open of a file open for writing does not block, and sees the committed content");
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		Optional<File> ofs = fs.tryOpen("a", Mode.SNAPSHOT);
+		assertEquals(ofs.isPresent(), true);
+		assertEquals(ofs.get().read(), "coheed");
+
+		it("Snapshot readers don't change the file's mode");
+		assertEquals(fs.fileStatus("a"), Mode.READWRITEABLE);
+
+		it("Snapshot files can't be written");
+		assertEquals(ofs.get().write("plop"), false);
+
+		it("A snapshot keeps its content after the writer commits, later snapshots see the new version");
+		ofw.get().write("claudio");
+		fs.close(ofw.get());
+		assertEquals(ofs.get().read(), "coheed");
+		Optional<File> ofs2 = fs.open("a", Mode.SNAPSHOT);
+		assertEquals(ofs2.get().read(), "claudio");
+		assertEquals(ofs2.get().version() > ofs.get().version(), true);
+
+		it("Closing a snapshot leaves the file's lock alone");
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+		fs.close(ofs.get());
+		fs.close(ofs2.get());
+		assertEquals(fs.fileStatus("a"), Mode.READABLE);
+		fs.close(ofr.get());
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+
+		it("Snapshot open of an unknown file returns Optional.empty()");
+		assertEquals(fs.open("b", Mode.SNAPSHOT).isPresent(), false);
+	}
+
+	public void testBytes(FileServer fs) {
+		fs.create("a", "coheed");
+
+		it("Content can be read as bytes");
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+		ByteBuffer bytes = ofr.get().readBytes();
+		assertEquals(bytes.remaining(), 6);
+		assertEquals(bytes.get(0) == 'c', true);
+
+		it("Byte views are read only");
+		assertEquals(bytes.isReadOnly(), true);
+		fs.close(ofr.get());
+
+		it("Bytes written are read back as text, and vice versa");
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		ByteBuffer written = ByteBuffer.wrap("cambria".getBytes(StandardCharsets.UTF_8));
+		assertEquals(ofw.get().write(written), true);
+		fs.close(ofw.get());
+		Optional<File> ofr2 = fs.open("a", Mode.READABLE);
+		assertEquals(ofr2.get().read(), "cambria");
+		assertEquals(ofr2.get().readBytes().remaining(), 7);
+
+		it("Bytes can't be written to a file open for reading");
+		assertEquals(ofr2.get().write(written), false);
+		fs.close(ofr2.get());
+	}
+
+	public void testAppend(FileServer fs) {
+		fs.create("a", "coheed");
+
+		it("Appends and ranged writes are seen by the writer straight away");
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		assertEquals(ofw.get().append(" and cambria"), true);
+		ByteBuffer c = ByteBuffer.wrap("C".getBytes(StandardCharsets.UTF_8));
+		assertEquals(ofw.get().write(0, c), true);
+		assertEquals(ofw.get().read(), "Coheed and cambria");
+		assertEquals(ofw.get().size(), 18);
+
+		it("Ranged writes past the end extend the file");
+		ByteBuffer tail = ByteBuffer.wrap("Cambria!".getBytes(StandardCharsets.UTF_8));
+		ofw.get().write(11, tail);
+		fs.close(ofw.get());
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+		assertEquals(ofr.get().read(), "Coheed and Cambria!");
+
+		it("Files open for reading can't be appended to");
+		assertEquals(ofr.get().append("x"), false);
+		fs.close(ofr.get());
+
+		it("Many small appends across many writers all land, in order");
+		StringBuilder expected = new StringBuilder("Coheed and Cambria!");
+		for (int i = 0; i < 500; i++) {
+			ofw = fs.open("a", Mode.READWRITEABLE);
+			ofw.get().append(Integer.toString(i % 10));
+			fs.close(ofw.get());
+			expected.append(i % 10);
+		}
+		ofr = fs.open("a", Mode.READABLE);
+		assertEquals(ofr.get().read(), expected.toString());
+		fs.close(ofr.get());
+
+		it("Replacing the content after appending keeps just the replacement and what follows");
+		ofw = fs.open("a", Mode.READWRITEABLE);
+		ofw.get().append("x");
+		ofw.get().write("claudio");
+		ofw.get().append(" kilgannon");
+		fs.close(ofw.get());
+		ofr = fs.open("a", Mode.READABLE);
+		assertEquals(ofr.get().read(), "claudio kilgannon");
+		fs.close(ofr.get());
+	}
+
+	public void testStreaming(FileServer fs) {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			content.append(i % 10);
+		}
+		fs.create("a", content.toString());
+		// A few appends, so that the content is made of several chunks
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		for (int i = 0; i < 3; i++) {
+			ofw.get().append("coheed");
+			content.append("coheed");
+		}
+		fs.close(ofw.get());
+		String expected = content.toString();
+
+		it("A range is read from the middle of the file");
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+		ByteBuffer range = ofr.get().read(12345, 5);
+		assertEquals(StandardCharsets.UTF_8.decode(range).toString(), expected.substring(12345, 12350));
+
+		it("A range across appended chunks is read whole");
+		range = ofr.get().read(19998, 10);
+		assertEquals(StandardCharsets.UTF_8.decode(range).toString(), expected.substring(19998, 20008));
+
+		it("A range running past the end is cut short, and one past the end is empty");
+		assertEquals(ofr.get().read(20010, 100).remaining(), 8);
+		assertEquals(ofr.get().read(30000, 100).remaining(), 0);
+
+		it("The whole file streams through an InputStream");
+		try (InputStream in = ofr.get().inputStream()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				out.write(buffer, 0, read);
+			}
+			assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8), expected);
+		} catch (IOException e) {
+			failure("");
+			e.printStackTrace();
+		}
+
+		it("The channel can be positioned, and reads to the end");
+		try (SeekableByteChannel channel = ofr.get().channel()) {
+			assertEquals(channel.size() == expected.length(), true);
+			channel.position(20000);
+			ByteBuffer tail = ByteBuffer.allocate(100);
+			assertEquals(channel.read(tail), 18);
+			assertEquals(channel.read(tail), -1);
+			tail.flip();
+			assertEquals(StandardCharsets.UTF_8.decode(tail).toString(), "coheedcoheedcoheed");
+		} catch (IOException e) {
+			failure("");
+			e.printStackTrace();
+		}
+		fs.close(ofr.get());
+	}
+
+	public void testMetrics() {
+		MyFileServer fs = new MyFileServer();
+		if (!ServerMetrics.ENABLED) {
+			return;
+		}
+		fs.create("a", "coheed");
+		fs.create("b", "cambria");
+
+		it("Operations are counted");
+		Optional<File> ofr = fs.open("a", Mode.READABLE);
+		Optional<File> ofr2 = fs.open("a", Mode.READABLE);
+		fs.fileStatus("a");
+		ServerMetrics.Snapshot snapshot = fs.metrics().snapshot();
+		assertEquals(snapshot.counts.get(ServerMetrics.Op.CREATE) == 2, true);
+		assertEquals(snapshot.counts.get(ServerMetrics.Op.OPEN) == 2, true);
+		assertEquals(snapshot.counts.get(ServerMetrics.Op.STATUS) == 1, true);
+		assertEquals(snapshot.latencies.get(ServerMetrics.Op.OPEN).count <= 2, true);
+
+		it("Active readers and writers are tracked");
+		assertEquals(snapshot.activeReaders == 2, true);
+		assertEquals(snapshot.activeWriters == 0, true);
+
+		it("A writer kept waiting shows up as a write wait and a contended file");
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+				fs.close(ofw.get());
+			}
+		});
+		writer.start();
+		try {
+			while (writer.getState() != State.WAITING) {
+				Thread.sleep(1);
+			}
+			Thread.sleep(5);
+			fs.close(ofr.get());
+			fs.close(ofr2.get());
+			writer.join();
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		snapshot = fs.metrics().snapshot();
+		assertEquals(snapshot.waits.get(Mode.READWRITEABLE).p99 >= 5000000L, true);
+		assertEquals(snapshot.contended.size(), 1);
+		assertEquals(snapshot.contended.get(0).getKey(), "a");
+		assertEquals(snapshot.activeReaders == 0 && snapshot.activeWriters == 0, true);
+
+		it("The metrics can be read through JMX");
+		try {
+			fs.metrics().register("test");
+			ObjectName name = new ObjectName("fileserver:type=ServerMetrics,name=\"test\"");
+			Object opens = ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Opens");
+			assertEquals(opens.equals(3L), true);
+			fs.metrics().unregister();
+		} catch (JMException e) {
+			failure("");
+			e.printStackTrace();
+		}
+	}
+
+	public void testDeadlock() {
+		MyFileServer fs = new MyFileServer();
+		LockProfiler profiler = fs.diagnose(LockProfiler.OnDeadlock.BREAK);
+		fs.create("a", "coheed");
+		fs.create("b", "cambria");
+
+		it("Two writers taking the same files in opposite orders are broken out of a deadlock");
+		final Optional<File> ofa = fs.open("a", Mode.READWRITEABLE);
+		final AtomicReference<Optional<File>> second = new AtomicReference<Optional<File>>();
+		Thread other = new Thread(new Runnable() {
+			public void run() {
+				Optional<File> ofb = fs.open("b", Mode.READWRITEABLE);
+				second.set(fs.open("a", Mode.READWRITEABLE));
+				fs.close(ofb.get());
+				if (second.get().isPresent()) {
+					fs.close(second.get().get());
+				}
+			}
+		}, "other");
+		other.start();
+		try {
+			while (other.getState() != State.WAITING) {
+				Thread.sleep(1);
+			}
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		// other holds b and waits for a, which we hold, so waiting for b would deadlock
+		Optional<File> ofb = fs.open("b", Mode.READWRITEABLE);
+		assertEquals(ofb.isPresent(), false);
+		fs.close(ofa.get());
+		try {
+			other.join(5000);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(other.isAlive(), false);
+		assertEquals(second.get().isPresent(), true);
+		assertEquals(profiler.deadlocks().size(), 1);
+
+		it("A thread reopening a file it is writing is a deadlock with itself");
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		assertEquals(fs.open("a", Mode.READABLE).isPresent(), false);
+		assertEquals(profiler.deadlocks().size(), 2);
+
+		it("Handles held open are listed, and hold times kept once they are closed");
+		assertEquals(profiler.heldLongerThan(0).size(), 1);
+		fs.close(ofw.get());
+		assertEquals(profiler.heldLongerThan(0).size(), 0);
+		assertEquals(profiler.holdTimes().get("a").holds >= 3, true);
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		assertEquals(fs.fileStatus("b"), Mode.CLOSED);
+	}
+
+	public void testContentCache() {
+		MyFileServer fs = new MyFileServer(lockStrategy(), new DirectStore());
+		// Room for about ten of the files below
+		ContentCache cache = fs.cache(10 * (100 + 96), 100);
+		String hundred = Benchmark.content(100, 'x');
+		fs.create("hot", hundred);
+		for (int i = 0; i < 100; i++) {
+			fs.create(i + ".txt", hundred);
+		}
+
+		it("A second read of the same version is a hit");
+		Optional<File> ofr = fs.open("hot", Mode.READABLE);
+		assertEquals(ofr.get().read(), hundred);
+		assertEquals(ofr.get().read(), hundred);
+		fs.close(ofr.get());
+		assertEquals((int) cache.misses(), 1);
+		assertEquals((int) cache.hits(), 1);
+
+		it("A writer reads what it wrote, and its commit replaces the cached version");
+		Optional<File> ofw = fs.open("hot", Mode.READWRITEABLE);
+		ofw.get().write("coheed");
+		assertEquals(ofw.get().read(), "coheed");
+		fs.close(ofw.get());
+		assertEquals(fs.open("hot", Mode.SNAPSHOT).get().read(), "coheed");
+		assertEquals((int) cache.misses(), 2);
+
+		it("A file read often stays cached through a scan of files read once");
+		ofw = fs.open("hot", Mode.READWRITEABLE);
+		ofw.get().write(hundred);
+		fs.close(ofw.get());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(fs.open("hot", Mode.SNAPSHOT).get().read(), hundred);
+		}
+		for (int i = 0; i < 100; i++) {
+			fs.open(i + ".txt", Mode.SNAPSHOT).get().read();
+		}
+		long hits = cache.hits();
+		assertEquals(fs.open("hot", Mode.SNAPSHOT).get().read(), hundred);
+		assertEquals(cache.hits() == hits + 1, true);
+		assertEquals(cache.weight() <= 10 * (100 + 96), true);
+		assertEquals(cache.evictions() + cache.rejections() >= 90, true);
+	}
+
+	public void testTiering() {
+		it("LZ4 blocks decompress to what was compressed");
+		Random random = new Random(42);
+		byte[] noise = new byte[5000];
+		random.nextBytes(noise);
+		byte[] text = Benchmark.content(5000, 'x').replace("xxxxx", "hello").getBytes(StandardCharsets.UTF_8);
+		for (byte[] raw : new byte[][] { new byte[0], "abc".getBytes(StandardCharsets.UTF_8), noise, text }) {
+			byte[] compressed = Lz4.compress(raw);
+			assertEquals(Arrays.equals(Lz4.decompress(compressed, raw.length), raw), true);
+		}
+		assertEquals(Lz4.compress(text).length < text.length / 10, true);
+
+		MyFileServer fs = new MyFileServer();
+		String cold = Benchmark.content(10000, 'x');
+		fs.create("cold", cold);
+		fs.create("small", "coheed");
+		Tiering tiering = fs.tier(40, TimeUnit.MILLISECONDS);
+
+		it("A file left closed is compressed, and the ratio shows in the metrics");
+		try {
+			for (int i = 0; i < 500 && tiering.compressions() == 0; i++) {
+				Thread.sleep(10);
+			}
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals((int) tiering.compressions(), 1);
+		assertEquals((int) fs.metrics().snapshot().compressedFiles, 1);
+		assertEquals(fs.metrics().snapshot().compressionRatio > 10, true);
+		assertEquals(fs.fileStatus("cold"), Mode.CLOSED);
+
+		it("Opening it decompresses it again, and a file held open isn't compressed");
+		Optional<File> ofw = fs.open("cold", Mode.READWRITEABLE);
+		assertEquals((int) fs.metrics().snapshot().compressedFiles, 0);
+		assertEquals(ofw.get().read(), cold);
+		try {
+			Thread.sleep(200);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals((int) tiering.compressions(), 1);
+		ofw.get().append("y");
+		fs.close(ofw.get());
+		assertEquals(fs.open("cold", Mode.SNAPSHOT).get().read(), cold + "y");
+		tiering.stop();
+
+		it("Content in memory-mapped files is left as it is");
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("tiering");
+			MyFileServer mapped = new MyFileServer(lockStrategy(), new MappedStore(dir));
+			mapped.create("cold", cold);
+			Tiering onDisk = mapped.tier(40, TimeUnit.MILLISECONDS);
+			Thread.sleep(300);
+			assertEquals((int) onDisk.compressions(), 0);
+			assertEquals(mapped.open("cold", Mode.SNAPSHOT).get().read(), cold);
+			onDisk.stop();
+		} catch (IOException | InterruptedException e) {
+			failure("");
+			e.printStackTrace();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	public void testDedup() {
+		DedupStore store = new DedupStore(new HeapStore());
+		MyFileServer fs = new MyFileServer(lockStrategy(), store);
+		String template = Benchmark.content(1000, 'x');
+
+		it("Files with the same content share one copy of it");
+		for (int i = 0; i < 10; i++) {
+			fs.create("file" + i, new String(template));
+		}
+		fs.create("other", "coheed");
+		assertEquals(store.blobs(), 2);
+		assertEquals((int) store.uniqueBytes(), 1006);
+		assertEquals((int) store.referencedBytes(), 10006);
+		assertEquals(fs.open("file3", Mode.READABLE).get().read(), template);
+
+		it("Creating a file that already exists stores nothing");
+		fs.create("file0", "cambria");
+		assertEquals(store.blobs(), 2);
+		assertEquals((int) store.uniqueBytes(), 1006);
+		assertEquals(fs.open("file0", Mode.SNAPSHOT).get().read(), template);
+
+		it("A writer's commit moves the file to its new content, and content nobody has is let go");
+		Optional<File> ofw = fs.open("other", Mode.READWRITEABLE);
+		ofw.get().write(template);
+		fs.close(ofw.get());
+		assertEquals(store.blobs(), 1);
+		assertEquals((int) store.uniqueBytes(), 1000);
+		ofw = fs.open("file0", Mode.READWRITEABLE);
+		Optional<File> ofs = fs.open("file1", Mode.SNAPSHOT);
+		ofw.get().append("y");
+		fs.close(ofw.get());
+		assertEquals(store.blobs(), 2);
+		assertEquals(fs.open("file0", Mode.SNAPSHOT).get().read(), template + "y");
+		assertEquals(ofs.get().read(), template);
+		assertEquals(fs.open("file1", Mode.SNAPSHOT).get().read(), template);
+
+		it("Every file's content reaches a persistent store, duplicate or not");
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("dedupstore");
+			MyFileServer persisted = new MyFileServer(lockStrategy(), new DedupStore(new MappedStore(dir)));
+			persisted.create("a", template);
+			persisted.create("b", template);
+			for (String name : new String[] { "a", "b" }) {
+				ofw = persisted.open(name, Mode.READWRITEABLE);
+				ofw.get().write("changed");
+				persisted.close(ofw.get());
+			}
+			ofw = persisted.open("b", Mode.READWRITEABLE);
+			ofw.get().append("!");
+			persisted.close(ofw.get());
+			persisted.create("c", "changed");
+			DedupStore reopened = new DedupStore(new MappedStore(dir));
+			MyFileServer recovered = new MyFileServer(lockStrategy(), reopened);
+			assertEquals(recovered.availableFiles().toArray(new String[0]), new String[] { "a", "b", "c" });
+			assertEquals(recovered.open("a", Mode.SNAPSHOT).get().read(), "changed");
+			assertEquals(recovered.open("b", Mode.SNAPSHOT).get().read(), "changed!");
+			assertEquals(recovered.open("c", Mode.SNAPSHOT).get().read(), "changed");
+			assertEquals(reopened.blobs(), 2);
+		} catch (IOException e) {
+			failure("");
+			e.printStackTrace();
+		} finally {
+			delete(dir);
+		}
+
+		it("Only the create that wins a race for a name stores anything");
+		int blobs = store.blobs();
+		Thread[] racers = new Thread[8];
+		for (int t = 0; t < racers.length; t++) {
+			final String racing = "racer " + t;
+			racers[t] = new Thread(new Runnable() {
+				public void run() {
+					fs.create("raced", racing);
+				}
+			});
+			racers[t].start();
+		}
+		try {
+			for (Thread racer : racers) {
+				racer.join();
+			}
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(store.blobs(), blobs + 1);
+		assertEquals(fs.open("raced", Mode.SNAPSHOT).get().read().startsWith("racer "), true);
+	}
+
+	public void testNameIndex() {
+		MyFileServer fs = new MyFileServer();
+		for (String name : new String[] { "b", "a/2", "a/b/1", "ab", "a/c/x", "a/1", "a/b/2" }) {
+			fs.create(name, name);
+		}
+		NameIndex names = fs.names();
+
+		it("Names are listed in order, and counted without walking them");
+		assertEquals(fs.availableFiles().toArray(new String[0]),
+				new String[] { "a/1", "a/2", "a/b/1", "a/b/2", "a/c/x", "ab", "b" });
+		assertEquals(names.count(), 7);
+		fs.create("b", "again");
+		assertEquals(names.count(), 7);
+
+		it("A prefix is listed a page at a time from the last name of the page before");
+		assertEquals(names.list("a/", null, 3).toArray(new String[0]), new String[] { "a/1", "a/2", "a/b/1" });
+		assertEquals(names.list("a/", "a/b/1", 3).toArray(new String[0]), new String[] { "a/b/2", "a/c/x" });
+		assertEquals(names.list("a/", "a/c/x", 3).size(), 0);
+		assertEquals(names.range("a/b/", "b", null, 10).toArray(new String[0]),
+				new String[] { "a/b/1", "a/b/2", "a/c/x", "ab" });
+		assertEquals((int) names.stream("a/b/").count(), 2);
+
+		it("A directory lists each subdirectory once, paging past it");
+		assertEquals(names.children("", '/', null, 10).toArray(new String[0]), new String[] { "a/", "ab", "b" });
+		assertEquals(names.children("a/", '/', null, 3).toArray(new String[0]),
+				new String[] { "a/1", "a/2", "a/b/" });
+		assertEquals(names.children("a/", '/', "a/b/", 3).toArray(new String[0]), new String[] { "a/c/" });
+		assertEquals(NameIndex.successor("a/"), "a0");
+	}
+
+	public void testLeases() {
+		MyFileServer fs = new MyFileServer();
+		Leases leases = fs.leases(50, TimeUnit.MILLISECONDS);
+		fs.create("a", "coheed");
+		fs.create("b", "cambria");
+
+		it("A handle left open is reclaimed once its lease runs out, and what it wrote thrown away");
+		Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+		ofw.get().write("claudio");
+		Optional<File> waited = Optional.empty();
+		try {
+			waited = fs.open("a", Mode.READWRITEABLE, 5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(waited.isPresent(), true);
+		assertEquals(waited.get().read(), "coheed");
+		assertEquals((int) leases.expired(), 1);
+
+		it("An expired handle can't be renewed, and closing it does nothing");
+		assertEquals(fs.renew(ofw.get()), false);
+		fs.close(ofw.get());
+		assertEquals(fs.fileStatus("a"), Mode.READWRITEABLE);
+		fs.close(waited.get());
+		assertEquals(fs.fileStatus("a"), Mode.CLOSED);
+		assertEquals(fs.open("a", Mode.SNAPSHOT).get().read(), "coheed");
+
+		it("An expired handle that hadn't read yet still reads the version it was opened at");
+		Optional<File> stale = fs.open("a", Mode.READABLE);
+		try {
+			waited = fs.open("a", Mode.READWRITEABLE, 5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		waited.get().write("v1");
+		fs.close(waited.get());
+		assertEquals(stale.get().read(), "coheed");
+		assertEquals((int) stale.get().version(), 0);
+		assertEquals((int) leases.expired(), 2);
+
+		it("A handle renewed in time keeps its lock");
+		Optional<File> ofr = fs.open("b", Mode.READABLE);
+		// Renewed for far longer than the sleeps, so a slow machine can't make
+		// it miss one
+		assertEquals(fs.renew(ofr.get(), 10, TimeUnit.SECONDS), true);
+		try {
+			for (int i = 0; i < 5; i++) {
+				Thread.sleep(20);
+				assertEquals(fs.renew(ofr.get(), 10, TimeUnit.SECONDS), true);
+			}
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(fs.fileStatus("b"), Mode.READABLE);
+		fs.close(ofr.get());
+		assertEquals(fs.fileStatus("b"), Mode.CLOSED);
+		assertEquals((int) leases.expired(), 2);
+		leases.stop();
+	}
+
+	public void testTreeNamespace() {
+		TreeFileServer fs = new TreeFileServer();
+
+		it("Creating a file makes its directories, and paths are resolved however they're written");
+		fs.create("reports/2020/q1.txt", "coheed");
+		assertEquals(fs.isDirectory("reports/2020"), true);
+		Optional<File> ofr = fs.open("/reports//2020/q1.txt/", Mode.READABLE);
+		assertEquals(ofr.get().filename(), "reports/2020/q1.txt");
+		assertEquals(fs.fileStatus("reports/2020/q1.txt"), Mode.READABLE);
+		assertEquals(fs.fileStatus("reports/2020"), Mode.UNKNOWN);
+		fs.close(ofr.get());
+		assertEquals(fs.fileStatus("reports/2020/q1.txt"), Mode.CLOSED);
+
+		it("mkdir needs its parent, and a name is either a file or a directory");
+		assertEquals(fs.mkdir("archive/old"), false);
+		assertEquals(fs.mkdir("archive"), true);
+		assertEquals(fs.mkdir("archive"), false);
+		assertEquals(fs.mkdirs("archive/old/older"), true);
+		assertEquals(fs.mkdirs("reports/2020/q1.txt"), false);
+		for (String clash : new String[] { "archive", "reports/2020/q1.txt/inside" }) {
+			try {
+				fs.create(clash, "cambria");
+				failure("Created " + clash);
+			} catch (IllegalArgumentException e) {
+				success();
+			}
+			this.testCount++;
+		}
+		assertEquals(fs.fileStatus("archive"), Mode.UNKNOWN);
+
+		it("Recovering files whose names clash as paths fails rather than losing one");
+		ContentStore clashing = new ContentStore() {
+			public Content store(String filename, long version, Content content) {
+				return content;
+			}
+
+			public Map<String, Version> recover() {
+				Map<String, Version> files = new TreeMap<String, Version>();
+				files.put("a", new Version(0, new HeapContent("coheed")));
+				files.put("a/b", new Version(0, new HeapContent("cambria")));
+				return files;
+			}
+		};
+		try {
+			new TreeFileServer(LockStrategy.STATE, clashing);
+			failure("Recovered both");
+		} catch (IllegalStateException e) {
+			success();
+		}
+		this.testCount++;
+
+		it("A directory lists its entries in order, a page at a time");
+		fs.create("reports/summary", "claudio");
+		fs.create("reports/2019/q4.txt", "kilgannon");
+		assertEquals(fs.list("reports").get().toArray(new String[0]),
+				new String[] { "2019/", "2020/", "summary" });
+		assertEquals(fs.list("reports", null, 2).get().toArray(new String[0]), new String[] { "2019/", "2020/" });
+		assertEquals(fs.list("reports", "2020/", 2).get().toArray(new String[0]), new String[] { "summary" });
+		assertEquals(fs.list("nowhere").isPresent(), false);
+
+		it("A tree is walked and opened whole, and a deep one doesn't overflow the stack");
+		assertEquals(fs.walk("reports").get().toArray(new String[0]),
+				new String[] { "reports/2019/q4.txt", "reports/2020/q1.txt", "reports/summary" });
+		assertEquals(fs.openTree("nowhere", Mode.READABLE).isPresent(), false);
+		Optional<Map<String, File>> tree = fs.openTree("reports", Mode.READWRITEABLE);
+		assertEquals(tree.get().size(), 3);
+		assertEquals(fs.fileStatus("reports/summary"), Mode.READWRITEABLE);
+		tree.get().get("reports/2019/q4.txt").write("prexus");
+		fs.closeAll(tree.get().values());
+		assertEquals(fs.open("reports/2019/q4.txt", Mode.SNAPSHOT).get().read(), "prexus");
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			deep.append("d/");
+		}
+		fs.create(deep + "bottom", "ambellina");
+		assertEquals(fs.walk("d").get().size(), 1);
+		assertEquals(fs.open(deep + "bottom", Mode.SNAPSHOT).get().read(), "ambellina");
+	}
+
+	public void testShardedLocks() {
+		ShardedFileServer fs = new ShardedFileServer(4);
+		for (int i = 0; i < 100; i++) {
+			fs.create(i + ".txt", "coheed");
+		}
+
+		it("Closed files hold no locks");
+		assertEquals(fs.availableFiles().size(), 100);
+		assertEquals(fs.locksInUse(), 0);
+
+		it("Each open file holds one lock, however many readers it has");
+		Optional<File> ofr = fs.open("1.txt", Mode.READABLE);
+		Optional<File> ofr2 = fs.open("1.txt", Mode.READABLE);
+		Optional<File> ofw = fs.open("2.txt", Mode.READWRITEABLE);
+		assertEquals(fs.locksInUse(), 2);
+		assertEquals(fs.fileStatus("1.txt"), Mode.READABLE);
+		assertEquals(fs.fileStatus("2.txt"), Mode.READWRITEABLE);
+		assertEquals(fs.fileStatus("3.txt"), Mode.CLOSED);
+
+		it("A lock outlives its holders while someone is waiting for it");
+		Thread waiter = new Thread(new Runnable() {
+			public void run() {
+				Optional<File> waited = fs.open("2.txt", Mode.READABLE);
+				fs.close(waited.get());
+			}
+		});
+		waiter.start();
+		try {
+			while (waiter.getState() != State.WAITING) {
+				Thread.sleep(1);
+			}
+			ofw.get().write("cambria");
+			fs.close(ofw.get());
+			waiter.join();
+		} catch (InterruptedException e) {
+			failure("Interrupt");
+		}
+		assertEquals(fs.fileStatus("2.txt"), Mode.CLOSED);
+
+		it("Locks are dropped once their files are closed again, even if closed twice");
+		fs.close(ofr.get());
+		fs.close(ofr.get());
+		assertEquals(fs.fileStatus("1.txt"), Mode.READABLE);
+		fs.close(ofr2.get());
+		assertEquals(fs.locksInUse(), 0);
+
+		it("Committed content is kept without a lock");
+		Optional<File> ofs = fs.open("2.txt", Mode.SNAPSHOT);
+		assertEquals(ofs.get().read(), "cambria");
+		assertEquals(fs.locksInUse(), 0);
+	}
+
+	public void testNetwork() {
+		MyFileServer fs = new MyFileServer();
+		try (NetworkServer server = new NetworkServer(fs, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+				RemoteFileServer remote = new RemoteFileServer(server.address())) {
+			it("Files created remotely are listed on both sides");
+			remote.create("a", "coheed");
+			fs.create("b", "cambria");
+			assertEquals(remote.availableFiles().size(), 2);
+			assertEquals(remote.availableFiles().contains("b"), true);
+			assertEquals(remote.fileStatus("a"), Mode.CLOSED);
+			assertEquals(remote.fileStatus("c"), Mode.UNKNOWN);
+			assertEquals(remote.open("c", Mode.READABLE).isPresent(), false);
+
+			it("A name too long for the protocol is refused before anything is sent");
+			char[] longName = new char[Protocol.MAX_STRING + 1];
+			Arrays.fill(longName, 'n');
+			try {
+				remote.create(new String(longName), "coheed");
+				failure("Sent a name of " + longName.length + " bytes");
+			} catch (IllegalArgumentException e) {
+				success();
+			}
+			this.testCount++;
+			assertEquals(remote.fileStatus("a"), Mode.CLOSED);
+
+			it("Remote writes, appends and writes at offsets are committed on close");
+			Optional<File> ofw = remote.open("a", Mode.READWRITEABLE);
+			assertEquals(ofw.get().read(), "coheed");
+			assertEquals(fs.fileStatus("a"), Mode.READWRITEABLE);
+			ofw.get().append(" and");
+			ofw.get().write(0, ByteBuffer.wrap("C".getBytes(StandardCharsets.UTF_8)));
+			remote.close(ofw.get());
+			assertEquals(fs.open("a", Mode.SNAPSHOT).get().read(), "Coheed and");
+			assertEquals(remote.open("a", Mode.SNAPSHOT).get().read(), "Coheed and");
+			ofw = remote.open("a", Mode.READWRITEABLE);
+			ofw.get().write("claudio");
+			remote.close(ofw.get());
+			assertEquals(remote.open("a", Mode.SNAPSHOT).get().read(), "claudio");
+			assertEquals(remote.fileStatus("a"), Mode.CLOSED);
+
+			it("Content larger than a socket write is sent whole");
+			char[] big = new char[300000];
+			for (int i = 0; i < big.length; i++) {
+				big[i] = (char) ('a' + i % 26);
+			}
+			remote.create("big", new String(big));
+			assertEquals(remote.open("big", Mode.SNAPSHOT).get().read(), new String(big));
+
+			it("Content bigger than a frame is read and written a chunk at a time");
+			char[] huge = new char[Protocol.MAX_CHUNK + 1000];
+			for (int i = 0; i < huge.length; i++) {
+				huge[i] = (char) ('a' + i % 26);
+			}
+			String hugeContent = new String(huge);
+			fs.create("huge", hugeContent);
+			Optional<File> ofh = remote.open("huge", Mode.READWRITEABLE);
+			assertEquals(ofh.get().read(), hugeContent);
+			ofh.get().write(hugeContent.toUpperCase());
+			remote.close(ofh.get());
+			assertEquals(fs.open("huge", Mode.SNAPSHOT).get().read(), hugeContent.toUpperCase());
+			ofh = remote.open("huge", Mode.READWRITEABLE);
+			ofh.get().append(hugeContent);
+			remote.close(ofh.get());
+			assertEquals(fs.open("huge", Mode.SNAPSHOT).get().read(), hugeContent.toUpperCase() + hugeContent);
+			try {
+				remote.create("too big", hugeContent);
+				failure("Created a file bigger than a frame");
+			} catch (IllegalArgumentException e) {
+				success();
+			}
+			this.testCount++;
+			assertEquals(remote.fileStatus("huge"), Mode.CLOSED);
+
+			try (RemoteFileServer other = new RemoteFileServer(server.address())) {
+				it("A blocked remote open doesn't hold up others on the connection, and is granted on close");
+				Optional<File> held = other.open("b", Mode.READWRITEABLE);
+				assertEquals(remote.tryOpen("b", Mode.READABLE).isPresent(), false);
+				assertEquals(remote.open("b", Mode.READABLE, 10, TimeUnit.MILLISECONDS).isPresent(), false);
+				final AtomicReference<Optional<File>> waited = new AtomicReference<Optional<File>>();
+				Thread waiter = new Thread(new Runnable() {
+					public void run() {
+						waited.set(remote.open("b", Mode.READABLE));
+					}
+				});
+				waiter.start();
+				while (waiter.getState() != State.WAITING) {
+					Thread.sleep(1);
+				}
+				assertEquals(remote.fileStatus("b"), Mode.READWRITEABLE);
+				Optional<File> ofr = remote.open("a", Mode.READABLE);
+				assertEquals(ofr.get().read(), "claudio");
+				remote.close(ofr.get());
+				held.get().write("the amory wars");
+				other.close(held.get());
+				waiter.join(5000);
+				assertEquals(waited.get().get().read(), "the amory wars");
+				assertEquals(fs.fileStatus("b"), Mode.READABLE);
+
+				it("Disconnecting closes the files left open");
+				other.open("a", Mode.READWRITEABLE);
+				assertEquals(fs.fileStatus("a"), Mode.READWRITEABLE);
+			}
+			Optional<File> reopened = fs.open("a", Mode.READWRITEABLE, 5, TimeUnit.SECONDS);
+			assertEquals(reopened.isPresent(), true);
+			fs.close(reopened.get());
+		} catch (IOException | InterruptedException e) {
+			failure("");
+			e.printStackTrace();
+		}
+
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("networkwal");
+			WriteAheadLog log = new WriteAheadLog(dir, new HeapStore());
+			MyFileServer logged = new MyFileServer(lockStrategy(), log);
+			try (NetworkServer server = new NetworkServer(logged,
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+					RemoteFileServer remote = new RemoteFileServer(server.address())) {
+				it("Remote creates and commits to a persistent store are logged, and answered in order");
+				remote.create("a", "coheed");
+				Optional<File> ofw = remote.open("a", Mode.READWRITEABLE);
+				ofw.get().write("cambria");
+				remote.close(ofw.get());
+				assertEquals(remote.open("a", Mode.SNAPSHOT).get().read(), "cambria");
+				try (RemoteFileServer leaving = new RemoteFileServer(server.address())) {
+					leaving.open("a", Mode.READWRITEABLE);
+				}
+				Optional<File> reopened = logged.open("a", Mode.READABLE, 5, TimeUnit.SECONDS);
+				assertEquals(reopened.get().read(), "cambria");
+				logged.close(reopened.get());
+				assertEquals(log.commits() == 2, true);
+			}
+			log.close();
+		} catch (IOException | InterruptedException e) {
+			failure("");
+			e.printStackTrace();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	public void testMappedStore() {
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("mappedstore");
+			// Small segments, so that a few files fill more than one
+			MyFileServer fs = new MyFileServer(lockStrategy(), new MappedStore(dir, 256));
+			fs.create("a", "coheed");
+			fs.create("b", "cambria");
+			char[] big = new char[1000];
+			Arrays.fill(big, 'x');
+			Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+			ofw.get().write(new String(big));
+			fs.close(ofw.get());
+			ofw = fs.open("b", Mode.READWRITEABLE);
+			ofw.get().write("claudio");
+			fs.close(ofw.get());
+
+			it("Stored files read back from the mapped segments");
+			Optional<File> ofr = fs.open("b", Mode.READABLE);
+			assertEquals(ofr.get().read(), "claudio");
+			fs.close(ofr.get());
+
+			it("A new server on the same directory starts with the same files and content");
+			MyFileServer reopened = new MyFileServer(lockStrategy(), new MappedStore(dir, 256));
+			assertEquals(reopened.availableFiles().size(), 2);
+			assertEquals(reopened.fileStatus("a"), Mode.CLOSED);
+			Optional<File> ofa = reopened.open("a", Mode.READABLE);
+			assertEquals(ofa.get().read(), new String(big));
+			Optional<File> ofb = reopened.open("b", Mode.READABLE);
+			assertEquals(ofb.get().read(), "claudio");
+
+			it("Versions carry on from where they were");
+			assertEquals(ofb.get().version() == 1, true);
+			reopened.close(ofa.get());
+			reopened.close(ofb.get());
+
+			it("Creating a file that is already on disk leaves it alone");
+			reopened.create("b", "wibble");
+			ofb = reopened.open("b", Mode.READABLE);
+			assertEquals(ofb.get().read(), "claudio");
+			reopened.close(ofb.get());
+
+			it("A full segment that never got all of its records to disk is checked when reopened");
+			Path torn = Files.createTempDirectory("mappedstore");
+			try {
+				MappedStore store = new MappedStore(torn, 256);
+				store.store("c", 0, new HeapContent("coheed"));
+				store.store("c", 1, new HeapContent("cambria"));
+				// Starts the next segment, sealing the first
+				store.store("d", 0, new HeapContent(new String(big, 0, 300)));
+				// As if it had crashed with the second record torn, before the
+				// first segment was forced and marked as whole
+				Path first = torn.resolve("segment-00000000.dat");
+				byte[] segment = Files.readAllBytes(first);
+				assertEquals(segment[63], 0x46);
+				Arrays.fill(segment, 63, 67, (byte) 0);
+				segment[56] = 'C';
+				Files.write(first, segment);
+				MappedStore recovered = new MappedStore(torn, 256);
+				Version c = recovered.recover().get("c");
+				assertEquals((int) c.number, 0);
+				assertEquals(StandardCharsets.UTF_8.decode(c.content.bytes()).toString(), "coheed");
+				assertEquals(recovered.recover().get("d").content.size(), 300);
+			} finally {
+				delete(torn);
+			}
+		} catch (IOException e) {
+			failure("");
+			e.printStackTrace();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	public void testWriteAheadLog() {
+		Path dir = null;
+		try {
+			dir = Files.createTempDirectory("wal");
+			WriteAheadLog log = new WriteAheadLog(dir, new HeapStore());
+			MyFileServer fs = new MyFileServer(lockStrategy(), log);
+			fs.create("a", "coheed");
+			fs.create("b", "cambria");
+			Optional<File> ofw = fs.open("a", Mode.READWRITEABLE);
+			ofw.get().write("claudio");
+			fs.close(ofw.get());
+
+			it("Every create and commit is logged");
+			assertEquals(log.commits() == 3, true);
+
+			it("Closing a writer that wrote nothing logs nothing");
+			ofw = fs.open("b", Mode.READWRITEABLE);
+			fs.close(ofw.get());
+			assertEquals(log.commits() == 3, true);
+
+			it("A server on a replayed log (without the log being closed) has the committed content");
+			WriteAheadLog replayed = new WriteAheadLog(dir, new HeapStore());
+			MyFileServer recovered = new MyFileServer(lockStrategy(), replayed);
+			assertEquals(recovered.availableFiles().size(), 2);
+			Optional<File> ofa = recovered.open("a", Mode.READABLE);
+			assertEquals(ofa.get().read(), "claudio");
+			assertEquals(ofa.get().version() == 1, true);
+			recovered.close(ofa.get());
+			log.close();
+
+			it("A torn record at the end of the log is ignored");
+			Optional<File> ofb = recovered.open("b", Mode.READWRITEABLE);
+			ofb.get().write("ambelina");
+			recovered.close(ofb.get());
+			replayed.close();
+			Files.write(dir.resolve("wal.log"), new byte[] { 0x57, 0x41, 0x4c, 0x31, 1, 2, 3 },
+					StandardOpenOption.APPEND);
+			WriteAheadLog torn = new WriteAheadLog(dir, new HeapStore());
+			MyFileServer afterTear = new MyFileServer(lockStrategy(), torn);
+			ofb = afterTear.open("b", Mode.READABLE);
+			assertEquals(ofb.get().read(), "ambelina");
+			afterTear.close(ofb.get());
+			torn.close();
+
+			it("A log in front of a persistent store is replayed into it, and then emptied");
+			Path mapped = dir.resolve("segments");
+			WriteAheadLog overMapped = new WriteAheadLog(dir, new MappedStore(mapped));
+			assertEquals(Files.size(dir.resolve("wal.log")) == 0, true);
+			overMapped.close();
+			MyFileServer fromSegments = new MyFileServer(lockStrategy(), new MappedStore(mapped));
+			ofb = fromSegments.open("b", Mode.READABLE);
+			assertEquals(ofb.get().read(), "ambelina");
+			fromSegments.close(ofb.get());
+
+			it("Appends are logged as deltas and replayed on top of the version before");
+			Path logged = dir.resolve("deltas");
+			WriteAheadLog deltas = new WriteAheadLog(logged, new HeapStore());
+			MyFileServer withDeltas = new MyFileServer(lockStrategy(), deltas);
+			withDeltas.create("c", "claudio");
+			Optional<File> ofc = withDeltas.open("c", Mode.READWRITEABLE);
+			ofc.get().append(" sanchez");
+			withDeltas.close(ofc.get());
+			ofc = withDeltas.open("c", Mode.READWRITEABLE);
+			ofc.get().write(0, ByteBuffer.wrap("C".getBytes(StandardCharsets.UTF_8)));
+			withDeltas.close(ofc.get());
+			WriteAheadLog replayedDeltas = new WriteAheadLog(logged, new HeapStore());
+			MyFileServer fromDeltas = new MyFileServer(lockStrategy(), replayedDeltas);
+			ofc = fromDeltas.open("c", Mode.READABLE);
+			assertEquals(ofc.get().read(), "Claudio sanchez");
+			assertEquals(ofc.get().version() == 2, true);
+			fromDeltas.close(ofc.get());
+			deltas.close();
+			replayedDeltas.close();
+
+			it("The log is started afresh once it grows past its checkpoint size, keeping every file");
+			for (boolean persistent : new boolean[] { false, true }) {
+				Path checkpointed = dir.resolve(persistent ? "checkpointed-mapped" : "checkpointed-heap");
+				Path segments = checkpointed.resolve("segments");
+				WriteAheadLog small = new WriteAheadLog(checkpointed,
+						persistent ? new MappedStore(segments) : new HeapStore(), WriteAheadLog.Durability.SYNC, 0,
+						TimeUnit.MICROSECONDS, 4096);
+				MyFileServer busy = new MyFileServer(lockStrategy(), small);
+				for (int i = 0; i < 10; i++) {
+					busy.create("file" + i, "coheed");
+				}
+				for (int round = 0; round < 500; round++) {
+					ofw = busy.open("file" + round % 10, Mode.READWRITEABLE);
+					ofw.get().write("cambria " + round);
+					busy.close(ofw.get());
+				}
+				assertEquals(small.checkpoints() > 0, true);
+				assertEquals(Files.size(checkpointed.resolve("wal.log")) < 8192, true);
+				small.close();
+				WriteAheadLog reread = new WriteAheadLog(checkpointed,
+						persistent ? new MappedStore(segments) : new HeapStore());
+				MyFileServer afterCheckpoints = new MyFileServer(lockStrategy(), reread);
+				assertEquals(afterCheckpoints.availableFiles().size(), 10);
+				ofa = afterCheckpoints.open("file9", Mode.READABLE);
+				assertEquals(ofa.get().read(), "cambria 499");
+				afterCheckpoints.close(ofa.get());
+				reread.close();
+			}
+		} catch (IOException e) {
+			failure("");
+			e.printStackTrace();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private void delete(Path dir) {
+		if (dir == null) {
+			return;
+		}
+		try (DirectoryStream<Path> listing = Files.newDirectoryStream(dir)) {
+			for (Path path : listing) {
+				if (Files.isDirectory(path)) {
+					delete(path);
+				} else {
+					Files.delete(path);
+				}
+			}
+			Files.delete(dir);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	// ************ TEST HARNESS *************************************************
 
 	public String className;
+	// Which LockStrategy MyFileServer is being run with, when it is the class
+	// under test (the whole suite is run once for each)
+	private LockStrategy strategy = null;
 
 	public static final String ANSI_RED = "\u001B[31m\033[1m";
 	public static final String ANSI_RESET = "\u001B[0m";
@@ -513,7 +1953,15 @@ public class TestSuite {
 		this.className = className;
 	}
 
+	// The lock strategy this run of the suite uses
+	public LockStrategy lockStrategy() {
+		return this.strategy == null ? LockStrategy.STATE : this.strategy;
+	}
+
 	public FileServer newFileServer() {
+		if (this.strategy != null) {
+			return new MyFileServer(this.strategy);
+		}
 		// Create a new JavaClassLoader
 		ClassLoader classLoader = this.getClass().getClassLoader();
 		// Load the target class using its binary name
@@ -551,10 +1999,18 @@ public class TestSuite {
 
 	public void go() {
 		System.out.println("Running tests.");
-		tests();
+		if (newFileServer().getClass() == MyFileServer.class) {
+			for (LockStrategy each : LockStrategy.values()) {
+				this.strategy = each;
+				describe("** Lock strategy " + each + " **");
+				tests();
+			}
+		} else {
+			tests();
+		}
 		System.out.println("\n" + ANSI_BLUE + "Tests: " + testCount + ANSI_RESET);
 		System.out.println(ANSI_GREEN + "Passed: " + passedTests + ANSI_RESET);
-		if (passedTests == testCount) {
+		if (passedTests.intValue() == testCount.intValue()) {
 			System.out.println("\nOk.");
 		} else {
 			System.out.println(ANSI_RED + "Failed: " + (testCount - passedTests) + ANSI_RESET);
@@ -0,0 +1,52 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * How client sessions are run: one platform thread each, or one virtual
+ * thread each.
+ *
+ * Virtual threads need JDK 21 or later, so they're looked up reflectively to
+ * keep the rest of the server building on older JDKs. Blocking in MyFileServer
+ * is virtual thread friendly: every ReadWriteLocker parks through
+ * java.util.concurrent (never inside synchronized, which would pin the carrier
+ * thread), so a session waiting for a file gives its carrier back.
+ */
+public enum ThreadMode {
+  PLATFORM,
+  VIRTUAL;
+
+  private static final Method START_VIRTUAL_THREAD = startVirtualThread();
+
+  private static Method startVirtualThread() {
+    try {
+      return Thread.class.getMethod("startVirtualThread", Runnable.class);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  public static boolean virtualThreadsSupported() {
+    return START_VIRTUAL_THREAD != null;
+  }
+
+  /**
+   * Starts a new thread of this kind running task
+   */
+  public Thread start(Runnable task) {
+    if (this == PLATFORM) {
+      Thread thread = new Thread(task);
+      thread.start();
+      return thread;
+    }
+    if (START_VIRTUAL_THREAD == null) {
+      throw new UnsupportedOperationException("Virtual threads need JDK 21 or later");
+    }
+    try {
+      return (Thread) START_VIRTUAL_THREAD.invoke(null, task);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
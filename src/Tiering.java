@@ -0,0 +1,126 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tiering compresses the content of files that have sat CLOSED for a while
+ * (see MyFileServer.tier()), so files nobody is using take less memory. The
+ * content is compressed with Lz4 into a CompressedContent, and swapped back
+ * for the decompressed bytes the next time the file is opened.
+ *
+ * One thread sweeps every file each SWEEPS_PER_IDLE-th of the idle time. The
+ * server stamps a file with the current sweep number whenever it is opened or
+ * closed, so a file is cold once it is CLOSED and hasn't been stamped for the
+ * idle time's worth of sweeps. Its current Version is then compressed, and
+ * swapped in with a CAS, so a writer that commits in the meantime wins. If
+ * the file has been opened by the time the swap is done it is swapped back,
+ * so a handle opened under a lock is only ever left with compressed content
+ * by a narrow race, which costs it decompressing on each read, not any
+ * correctness. Content that doesn't compress to at most MAX_RATIO of its size
+ * is left as it is and not tried again until it has been idle again. Content
+ * that is a view of a memory-mapped file (see DirectContent.wrapped()) is
+ * never compressed: it is on disk already, and compressing it would only
+ * bring it onto the heap, to be copied off-heap again when it is next opened.
+ *
+ * @author jamesjarvis
+ */
+public class Tiering {
+
+  private static final int SWEEPS_PER_IDLE = 4;
+  // Files smaller than this aren't worth compressing
+  private static final int MIN_SIZE = 256;
+  private static final double MAX_RATIO = 0.9;
+
+  private final ConcurrentHashMap<String, FileFrame> files;
+  private final ServerMetrics metrics;
+  private final long periodNanos;
+  private final Thread sweeper;
+  private final LongAdder compressions;
+  private volatile int sweep;
+  private volatile boolean stopped;
+
+  Tiering(ConcurrentHashMap<String, FileFrame> files, ServerMetrics metrics, long idle, TimeUnit unit) {
+    this.files = files;
+    this.metrics = metrics;
+    this.periodNanos = Math.max(1, unit.toNanos(idle) / SWEEPS_PER_IDLE);
+    this.compressions = new LongAdder();
+    this.sweeper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (!Tiering.this.stopped) {
+          try {
+            TimeUnit.NANOSECONDS.sleep(Tiering.this.periodNanos);
+          } catch (InterruptedException e) {
+            return;
+          }
+          sweep();
+        }
+      }
+    }, "cold-tiering");
+    this.sweeper.setDaemon(true);
+    this.sweeper.start();
+  }
+
+  /**
+   * The current sweep number, to stamp a file with when it is used
+   */
+  int now() {
+    return this.sweep;
+  }
+
+  private void sweep() {
+    int now = this.sweep + 1;
+    this.sweep = now;
+    for (FileFrame frame : this.files.values()) {
+      if (this.stopped) {
+        return;
+      }
+      if (frame.lock.getMode() != Mode.CLOSED) {
+        frame.used = now;
+      } else if (now - frame.used > SWEEPS_PER_IDLE) {
+        compress(frame, now);
+      }
+    }
+  }
+
+  private void compress(FileFrame frame, int now) {
+    Version version = frame.version;
+    Content content = version.content;
+    if (content instanceof CompressedContent || content.size() < MIN_SIZE
+        || (content instanceof DirectContent && ((DirectContent) content).wrapped())) {
+      return;
+    }
+    CompressedContent compressed = CompressedContent.compress(content);
+    if (compressed.compressedSize() > content.size() * MAX_RATIO) {
+      frame.used = now;
+      return;
+    }
+    Version cold = new Version(version.number, compressed);
+    if (!FileFrame.VERSION.compareAndSet(frame, version, cold)) {
+      return;
+    }
+    if (frame.lock.getMode() != Mode.CLOSED && FileFrame.VERSION.compareAndSet(frame, cold, version)) {
+      // Opened while it was being compressed
+      return;
+    }
+    this.compressions.increment();
+    if (ServerMetrics.ENABLED) {
+      this.metrics.compressed(content.size(), compressed.compressedSize(), true);
+    }
+  }
+
+  /**
+   * How many times a file's content has been compressed
+   */
+  public long compressions() {
+    return this.compressions.sum();
+  }
+
+  /**
+   * Stops compressing files; those compressed already stay so until opened
+   */
+  public void stop() {
+    this.stopped = true;
+    this.sweeper.interrupt();
+  }
+}
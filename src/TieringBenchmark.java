@@ -0,0 +1,108 @@
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TieringBenchmark measures what compressing cold files (see Tiering) saves
+ * in memory and costs in open latency.
+ *
+ * For each combination of parameters a server is filled with `files` files
+ * of `size` bytes of log-like text (lines made of words from a small
+ * vocabulary, with numbers in them) and the heap in use is measured. Tiering
+ * is then turned on and left to compress every file, and the heap is measured
+ * again. Last, `sample` files are each opened and read twice, the first time
+ * decompressing them, and the percentiles of both are printed along with the
+ * heap before and after and the compression ratio from the server's metrics.
+ *
+ *   java -Xmx4g TieringBenchmark files=100000 size=1024,4096,65536
+ *
+ * files   number of files                 (default 100000)
+ * size    bytes per file                  (default 4096)
+ * sample  files opened to time opens      (default 10000)
+ *
+ * @author jamesjarvis
+ */
+public class TieringBenchmark {
+
+  private static final String[] DEFAULTS = { "files=100000", "size=4096", "sample=10000" };
+  private static final String[] WORDS = { "GET", "PUT", "/files/", "user", "session", "opened", "closed",
+      "READABLE", "READWRITEABLE", "in", "ms", "ok", "error", "timeout", "from", "10.0.0.", "bytes" };
+
+  // Keeps the server reachable until its heap use has been measured
+  private static volatile MyFileServer filled;
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    int sample = Integer.parseInt(params.get("sample")[0]);
+
+    System.out.printf("%8s %7s %9s %9s %7s %14s %14s %14s%n", "files", "size", "heap MB", "cold MB", "ratio",
+        "cold open p50", "cold open p99", "warm open p50");
+
+    for (String files : params.get("files")) {
+      for (String size : params.get("size")) {
+        run(Integer.parseInt(files), Integer.parseInt(size), sample);
+      }
+    }
+  }
+
+  private static void run(int files, int size, int sample) throws InterruptedException {
+    filled = null;
+    long empty = usedHeap();
+    MyFileServer fs = new MyFileServer();
+    for (int i = 0; i < files; i++) {
+      fs.create(i + ".txt", text(size));
+    }
+    filled = fs;
+    long hot = usedHeap() - empty;
+
+    Tiering tiering = fs.tier(100, TimeUnit.MILLISECONDS);
+    while (fs.metrics().snapshot().compressedFiles < files) {
+      Thread.sleep(10);
+    }
+    long cold = usedHeap() - empty;
+    double ratio = fs.metrics().snapshot().compressionRatio;
+    tiering.stop();
+
+    Histogram coldOpens = new Histogram();
+    Histogram warmOpens = new Histogram();
+    for (int i = 0; i < Math.min(sample, files); i++) {
+      String filename = i + ".txt";
+      for (Histogram opens : new Histogram[] { coldOpens, warmOpens }) {
+        long start = System.nanoTime();
+        File file = fs.open(filename, Mode.READABLE).get();
+        file.read();
+        fs.close(file);
+        opens.record(System.nanoTime() - start);
+      }
+    }
+
+    System.out.printf("%8d %7d %9.1f %9.1f %7.2f %12.1fus %12.1fus %12.1fus%n", files, size, hot / 1e6,
+        cold / 1e6, ratio, coldOpens.percentile(0.5) / 1e3, coldOpens.percentile(0.99) / 1e3,
+        warmOpens.percentile(0.5) / 1e3);
+    filled = null;
+  }
+
+  private static String text(int size) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder text = new StringBuilder(size + 32);
+    while (text.length() < size) {
+      text.append(random.nextInt(1000000)).append(' ');
+      for (int w = 0; w < 6; w++) {
+        text.append(WORDS[random.nextInt(WORDS.length)]);
+        text.append(random.nextInt(4) == 0 ? Integer.toString(random.nextInt(256)) : "").append(' ');
+      }
+      text.append('\n');
+    }
+    text.setLength(size);
+    return text.toString();
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,158 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * TransferBenchmark measures how much CPU a NetworkServer spends sending file
+ * content, per GB served over loopback, for each kind of ContentStore.
+ *
+ * For each combination of parameters a fresh server is started with one file
+ * of `size` bytes in `store`, and one client opens it and READs the whole of
+ * it over and over, keeping `pipeline` READs in flight, until `gb` GB have
+ * been served. The client speaks Protocol directly and throws the bytes away
+ * into one direct buffer, so it costs as little as possible. One row is
+ * printed with the throughput and the CPU time of the server's selector
+ * thread and of the client, each per GB.
+ *
+ *   java -XX:MaxDirectMemorySize=1g TransferBenchmark store=heap,direct,mapped
+ *
+ * store     heap, direct and/or mapped        (default heap,direct,mapped)
+ * size      bytes in the file                 (default 65536,1048576,16777216)
+ * gb        GB to serve per run               (default 4)
+ * pipeline  READs in flight at once           (default 4)
+ *
+ * @author jamesjarvis
+ */
+public class TransferBenchmark {
+
+  private static final String[] DEFAULTS = { "store=heap,direct,mapped", "size=65536,1048576,16777216", "gb=4",
+      "pipeline=4" };
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    double gb = Double.parseDouble(params.get("gb")[0]);
+    int pipeline = Integer.parseInt(params.get("pipeline")[0]);
+
+    System.out.printf("%-7s %10s %8s %14s %14s%n", "store", "size", "GB/s", "server cpu s/GB",
+        "client cpu s/GB");
+
+    for (String store : params.get("store")) {
+      for (String size : params.get("size")) {
+        run(store, Integer.parseInt(size), gb, pipeline);
+      }
+    }
+  }
+
+  private static void run(String store, int size, double gb, int pipeline) throws Exception {
+    Path dir = null;
+    ContentStore contentStore;
+    if (store.equals("mapped")) {
+      dir = Files.createTempDirectory("transferbenchmark");
+      contentStore = new MappedStore(dir, Math.max(64 << 20, 2 * size));
+    } else {
+      contentStore = store.equals("direct") ? new DirectStore() : new HeapStore();
+    }
+    MyFileServer fs = new MyFileServer(LockStrategy.STATE, contentStore);
+    char[] content = new char[size];
+    Arrays.fill(content, 'x');
+    fs.create("f", new String(content));
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    try (NetworkServer server = new NetworkServer(fs, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        SocketChannel channel = SocketChannel.open(server.address())) {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      long serverThread = threadNamed("network-server");
+
+      // Open the file once, without fetching it
+      ByteBuffer open = Protocol.frame(0, 1 + Protocol.stringLength("f") + 1 + 8 + 1);
+      open.put(Protocol.OPEN);
+      Protocol.putString(open, "f");
+      open.put((byte) Mode.READABLE.ordinal());
+      open.putLong(-1);
+      open.put((byte) 0);
+      open.flip();
+      channel.write(open);
+      ByteBuffer sink = ByteBuffer.allocateDirect(1 << 20);
+      ByteBuffer header = ByteBuffer.allocate(Protocol.FRAME_HEADER + 1 + 4);
+      readFully(channel, header);
+      int handle = header.getInt(Protocol.FRAME_HEADER + 1);
+      skip(channel, header.getInt(0) - 4 - 1 - 4, sink);
+
+      ByteBuffer read = Protocol.frame(1, 1 + 4 + 4 + 4);
+      read.put(Protocol.READ);
+      read.putInt(handle);
+      read.putInt(0);
+      read.putInt(-1);
+      read.flip();
+
+      long reads = (long) Math.ceil(gb * 1e9 / size);
+      long serverStart = threads.getThreadCpuTime(serverThread);
+      long clientStart = threads.getCurrentThreadCpuTime();
+      long start = System.nanoTime();
+      long sent = 0;
+      // READs send at most Protocol.MAX_CHUNK, which may be less than the file
+      long bytes = 0;
+      for (long received = 0; received < reads; received++) {
+        while (sent < reads && sent - received < pipeline) {
+          channel.write(read.duplicate());
+          sent++;
+        }
+        header.clear();
+        readFully(channel, header);
+        bytes += header.getInt(Protocol.FRAME_HEADER + 1);
+        skip(channel, header.getInt(Protocol.FRAME_HEADER + 1), sink);
+      }
+      long elapsed = System.nanoTime() - start;
+      double served = bytes / 1e9;
+      System.out.printf("%-7s %10d %8.2f %14.3f %14.3f%n", store, size, served * 1e9 / elapsed,
+          (threads.getThreadCpuTime(serverThread) - serverStart) / 1e9 / served,
+          (threads.getCurrentThreadCpuTime() - clientStart) / 1e9 / served);
+    }
+
+    if (dir != null) {
+      try (Stream<Path> segments = Files.list(dir)) {
+        for (Object segment : segments.toArray()) {
+          Files.delete((Path) segment);
+        }
+      }
+      Files.delete(dir);
+    }
+  }
+
+  private static long threadNamed(String name) {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().equals(name)) {
+        return thread.getId();
+      }
+    }
+    throw new IllegalStateException("No thread " + name);
+  }
+
+  private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  private static void skip(SocketChannel channel, int length, ByteBuffer sink) throws IOException {
+    while (length > 0) {
+      sink.clear();
+      sink.limit(Math.min(length, sink.capacity()));
+      readFully(channel, sink);
+      length -= sink.limit();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * TreeBenchmark measures TreeFileServer's namespace: creating files in
+ * directories of their own or all in the same ones, what the tree costs in
+ * memory, and how resolving, listing and walking scale with depth and size.
+ *
+ * For each combination of parameters `dirs` directories of `files` small
+ * files each are created from `threads` threads, each thread either filling
+ * directories of its own (spread) or every thread filling each directory in
+ * turn (shared), into a TreeFileServer and, with the same names, into a
+ * MyFileServer. The creates per second and the heap per file are printed for
+ * each. Then, on the TreeFileServer:
+ *
+ *   open      a READABLE open and close of a file `depth` directories down,
+ *             for each depth
+ *   list      a page of 100 entries from a random place in a directory
+ *   walk      walking the whole tree
+ *
+ *   java -Xmx4g TreeBenchmark dirs=1000 files=1000 threads=1,4
+ *
+ * dirs     directories                           (default 1000)
+ * files    files in each directory               (default 1000)
+ * threads  threads creating files                (default 1,4)
+ * depth    depths to time opens at               (default 1,10,100,1000)
+ * repeat   opens and pages timed                 (default 100000)
+ *
+ * @author jamesjarvis
+ */
+public class TreeBenchmark {
+
+  private static final String[] DEFAULTS = { "dirs=1000", "files=1000", "threads=1,4", "depth=1,10,100,1000",
+      "repeat=100000" };
+
+  // Keeps the server reachable until its heap use has been measured
+  private static volatile FileServer filled;
+
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String[]> params = Benchmark.parse(DEFAULTS, args);
+    int repeat = Integer.parseInt(params.get("repeat")[0]);
+
+    System.out.printf("%-6s %-7s %7s %9s %7s %12s %12s%n", "server", "layout", "dirs", "files", "threads",
+        "creates/s", "bytes/file");
+    TreeFileServer tree = null;
+    for (String dirs : params.get("dirs")) {
+      for (String files : params.get("files")) {
+        for (String threads : params.get("threads")) {
+          for (boolean shared : new boolean[] { false, true }) {
+            run(new MyFileServer(), shared, Integer.parseInt(dirs), Integer.parseInt(files),
+                Integer.parseInt(threads));
+            tree = new TreeFileServer();
+            run(tree, shared, Integer.parseInt(dirs), Integer.parseInt(files), Integer.parseInt(threads));
+          }
+        }
+      }
+    }
+
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    for (String depth : params.get("depth")) {
+      StringBuilder path = new StringBuilder();
+      for (int i = 0; i < Integer.parseInt(depth); i++) {
+        path.append("deep").append(i).append('/');
+      }
+      String filename = path.append("file").toString();
+      tree.create(filename, "x");
+      Histogram opens = new Histogram();
+      for (int i = 0; i < repeat; i++) {
+        long start = System.nanoTime();
+        tree.close(tree.open(filename, Mode.READABLE).get());
+        opens.record(System.nanoTime() - start);
+      }
+      System.out.printf("open at depth %-5s p50 %8.2fus p99 %8.2fus%n", depth, opens.percentile(0.5) / 1e3,
+          opens.percentile(0.99) / 1e3);
+    }
+
+    int dirs = Integer.parseInt(params.get("dirs")[0]);
+    int files = Integer.parseInt(params.get("files")[0]);
+    Histogram pages = new Histogram();
+    for (int i = 0; i < repeat; i++) {
+      long start = System.nanoTime();
+      tree.list("d" + random.nextInt(dirs), "f" + random.nextInt(files), 100);
+      pages.record(System.nanoTime() - start);
+    }
+    System.out.printf("list page of 100    p50 %8.2fus p99 %8.2fus%n", pages.percentile(0.5) / 1e3,
+        pages.percentile(0.99) / 1e3);
+
+    long start = System.nanoTime();
+    int walked = tree.walk("").get().size();
+    System.out.printf("walk of %d files    %8.1fms%n", walked, (System.nanoTime() - start) / 1e6);
+  }
+
+  private static void run(FileServer fs, boolean shared, int dirs, int files, int threads)
+      throws InterruptedException {
+    filled = null;
+    long empty = usedHeap();
+    List<Thread> creators = new ArrayList<Thread>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      int first = t;
+      Thread creator = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          if (shared) {
+            for (int d = 0; d < dirs; d++) {
+              for (int f = first; f < files; f += threads) {
+                fs.create("d" + d + "/f" + f, "x");
+              }
+            }
+          } else {
+            for (int d = first; d < dirs; d += threads) {
+              for (int f = 0; f < files; f++) {
+                fs.create("d" + d + "/f" + f, "x");
+              }
+            }
+          }
+        }
+      });
+      creators.add(creator);
+      creator.start();
+    }
+    for (Thread creator : creators) {
+      creator.join();
+    }
+    long created = System.nanoTime() - start;
+    filled = fs;
+    long heap = usedHeap() - empty;
+    long total = (long) dirs * files;
+    System.out.printf("%-6s %-7s %7d %9d %7d %12.0f %12.1f%n", fs instanceof TreeFileServer ? "tree" : "flat",
+        shared ? "shared" : "spread", dirs, files, threads, total / (created / 1e9), heap / (double) total);
+    filled = null;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
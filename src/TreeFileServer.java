@@ -0,0 +1,508 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TreeFileServer is a FileServer whose files live in a tree of directories,
+ * rather than in one flat map of names.
+ *
+ * A path is a series of names separated by '/', "reports/2020/q1.txt" say,
+ * and empty names (a leading, trailing or doubled '/') are ignored, so "/a/b"
+ * and "a//b/" are the same path as "a/b". Each directory holds its entries
+ * in its own ConcurrentSkipListMap, in name order. Resolving a path only
+ * reads those maps, so opens write to nothing shared on the way to a file,
+ * not even the root's, and the only lock an open takes is the file's own.
+ * Entries are added with putIfAbsent() and a failed create's file taken out
+ * with remove(name, frame), both atomic on their own, so creates in the same
+ * directory don't lock each other out either, and there are no directory
+ * locks to deadlock with the file locks.
+ *
+ * Directories are made with mkdir() and mkdirs(), or by creating a file whose
+ * directories don't exist yet, which makes them, so names that already
+ * follow a directory convention carry over as they are. A name is either a
+ * file or a directory: creating a file where a directory is, or under a file,
+ * throws IllegalArgumentException, mkdir() where a file is returns false, and
+ * a store holding files whose names clash that way ("a" and "a/b") can't be
+ * recovered into a tree at all, rather than losing one of them.
+ * Nothing is ever removed, as in the other servers.
+ *
+ * Directories are listed with list(), a page at a time for big ones, and
+ * whole trees are walked with walk() and opened with openTree(). Walking
+ * keeps its own stack rather than recursing, so a tree can be as deep as
+ * anyone likes.
+ *
+ * Files themselves work as in MyFileServer: each has a FileFrame with its
+ * latest Version and a ReadWriteLocker from the LockStrategy, content goes
+ * through the ContentStore, and a store's recovered files are put back in the
+ * tree by their names.
+ *
+ * @author jamesjarvis
+ */
+public class TreeFileServer implements FileServer {
+
+  private static final char SEPARATOR = '/';
+
+  /**
+   * A directory's entries, each a Directory or a FileFrame
+   */
+  private static final class Directory {
+    final ConcurrentSkipListMap<String, Object> entries = new ConcurrentSkipListMap<String, Object>();
+
+    Object get(String name) {
+      return this.entries.get(name);
+    }
+  }
+
+  private final Directory root;
+  private final LockStrategy lockStrategy;
+  private final ContentStore store;
+
+  public TreeFileServer() {
+    this(LockStrategy.STATE, new HeapStore());
+  }
+
+  public TreeFileServer(LockStrategy lockStrategy, ContentStore store) {
+    this.root = new Directory();
+    this.lockStrategy = lockStrategy;
+    this.store = store;
+    for (Map.Entry<String, Version> recovered : store.recover().entrySet()) {
+      String[] names = split(recovered.getKey());
+      Directory parent = names.length == 0 ? null : directory(names, names.length - 1, true);
+      // A flat store can hold both "a" and "a/b", which can't both be in a tree
+      if (parent == null || parent.entries.putIfAbsent(names[names.length - 1],
+          new FileFrame(recovered.getValue(), Mode.CLOSED, lockStrategy.newLocker())) != null) {
+        throw new IllegalStateException("Recovered file " + recovered.getKey()
+            + " clashes with another recovered file's path, so they can't both be put in the tree");
+      }
+    }
+  }
+
+  /**
+   * The names in path, without the empty ones
+   */
+  private static String[] split(String path) {
+    List<String> names = new ArrayList<String>();
+    int start = 0;
+    while (start <= path.length()) {
+      int end = path.indexOf(SEPARATOR, start);
+      if (end < 0) {
+        end = path.length();
+      }
+      if (end > start) {
+        names.add(path.substring(start, end));
+      }
+      start = end + 1;
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  private static String join(String[] names, int count) {
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        path.append(SEPARATOR);
+      }
+      path.append(names[i]);
+    }
+    return path.toString();
+  }
+
+  /**
+   * The directory made of the first count names, making any that are missing
+   * if make is set, or null if one is missing or a file is in the way
+   */
+  private Directory directory(String[] names, int count, boolean make) {
+    Directory directory = this.root;
+    for (int i = 0; i < count; i++) {
+      Object entry = directory.get(names[i]);
+      if (entry == null && make) {
+        Directory made = new Directory();
+        entry = directory.entries.putIfAbsent(names[i], made);
+        if (entry == null) {
+          entry = made;
+        }
+      }
+      if (!(entry instanceof Directory)) {
+        return null;
+      }
+      directory = (Directory) entry;
+    }
+    return directory;
+  }
+
+  /**
+   * The file at path, or null if there isn't one
+   */
+  private FileFrame file(String path) {
+    return file(split(path));
+  }
+
+  private FileFrame file(String[] names) {
+    if (names.length == 0) {
+      return null;
+    }
+    Directory parent = directory(names, names.length - 1, false);
+    Object entry = parent == null ? null : parent.get(names[names.length - 1]);
+    return entry instanceof FileFrame ? (FileFrame) entry : null;
+  }
+
+  /**
+   * Creates the file if there is nothing at path yet, making the directories
+   * it is in if they don't exist. Throws IllegalArgumentException if there is
+   * a directory at path, or a file where one of its directories would be.
+   * The file is held for writing until its content is stored, as MyFileServer
+   * does.
+   */
+  @Override
+  public void create(String filename, String content) {
+    String[] names = split(filename);
+    if (names.length == 0) {
+      throw new IllegalArgumentException("No name in path " + filename);
+    }
+    String name = names[names.length - 1];
+    Directory parent = directory(names, names.length - 1, true);
+    if (parent == null) {
+      throw new IllegalArgumentException("A file is in the way of " + filename);
+    }
+    Object existing = parent.get(name);
+    if (existing instanceof Directory) {
+      throw new IllegalArgumentException(filename + " is a directory");
+    } else if (existing != null) {
+      return;
+    }
+    FileFrame created = new FileFrame(new Version(0, new HeapContent(content)), Mode.CLOSED,
+        this.lockStrategy.newLocker());
+    created.lock.tryWriteLock();
+    try {
+      existing = parent.entries.putIfAbsent(name, created);
+      if (existing instanceof Directory) {
+        throw new IllegalArgumentException(filename + " is a directory");
+      } else if (existing != null) {
+        return;
+      }
+      try {
+        String path = join(names, names.length);
+        created.version = new Version(0, this.store.store(path, 0, created.version.content));
+      } catch (RuntimeException e) {
+        // Anyone who found it meanwhile sees it has gone once they lock it
+        created.version = null;
+        parent.entries.remove(name, created);
+        throw e;
+      }
+    } finally {
+      created.lock.writeUnlock();
+    }
+  }
+
+  /**
+   * Makes the directory at path, returning false if its parent doesn't exist
+   * or something is already there
+   */
+  public boolean mkdir(String path) {
+    String[] names = split(path);
+    if (names.length == 0) {
+      return false;
+    }
+    Directory parent = directory(names, names.length - 1, false);
+    if (parent == null) {
+      return false;
+    }
+    return parent.entries.putIfAbsent(names[names.length - 1], new Directory()) == null;
+  }
+
+  /**
+   * Makes the directory at path and any above it that don't exist, returning
+   * whether there is a directory there now (there isn't if a file is in the
+   * way)
+   */
+  public boolean mkdirs(String path) {
+    String[] names = split(path);
+    return directory(names, names.length, true) != null;
+  }
+
+  /**
+   * Whether there is a directory at path ("" being the root)
+   */
+  public boolean isDirectory(String path) {
+    String[] names = split(path);
+    return directory(names, names.length, false) != null;
+  }
+
+  /**
+   * The entries of the directory at path in name order, with a '/' after
+   * those that are directories, or Optional.empty() if there's no such
+   * directory
+   */
+  public Optional<List<String>> list(String path) {
+    return list(path, null, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Up to limit entries of the directory at path in name order, after the
+   * entry named after (or from the first, if after is null), so a directory
+   * too big to list at once can be listed a page at a time
+   */
+  public Optional<List<String>> list(String path, String after, int limit) {
+    String[] names = split(path);
+    Directory directory = directory(names, names.length, false);
+    if (directory == null) {
+      return Optional.empty();
+    }
+    if (after != null && after.length() > 0 && after.charAt(after.length() - 1) == SEPARATOR) {
+      after = after.substring(0, after.length() - 1);
+    }
+    List<String> page = new ArrayList<String>(Math.min(limit, 1024));
+    Map<String, Object> entries = after == null ? directory.entries : directory.entries.tailMap(after, false);
+    for (Map.Entry<String, Object> entry : entries.entrySet()) {
+      if (page.size() == limit) {
+        break;
+      }
+      page.add(entry.getValue() instanceof Directory ? entry.getKey() + SEPARATOR : entry.getKey());
+    }
+    return Optional.of(page);
+  }
+
+  /**
+   * The paths of every file under the directory at path, depth first and
+   * each directory's entries in name order, or Optional.empty() if there's no
+   * such directory. Directories are read as the walk gets to them, without
+   * stopping anyone creating files, so files created during the walk may or
+   * may not be in it.
+   */
+  public Optional<List<String>> walk(String path) {
+    String[] names = split(path);
+    Directory top = directory(names, names.length, false);
+    if (top == null) {
+      return Optional.empty();
+    }
+    List<String> files = new ArrayList<String>();
+    // Where each directory being walked has got to, the deepest on top
+    ArrayDeque<Iterator<Map.Entry<String, Object>>> entries
+        = new ArrayDeque<Iterator<Map.Entry<String, Object>>>();
+    ArrayDeque<String> prefixes = new ArrayDeque<String>();
+    entries.push(top.entries.entrySet().iterator());
+    prefixes.push(names.length == 0 ? "" : join(names, names.length) + SEPARATOR);
+    while (!entries.isEmpty()) {
+      Iterator<Map.Entry<String, Object>> next = entries.peek();
+      if (!next.hasNext()) {
+        entries.pop();
+        prefixes.pop();
+        continue;
+      }
+      Map.Entry<String, Object> entry = next.next();
+      String entryPath = prefixes.peek() + entry.getKey();
+      if (entry.getValue() instanceof Directory) {
+        entries.push(((Directory) entry.getValue()).entries.entrySet().iterator());
+        prefixes.push(entryPath + SEPARATOR);
+      } else {
+        files.add(entryPath);
+      }
+    }
+    return Optional.of(files);
+  }
+
+  /**
+   * Opens every file under the directory at path in the given mode, as
+   * openAll() does, so all or nothing
+   */
+  public Optional<Map<String, File>> openTree(String path, Mode mode) {
+    Optional<List<String>> files = walk(path);
+    if (!files.isPresent()) {
+      return Optional.empty();
+    }
+    Map<String, Mode> modes = new LinkedHashMap<String, Mode>();
+    for (String file : files.get()) {
+      modes.put(file, mode);
+    }
+    return openAll(modes);
+  }
+
+  /**
+   * Blocks until the file is available in the given mode. If the thread is
+   * interrupted while waiting, gives up and returns Optional.empty() with the
+   * interrupt status set again.
+   */
+  @Override
+  public Optional<File> open(String filename, Mode mode) {
+    try {
+      return open(filename, mode, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Optional<File> tryOpen(String filename, Mode mode) {
+    try {
+      return open(filename, mode, 0);
+    } catch (InterruptedException e) {
+      // Never waits, so is never interrupted
+      Thread.currentThread().interrupt();
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Optional<File> open(String filename, Mode mode, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    return open(filename, mode, Math.max(unit.toNanos(timeout), 0));
+  }
+
+  /**
+   * Opens the file, waiting at most timeoutNanos for the lock. 0 means don't
+   * wait at all and a negative timeout means wait for as long as it takes.
+   */
+  private Optional<File> open(String filename, Mode mode, long timeoutNanos) throws InterruptedException {
+    String[] names = split(filename);
+    FileFrame frame = file(names);
+    if (frame == null) {
+      return Optional.empty();
+    }
+    return open(join(names, names.length), frame, mode, timeoutNanos);
+  }
+
+  private static Optional<File> open(String path, FileFrame frame, Mode mode, long timeoutNanos)
+      throws InterruptedException {
+    if (mode == Mode.SNAPSHOT) {
+      Version version = frame.version;
+      return version == null ? Optional.<File>empty()
+          : Optional.of(new File(path, version.content, mode, version.number));
+    }
+    boolean locked;
+    if (mode == Mode.READABLE) {
+      if (timeoutNanos < 0) {
+        frame.lock.readLock();
+        locked = true;
+      } else {
+        locked = timeoutNanos == 0 ? frame.lock.tryReadLock()
+            : frame.lock.tryReadLock(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+    } else if (mode == Mode.READWRITEABLE) {
+      if (timeoutNanos < 0) {
+        frame.lock.writeLock();
+        locked = true;
+      } else {
+        locked = timeoutNanos == 0 ? frame.lock.tryWriteLock()
+            : frame.lock.tryWriteLock(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+    } else {
+      return Optional.empty();
+    }
+    if (!locked) {
+      return Optional.empty();
+    }
+    if (frame.version == null) {
+      // Its create failed while we waited
+      if (mode == Mode.READABLE) {
+        frame.lock.readUnlock();
+      } else {
+        frame.lock.writeUnlock();
+      }
+      return Optional.empty();
+    }
+    return Optional.of(new File(path, frame, mode));
+  }
+
+  /**
+   * Resolves every path first, and then locks the files one at a time in
+   * path order, as MyFileServer does, closing the ones already opened if any
+   * of them can't be
+   */
+  @Override
+  public Optional<Map<String, File>> openAll(Map<String, Mode> modes) {
+    TreeMap<String, Mode> ordered = new TreeMap<String, Mode>();
+    for (Map.Entry<String, Mode> entry : modes.entrySet()) {
+      String[] names = split(entry.getKey());
+      ordered.put(join(names, names.length), entry.getValue());
+    }
+    List<FileFrame> frames = new ArrayList<FileFrame>(ordered.size());
+    for (String path : ordered.keySet()) {
+      FileFrame frame = file(path);
+      if (frame == null) {
+        return Optional.empty();
+      }
+      frames.add(frame);
+    }
+
+    Map<String, File> opened = new LinkedHashMap<String, File>();
+    int i = 0;
+    try {
+      for (Map.Entry<String, Mode> entry : ordered.entrySet()) {
+        Optional<File> file = open(entry.getKey(), frames.get(i++), entry.getValue(), -1);
+        if (!file.isPresent()) {
+          closeAll(opened.values());
+          return Optional.empty();
+        }
+        opened.put(entry.getKey(), file.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      closeAll(opened.values());
+      return Optional.empty();
+    }
+    return Optional.of(opened);
+  }
+
+  @Override
+  public void closeAll(Collection<File> files) {
+    for (File file : files) {
+      close(file);
+    }
+  }
+
+  @Override
+  public void close(File file) {
+    FileFrame current = file(file.filename());
+    // Snapshots hold no lock, so there is nothing to give back
+    if (current == null || file.mode() == Mode.SNAPSHOT || current.lock.getMode() != file.mode()) {
+      return;
+    }
+    // A handle closed twice would otherwise release someone else's lock
+    if (!file.closing()) {
+      return;
+    }
+
+    if (file.mode() == Mode.READABLE) {
+      file.pin();
+      current.lock.readUnlock();
+    } else if (file.mode() == Mode.READWRITEABLE) {
+      if (file.changed()) {
+        long number = current.version.number + 1;
+        List<Delta> deltas = file.deltas();
+        Content committed = deltas == null ? this.store.store(file.filename(), number, file.content())
+            : this.store.apply(file.filename(), number, file.content(), deltas);
+        current.version = new Version(number, committed);
+      } else {
+        file.pin();
+      }
+      current.lock.writeUnlock();
+    }
+  }
+
+  @Override
+  public Mode fileStatus(String filename) {
+    FileFrame current = file(filename);
+    return current == null ? Mode.UNKNOWN : current.lock.getMode();
+  }
+
+  /**
+   * The path of every file, as walk("") finds them, in a set that doesn't
+   * change afterwards
+   */
+  @Override
+  public Set<String> availableFiles() {
+    return Collections.unmodifiableSet(new LinkedHashSet<String>(walk("").get()));
+  }
+}
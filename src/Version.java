@@ -0,0 +1,15 @@
+/**
+ * Version is one committed state of a file's content. It never changes once
+ * made: a writer closing the file publishes a new Version rather than
+ * modifying the current one, so whoever is holding an older one keeps a
+ * consistent snapshot for as long as they like.
+ */
+final class Version {
+  public final long number;
+  public final Content content;
+
+  public Version(long number, Content content) {
+    this.number = number;
+    this.content = content;
+  }
+}
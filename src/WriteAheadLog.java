@@ -0,0 +1,505 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog makes another ContentStore durable by logging every create
+ * and commit to an append-only file before handing it on to that store.
+ *
+ * Each record is
+ *
+ *   magic | crc | CREATE, COMMIT or DELTA | version | name length | content length | name | content
+ *
+ * where a DELTA record's content is just the changes a writer made by
+ * appending or writing ranges (see Delta.encode), to be applied to the
+ * version before it, so logging a small change costs as much as the change.
+ * Every record is written to the log (and, depending on the Durability,
+ * forced to disk) before the store it wraps sees it. Forcing is done by group commit:
+ * one of the writers waiting for its record to be durable forces the log,
+ * which covers every record written up to then, and the writers that arrived
+ * while it was forcing are all covered by the next one. With a commit delay
+ * the forcing writer also waits that long first to let more records join in,
+ * trading commit latency for fewer forces.
+ *
+ * On opening, the log is replayed on top of whatever the wrapped store
+ * recovers itself, stopping at the first torn or corrupt record, and the
+ * files found are stored in the wrapped store. The log is then started afresh:
+ * empty if the wrapped store is persistent (after flushing it), otherwise
+ * holding just the latest version of each file.
+ *
+ * The same is done while running, as a checkpoint, whenever the log has grown
+ * by checkpointBytes since the last one (or, in front of a store that isn't
+ * persistent, to twice what the last one left, since that much has to be
+ * rewritten each time). A checkpoint waits for the stores in progress to
+ * reach the wrapped store and holds off new ones while it runs, so nothing
+ * is taken out of the log before the wrapped store has it.
+ *
+ * If forcing the log ever fails, nothing logged since can be known to be on
+ * disk, so the failure sticks: that commit and every later one throws
+ * UncheckedIOException, including the first commit after an ASYNC flusher's
+ * force failed.
+ *
+ * @author jamesjarvis
+ */
+public class WriteAheadLog implements ContentStore, Closeable {
+
+  public enum Durability {
+    // store() returns once the record has been forced to disk
+    SYNC,
+
+    // store() returns once the record is written to the log, and a background
+    // thread forces the log every commit delay, so a crash can lose the last
+    // commit delay's worth of commits
+    ASYNC
+  }
+
+  private static final int MAGIC = 0x57414c31;
+  private static final int CREATE = 1;
+  private static final int COMMIT = 2;
+  private static final int DELTA = 3;
+  private static final int HEADER = 28;
+  private static final long MIN_ASYNC_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final long CHECKPOINT_BYTES = 64 << 20;
+
+  private final Path path;
+  private final ContentStore inner;
+  private final Durability durability;
+  private final long commitDelayNanos;
+  private final Map<String, Version> recovered;
+  private final long checkpointBytes;
+  // The latest version of each file, to start the log afresh with if the
+  // wrapped store can't recover them itself, otherwise null
+  private final Map<String, Version> latest;
+  // Held to store, and to force the log, and held exclusively to checkpoint
+  private final ReentrantReadWriteLock checkpointing;
+  // Only replaced by a checkpoint
+  private volatile FileChannel channel;
+  // The log's size once it is next due a checkpoint
+  private volatile long checkpointAt;
+
+  // End of the last record written to the log
+  private final ReentrantLock appending;
+  private volatile long written;
+
+  // End of the last record known to be on disk, and whether a force is running
+  private final ReentrantLock syncing;
+  private final Condition synced;
+  private long durable;
+  private boolean forcing;
+  private volatile IOException failure;
+
+  private final AtomicLong commits;
+  private final AtomicLong forces;
+  private final AtomicLong checkpoints;
+  private final Thread flusher;
+  private volatile boolean closed;
+
+  public WriteAheadLog(Path dir, ContentStore inner) throws IOException {
+    this(dir, inner, Durability.SYNC, 0, TimeUnit.MICROSECONDS);
+  }
+
+  public WriteAheadLog(Path dir, ContentStore inner, Durability durability, long commitDelay, TimeUnit unit)
+      throws IOException {
+    this(dir, inner, durability, commitDelay, unit, CHECKPOINT_BYTES);
+  }
+
+  public WriteAheadLog(Path dir, ContentStore inner, Durability durability, long commitDelay, TimeUnit unit,
+      long checkpointBytes) throws IOException {
+    this.path = dir.resolve("wal.log");
+    this.inner = inner;
+    this.durability = durability;
+    this.commitDelayNanos = unit.toNanos(commitDelay);
+    this.checkpointBytes = checkpointBytes;
+    this.checkpointing = new ReentrantReadWriteLock();
+    this.appending = new ReentrantLock();
+    this.syncing = new ReentrantLock();
+    this.synced = this.syncing.newCondition();
+    this.commits = new AtomicLong();
+    this.forces = new AtomicLong();
+    this.checkpoints = new AtomicLong();
+
+    Files.createDirectories(dir);
+    this.recovered = replay();
+    this.latest = inner.persistent() ? null : new ConcurrentHashMap<String, Version>(this.recovered);
+    restart(this.recovered);
+    reopen();
+
+    if (durability == Durability.ASYNC) {
+      this.flusher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          flushPeriodically();
+        }
+      }, "wal-flusher");
+      this.flusher.setDaemon(true);
+      this.flusher.start();
+    } else {
+      this.flusher = null;
+    }
+  }
+
+  /**
+   * Reads back every intact record in the log, and puts the ones newer than
+   * what the wrapped store recovered into the wrapped store
+   */
+  private Map<String, Version> replay() throws IOException {
+    Map<String, Version> files = new HashMap<String, Version>(this.inner.recover());
+    if (!Files.exists(this.path)) {
+      return files;
+    }
+    // Deltas apply to the previous version, whether logged or already recovered
+    Map<String, Version> logged = new HashMap<String, Version>();
+    try (FileChannel log = FileChannel.open(this.path, StandardOpenOption.READ)) {
+      long size = log.size();
+      ByteBuffer header = ByteBuffer.allocate(HEADER);
+      while (log.position() + HEADER <= size) {
+        header.clear();
+        readFully(log, header);
+        header.flip();
+        int magic = header.getInt();
+        int crc = header.getInt();
+        int type = header.getInt();
+        long version = header.getLong();
+        int nameLength = header.getInt();
+        int contentLength = header.getInt();
+        if (magic != MAGIC || nameLength < 0 || contentLength < 0
+            || log.position() + nameLength + contentLength > size) {
+          break;
+        }
+        ByteBuffer name = ByteBuffer.allocate(nameLength);
+        ByteBuffer content = ByteBuffer.allocate(contentLength);
+        readFully(log, name);
+        readFully(log, content);
+        name.flip();
+        content.flip();
+        if (crc(name, content) != crc) {
+          break;
+        }
+        String filename = StandardCharsets.UTF_8.decode(name).toString();
+        Version latest = logged.containsKey(filename) ? logged.get(filename) : files.get(filename);
+        if (type == DELTA) {
+          if (latest != null && latest.number == version - 1) {
+            Content applied = Delta.decode(latest.content, content);
+            if (applied == null) {
+              break;
+            }
+            logged.put(filename, new Version(version, applied));
+          }
+        } else if (latest == null || latest.number <= version) {
+          logged.put(filename, new Version(version, HeapContent.copyOf(content)));
+        }
+      }
+    }
+
+    for (Map.Entry<String, Version> entry : logged.entrySet()) {
+      Version current = files.get(entry.getKey());
+      Version replayed = entry.getValue();
+      if (current == null || current.number < replayed.number) {
+        Content stored = this.inner.store(entry.getKey(), replayed.number, replayed.content);
+        files.put(entry.getKey(), new Version(replayed.number, stored));
+      }
+    }
+    return files;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+  }
+
+  /**
+   * Replaces the log with one holding only what the wrapped store can't
+   * recover by itself, which is files if it isn't persistent
+   */
+  private void restart(Map<String, Version> files) throws IOException {
+    Path fresh = this.path.resolveSibling("wal.log.tmp");
+    if (this.inner.persistent()) {
+      this.inner.flush();
+    }
+    try (FileChannel log = FileChannel.open(fresh, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (!this.inner.persistent()) {
+        for (Map.Entry<String, Version> entry : files.entrySet()) {
+          Version version = entry.getValue();
+          write(log, entry.getKey(), version.number, version.number == 0 ? CREATE : COMMIT,
+              version.content.bytes());
+        }
+      }
+      log.force(true);
+    }
+    Files.move(fresh, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Opens the log restart() left, to append to it
+   */
+  private void reopen() throws IOException {
+    this.channel = FileChannel.open(this.path, StandardOpenOption.WRITE);
+    this.written = this.channel.size();
+    this.channel.position(this.written);
+    this.syncing.lock();
+    try {
+      this.durable = this.written;
+    } finally {
+      this.syncing.unlock();
+    }
+    this.checkpointAt = Math.max(this.checkpointBytes, this.latest == null ? 0 : 2 * this.written);
+  }
+
+  /**
+   * Starts the log afresh if it has grown enough since the last time, once
+   * every store in progress has reached the wrapped store. The store that
+   * triggered it has already been committed, so a checkpoint that fails
+   * doesn't fail it.
+   */
+  private void checkpoint() {
+    if (this.written < this.checkpointAt) {
+      return;
+    }
+    this.checkpointing.writeLock().lock();
+    try {
+      // Someone else may have got here first
+      if (this.written < this.checkpointAt || this.failure != null) {
+        return;
+      }
+      // The fresh log is forced as it is made, so the old one needn't be
+      restart(this.latest);
+      this.channel.close();
+      reopen();
+      this.checkpoints.incrementAndGet();
+    } catch (IOException e) {
+      // The old log is only replaced once the fresh one is whole, so it goes
+      // on being used, and the checkpoint is tried again after as much more
+      this.checkpointAt = this.written + this.checkpointBytes;
+    } finally {
+      this.checkpointing.writeLock().unlock();
+    }
+  }
+
+  private static void write(FileChannel log, String filename, long version, int type, ByteBuffer bytes)
+      throws IOException {
+    ByteBuffer name = StandardCharsets.UTF_8.encode(filename);
+    ByteBuffer header = ByteBuffer.allocate(HEADER);
+    header.putInt(MAGIC);
+    header.putInt(crc(name, bytes));
+    header.putInt(type);
+    header.putLong(version);
+    header.putInt(name.remaining());
+    header.putInt(bytes.remaining());
+    header.flip();
+    ByteBuffer[] record = { header, name, bytes };
+    while (bytes.hasRemaining() || name.hasRemaining() || header.hasRemaining()) {
+      log.write(record);
+    }
+  }
+
+  private static int crc(ByteBuffer name, ByteBuffer content) {
+    CRC32 crc = new CRC32();
+    crc.update(name.duplicate());
+    crc.update(content.duplicate());
+    return (int) crc.getValue();
+  }
+
+  @Override
+  public Map<String, Version> recover() {
+    return this.recovered;
+  }
+
+  @Override
+  public boolean persistent() {
+    return true;
+  }
+
+  @Override
+  public void flush() {
+    this.checkpointing.readLock().lock();
+    try {
+      awaitDurable(this.written);
+    } finally {
+      this.checkpointing.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Content store(String filename, long version, Content content) {
+    Content stored;
+    this.checkpointing.readLock().lock();
+    try {
+      log(filename, version, version == 0 ? CREATE : COMMIT, content.bytes());
+      stored = stored(filename, version, this.inner.store(filename, version, content));
+    } finally {
+      this.checkpointing.readLock().unlock();
+    }
+    checkpoint();
+    return stored;
+  }
+
+  /**
+   * Logs just the deltas, then hands the change on to the wrapped store
+   */
+  @Override
+  public Content apply(String filename, long version, Content content, List<Delta> deltas) {
+    Content stored;
+    this.checkpointing.readLock().lock();
+    try {
+      log(filename, version, DELTA, Delta.encode(deltas));
+      stored = stored(filename, version, this.inner.apply(filename, version, content, deltas));
+    } finally {
+      this.checkpointing.readLock().unlock();
+    }
+    checkpoint();
+    return stored;
+  }
+
+  private Content stored(String filename, long version, Content stored) {
+    if (this.latest != null) {
+      this.latest.put(filename, new Version(version, stored));
+    }
+    return stored;
+  }
+
+  /**
+   * Writes a record to the log, returning once it is as durable as the
+   * Durability asks for
+   */
+  private void log(String filename, long version, int type, ByteBuffer bytes) {
+    failIfForceFailed();
+    long end;
+    this.appending.lock();
+    try {
+      write(this.channel, filename, version, type, bytes);
+      end = this.channel.position();
+      this.written = end;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      this.appending.unlock();
+    }
+    this.commits.incrementAndGet();
+
+    if (this.durability == Durability.SYNC) {
+      awaitDurable(end);
+    }
+  }
+
+  /**
+   * Waits until the log is on disk up to end, forcing it if nobody else is
+   */
+  private void awaitDurable(long end) {
+    this.syncing.lock();
+    try {
+      while (this.durable < end) {
+        failIfForceFailed();
+        if (this.forcing) {
+          this.synced.awaitUninterruptibly();
+          continue;
+        }
+        this.forcing = true;
+        this.syncing.unlock();
+        long target = 0;
+        IOException failure = null;
+        try {
+          if (this.commitDelayNanos > 0 && this.durability == Durability.SYNC) {
+            LockSupport.parkNanos(this.commitDelayNanos);
+          }
+          target = this.written;
+          this.channel.force(false);
+          this.forces.incrementAndGet();
+        } catch (IOException e) {
+          failure = e;
+        } finally {
+          this.syncing.lock();
+          this.forcing = false;
+          if (failure == null) {
+            this.durable = Math.max(this.durable, target);
+          } else {
+            this.failure = failure;
+          }
+          this.synced.signalAll();
+        }
+        failIfForceFailed();
+      }
+    } finally {
+      this.syncing.unlock();
+    }
+  }
+
+  private void failIfForceFailed() {
+    if (this.failure != null) {
+      throw new UncheckedIOException("The log couldn't be forced to disk", this.failure);
+    }
+  }
+
+  private void flushPeriodically() {
+    while (!this.closed && this.failure == null) {
+      LockSupport.parkNanos(Math.max(this.commitDelayNanos, MIN_ASYNC_DELAY));
+      try {
+        flush();
+      } catch (UncheckedIOException e) {
+        // Kept in failure, for the next commit to throw
+      }
+    }
+  }
+
+  /**
+   * Number of records logged since opening
+   */
+  public long commits() {
+    return this.commits.get();
+  }
+
+  /**
+   * Number of times the log has been forced to disk since opening, which is
+   * less than commits() when group commit is doing its job
+   */
+  public long forces() {
+    return this.forces.get();
+  }
+
+  /**
+   * Number of times the log has been started afresh since opening
+   */
+  public long checkpoints() {
+    return this.checkpoints.get();
+  }
+
+  /**
+   * Forces whatever is left to disk and closes the log
+   */
+  @Override
+  public void close() throws IOException {
+    this.closed = true;
+    if (this.flusher != null) {
+      LockSupport.unpark(this.flusher);
+      try {
+        this.flusher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+    this.channel.close();
+  }
+}